@@ -0,0 +1,198 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.Manager;
+import javax.media.MediaLocator;
+import javax.media.Processor;
+import javax.media.ProcessorModel;
+import javax.media.format.AudioFormat;
+import javax.media.protocol.BufferTransferHandler;
+import javax.media.protocol.ContentDescriptor;
+import javax.media.protocol.PushBufferDataSource;
+import javax.media.protocol.PushBufferStream;
+
+/**
+ * Measures the cost of converting synthesized prompts to 8 kHz G.711, comparing the band limited resampling of
+ * {@link AudioEncoder} with its linear interpolation and with the JMF processor that converts prompt files on
+ * every play.
+ * <p>
+ * Usage: {@code ResamplerBenchmark [seconds] [iterations]}.  The prompts are synthetic 16 kHz and 22.05 kHz
+ * speech band signals of the specified length (default 10s), the JMF path is measured on the same audio saved
+ * as AU files.  Each method is warmed up before being timed.
+ * </p>
+ */
+public class ResamplerBenchmark {
+
+    private static final int[] SAMPLE_RATES = {16000, 22050};
+
+    /**
+     * TODOC
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+
+        for (int sampleRate : SAMPLE_RATES) {
+            short[] samples = createSignal(sampleRate, seconds);
+            System.out.println(seconds + "s prompt at " + sampleRate + "Hz, " + iterations + " iterations:");
+            report("polyphase", time(samples, sampleRate, true, iterations), seconds);
+            report("linear", time(samples, sampleRate, false, iterations), seconds);
+
+            File file = File.createTempFile("benchmark", ".au");
+            try {
+                writeAu(file, samples, sampleRate);
+                report("JMF", timeJmf(file, iterations), seconds);
+            } catch (Exception e) {
+                System.out.println("  JMF: not available (" + e + ")");
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void report(String method, double millis, int seconds) {
+        System.out.println("  " + method + ": " + String.format("%.3f", millis) + "ms per prompt, "
+                + String.format("%.0f", seconds * 1000 / millis) + "x real time");
+    }
+
+    /**
+     * Speech band test signal, a few harmonics of a gliding fundamental plus content above 4 kHz that must not
+     * alias into the telephone band.
+     */
+    private static short[] createSignal(int sampleRate, int seconds) {
+        short[] samples = new short[sampleRate * seconds];
+        double phase = 0;
+        for (int i = 0; i < samples.length; i++) {
+            double f0 = 120 + 60 * Math.sin(2 * Math.PI * i / sampleRate);
+            phase += 2 * Math.PI * f0 / sampleRate;
+            double value = 0;
+            for (int h = 1; h <= 8; h++) {
+                value += Math.sin(h * phase) / h;
+            }
+            value += 0.3 * Math.sin(2 * Math.PI * 5500.0 * i / sampleRate);
+            samples[i] = (short) (value * 6000);
+        }
+        return samples;
+    }
+
+    private static double time(short[] samples, int sampleRate, boolean bandLimited, int iterations) {
+        int block = 4096;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            encode(samples, sampleRate, bandLimited, block, iterations);
+        }
+        long start = System.nanoTime();
+        encode(samples, sampleRate, bandLimited, block, iterations);
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    private static void encode(short[] samples, int sampleRate, boolean bandLimited, int block, int iterations) {
+        byte[] encoded = null;
+        for (int n = 0; n < iterations; n++) {
+            AudioEncoder encoder = new AudioEncoder(sampleRate, 1, G711Codec.ULAW, bandLimited);
+            if (encoded == null) {
+                encoded = new byte[encoder.getMaxEncodedLength(block)];
+            }
+            for (int off = 0; off < samples.length; off += block) {
+                encoder.encode(samples, off, Math.min(block, samples.length - off), encoded);
+            }
+            encoder.finish(encoded);
+        }
+    }
+
+    private static double timeJmf(File file, int iterations) throws Exception {
+        for (int warmup = 0; warmup < 2; warmup++) {
+            transcodeWithJmf(file);
+        }
+        long start = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            transcodeWithJmf(file);
+        }
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    /**
+     * Converts a prompt file to 8 kHz G.711 like the processor of the RTP player, without sending it.
+     */
+    private static void transcodeWithJmf(File file) throws Exception {
+        ProcessorModel pm = new ProcessorModel(Manager.createDataSource(new MediaLocator(file.toURI().toURL())),
+                new Format[] {new AudioFormat(AudioFormat.ULAW, 8000, 8, 1)},
+                new ContentDescriptor(ContentDescriptor.RAW));
+        Processor processor = Manager.createRealizedProcessor(pm);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            final Buffer buffer = new Buffer();
+            PushBufferStream stream = ((PushBufferDataSource) processor.getDataOutput()).getStreams()[0];
+            stream.setTransferHandler(new BufferTransferHandler() {
+                public void transferData(PushBufferStream s) {
+                    try {
+                        s.read(buffer);
+                    } catch (IOException e) {
+                        done.countDown();
+                    }
+                    if (buffer.isEOM()) {
+                        done.countDown();
+                    }
+                }
+            });
+            processor.start();
+            done.await();
+        } finally {
+            processor.close();
+        }
+    }
+
+    private static void writeAu(File file, short[] samples, int sampleRate) throws IOException {
+        byte[] au = new byte[24 + 2 * samples.length];
+        int[] header = {0x2e736e64, 24, 2 * samples.length, 3, sampleRate, 1};
+        for (int i = 0; i < header.length; i++) {
+            writeShort(au, 4 * i, header[i] >> 16);
+            writeShort(au, 4 * i + 2, header[i]);
+        }
+        for (int i = 0; i < samples.length; i++) {
+            writeShort(au, 24 + 2 * i, samples[i]);
+        }
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(au);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) (value >> 8);
+        b[off + 1] = (byte) value;
+    }
+
+}
@@ -45,6 +45,10 @@ public class ReceiverConfig extends ResourceConfig {
 
 	private URL _sphinxRecorderConfigURL;
     private int _recorderEngines;
+    private int _grammarCacheSize;
+    private long _grammarStoreSize;
+    private long _grammarSpillSize;
+    private long _httpCacheSize;
 
     /**
      * TODOC
@@ -94,6 +98,10 @@ public class ReceiverConfig extends ResourceConfig {
             _baseRecordingDir = new File(config.getString("resources.resource(" + index + ").baseRecordingDir"));
             ensureDir(_baseRecordingDir);
             _recorderEngines = config.getInt("resources.resource(" + index + ").recorderEngines");
+            _grammarCacheSize = config.getInt("resources.resource(" + index + ").grammarCacheSize", 64);
+            _grammarStoreSize = 1024L * config.getLong("resources.resource(" + index + ").grammarStoreSize", 8192);
+            _grammarSpillSize = 1024L * config.getLong("resources.resource(" + index + ").grammarSpillSize", 0);
+            _httpCacheSize = config.getLong("resources.resource(" + index + ").httpCacheSize", 64) * 1024 * 1024;
             
         } catch (RuntimeException e) {
             throw new ConfigurationException(e.getMessage(), e);
@@ -141,5 +149,36 @@ public class ReceiverConfig extends ResourceConfig {
     public int getRecorderEngines() {
     	return _recorderEngines;
     }
+
+    /**
+     * @return the maximum number of compiled grammars cached for the rec engines, 0 to compile the grammar of
+     * every recognition.
+     */
+    public int getGrammarCacheSize() {
+        return _grammarCacheSize;
+    }
+
+    /**
+     * @return the limit in bytes of the unreferenced grammars kept in memory by the grammar store.
+     */
+    public long getGrammarStoreSize() {
+        return _grammarStoreSize;
+    }
+
+    /**
+     * @return the limit in bytes of the grammars spilled to disk by the grammar store, 0 to drop the grammars
+     * evicted from memory.
+     */
+    public long getGrammarSpillSize() {
+        return _grammarSpillSize;
+    }
+
+    /**
+     * @return the maximum number of bytes of grammars fetched from http and https URIs to keep on disk, 0 disables
+     * caching them.
+     */
+    public long getHttpCacheSize() {
+        return _httpCacheSize;
+    }
     
 }
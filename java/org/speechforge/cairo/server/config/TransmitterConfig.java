@@ -22,7 +22,11 @@
  */
 package org.speechforge.cairo.server.config;
 
+import org.speechforge.cairo.server.tts.PrewarmPrompt;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.XMLConfiguration;
@@ -35,9 +39,42 @@ import org.apache.commons.configuration.XMLConfiguration;
  */
 public class TransmitterConfig extends ResourceConfig {
 
+    /**
+     * Comfort noise setting sending nothing between streamed prompts.
+     */
+    public static final String COMFORT_NOISE_OFF = "off";
+
+    /**
+     * Comfort noise setting streaming generated noise frames between streamed prompts.
+     */
+    public static final String COMFORT_NOISE_FRAMES = "frames";
+
+    /**
+     * Comfort noise setting sending a comfort noise packet (RFC 3389) at the start of each pause between
+     * streamed prompts, if negotiated by the client.
+     */
+    public static final String COMFORT_NOISE_PACKETS = "cn";
+
     private File _basePromptDir;
     private String _voiceName;
     private String _speechSynthesizer;
+    private String _speechLanguage;
+    private List<VoiceConfig> _voices = new ArrayList<VoiceConfig>();
+    private long _synthesizerMaxWait;
+    private long _promptCacheMemorySize;
+    private long _promptCacheDiskSize;
+    private boolean _streamingPrompts;
+    private long _encodedPromptStoreSize;
+    private String[] _maryServers;
+    private String _festivalCommand;
+    private int _festivalBasePort;
+    private long _httpCacheSize;
+    private long _promptCompletionTail;
+    private long _promptFileQuota;
+    private List<PrewarmPrompt> _prewarmPrompts = new ArrayList<PrewarmPrompt>();
+    private boolean _trimPromptSilence;
+    private String _comfortNoise;
+    private int _comfortNoiseLevel;
 
     /**
      * TODOC
@@ -50,6 +87,53 @@ public class TransmitterConfig extends ResourceConfig {
         _basePromptDir = getConfigDir(config, "resources.resource(" + index + ").basePromptDir");
         _voiceName = config.getString("resources.resource(" + index + ").voiceName");
 	_speechSynthesizer = config.getString("resources.resource(" + index + ").speechSynthesizer");
+        _promptCacheMemorySize = config.getLong("resources.resource(" + index + ").promptCacheMemorySize", 16) * 1024 * 1024;
+        _promptCacheDiskSize = config.getLong("resources.resource(" + index + ").promptCacheDiskSize", 512) * 1024 * 1024;
+        _streamingPrompts = config.getBoolean("resources.resource(" + index + ").streamingPrompts", false);
+        _encodedPromptStoreSize = config.getLong("resources.resource(" + index + ").encodedPromptStoreSize", 32) * 1024 * 1024;
+        _maryServers = config.getStringArray("resources.resource(" + index + ").maryServers");
+        _festivalCommand = config.getString("resources.resource(" + index + ").festivalCommand", "festival");
+        _festivalBasePort = config.getInt("resources.resource(" + index + ").festivalBasePort", 1314);
+        _httpCacheSize = config.getLong("resources.resource(" + index + ").httpCacheSize", 64) * 1024 * 1024;
+        _promptCompletionTail = config.getLong("resources.resource(" + index + ").promptCompletionTail", 0);
+        _promptFileQuota = config.getLong("resources.resource(" + index + ").promptFileQuota", 256) * 1024 * 1024;
+        _speechLanguage = config.getString("resources.resource(" + index + ").speechLanguage", null);
+        _synthesizerMaxWait = config.getLong("resources.resource(" + index + ").synthesizerMaxWait", 2000);
+        _trimPromptSilence = config.getBoolean("resources.resource(" + index + ").trimPromptSilence", true);
+        _comfortNoise = config.getString("resources.resource(" + index + ").comfortNoise", COMFORT_NOISE_OFF).trim().toLowerCase();
+        if (!COMFORT_NOISE_OFF.equals(_comfortNoise) && !COMFORT_NOISE_FRAMES.equals(_comfortNoise)
+                && !COMFORT_NOISE_PACKETS.equals(_comfortNoise)) {
+            throw new ConfigurationException("Invalid comfortNoise (expected " + COMFORT_NOISE_OFF + ", "
+                    + COMFORT_NOISE_FRAMES + " or " + COMFORT_NOISE_PACKETS + "): " + _comfortNoise);
+        }
+        _comfortNoiseLevel = config.getInt("resources.resource(" + index + ").comfortNoiseLevel", 70);
+        if (_comfortNoiseLevel < 0 || _comfortNoiseLevel > 127) {
+            throw new ConfigurationException("Invalid comfortNoiseLevel (0 to 127 -dBov): " + _comfortNoiseLevel);
+        }
+        String voiceKey = "resources.resource(" + index + ").voices.voice";
+        for (int i = 0; i <= config.getMaxIndex(voiceKey); i++) {
+            String key = voiceKey + "(" + i + ")";
+            String voiceName = config.getString(key + ".name");
+            if (voiceName == null) {
+                throw new ConfigurationException("Voice without name in " + key);
+            }
+            _voices.add(new VoiceConfig(voiceName,
+                    config.getString(key + ".speechSynthesizer", "Mary"),
+                    config.getString(key + ".speechLanguage", null),
+                    config.getInt(key + ".engines", getEngines())));
+        }
+        String promptKey = "resources.resource(" + index + ").prewarm.prompt";
+        for (int i = 0; i <= config.getMaxIndex(promptKey); i++) {
+            String key = promptKey + "(" + i + ")";
+            String text = config.getString(key + ".text");
+            String uri = config.getString(key + ".uri");
+            if ((text == null) == (uri == null)) {
+                throw new ConfigurationException("Prompt to pre-warm needs either a text or a uri in " + key);
+            }
+            _prewarmPrompts.add((text != null) ? PrewarmPrompt.forText(text,
+                    config.getString(key + ".voice", null), config.getString(key + ".language", null))
+                    : PrewarmPrompt.forUri(uri));
+        }
     }
 
     /**
@@ -72,4 +156,178 @@ public class TransmitterConfig extends ResourceConfig {
 	return _speechSynthesizer;
     }
 
+    /**
+     * @return the language of the default voice (e.g. "en-US"), or {@code null} if not specified.
+     */
+    public String getSpeechLanguage() {
+        return _speechLanguage;
+    }
+
+    /**
+     * @return the voices served in addition to the default voice, selected by the Voice-Name or Speech-Language
+     * of SPEAK requests.
+     */
+    public List<VoiceConfig> getVoices() {
+        return _voices;
+    }
+
+    /**
+     * @return the time in milliseconds a SPEAK request waits for a prompt generator when all generators of its
+     * voice are busy.
+     */
+    public long getSynthesizerMaxWait() {
+        return _synthesizerMaxWait;
+    }
+
+    /**
+     * @return the maximum number of bytes of synthesized prompt audio to keep in memory.
+     */
+    public long getPromptCacheMemorySize() {
+        return _promptCacheMemorySize;
+    }
+
+    /**
+     * @return the maximum number of bytes of synthesized prompt files to keep on disk, 0 disables prompt caching.
+     */
+    public long getPromptCacheDiskSize() {
+        return _promptCacheDiskSize;
+    }
+
+    /**
+     * @return whether synthesized prompts are streamed to the RTP channel while they are being synthesized
+     * instead of being played from prompt files (only for channels that negotiated PCMU or PCMA).
+     */
+    public boolean isStreamingPrompts() {
+        return _streamingPrompts;
+    }
+
+    /**
+     * @return the maximum number of bytes of prompt audio kept encoded in the codecs of streaming channels,
+     * 0 disables the encoded prompt store.
+     */
+    public long getEncodedPromptStoreSize() {
+        return _encodedPromptStoreSize;
+    }
+
+    /**
+     * @return the Mary servers ("host" or "host:port") to balance synthesis requests over, empty to use the
+     * server specified by the {@code server.host} and {@code server.port} system properties.
+     */
+    public String[] getMaryServers() {
+        return _maryServers;
+    }
+
+    /**
+     * @return the command (with any options) starting a Festival server.
+     */
+    public String getFestivalCommand() {
+        return _festivalCommand;
+    }
+
+    /**
+     * @return the port of the first Festival server, one server is started per engine on consecutive ports.
+     */
+    public int getFestivalBasePort() {
+        return _festivalBasePort;
+    }
+
+    /**
+     * @return the maximum number of bytes of prompts fetched from http and https URIs to keep on disk, 0 disables
+     * caching them.
+     */
+    public long getHttpCacheSize() {
+        return _httpCacheSize;
+    }
+
+    /**
+     * @return the time in milliseconds to wait after the last RTP packet of a prompt has played out before the
+     * prompt is reported complete.
+     */
+    public long getPromptCompletionTail() {
+        return _promptCompletionTail;
+    }
+
+    /**
+     * @return the maximum number of bytes of generated prompt files kept in the channel prompt directories, 0 for
+     * no limit.
+     */
+    public long getPromptFileQuota() {
+        return _promptFileQuota;
+    }
+
+    /**
+     * @return the prompts rendered and cached before the transmitter is registered.
+     */
+    public List<PrewarmPrompt> getPrewarmPrompts() {
+        return _prewarmPrompts;
+    }
+
+    /**
+     * @return whether the leading and trailing silence of synthesized prompts is trimmed.
+     */
+    public boolean isTrimPromptSilence() {
+        return _trimPromptSilence;
+    }
+
+    /**
+     * @return how the pauses between streamed prompts are filled, {@link #COMFORT_NOISE_OFF},
+     * {@link #COMFORT_NOISE_FRAMES} or {@link #COMFORT_NOISE_PACKETS}.
+     */
+    public String getComfortNoise() {
+        return _comfortNoise;
+    }
+
+    /**
+     * @return the level in -dBov of the comfort noise between streamed prompts, 127 for silence.
+     */
+    public int getComfortNoiseLevel() {
+        return _comfortNoiseLevel;
+    }
+
+    /**
+     * Configuration of an additional voice of a transmitter.
+     */
+    public static class VoiceConfig {
+
+        private String _voiceName;
+        private String _speechSynthesizer;
+        private String _speechLanguage;
+        private int _engines;
+
+        VoiceConfig(String voiceName, String speechSynthesizer, String speechLanguage, int engines) {
+            _voiceName = voiceName;
+            _speechSynthesizer = speechSynthesizer;
+            _speechLanguage = speechLanguage;
+            _engines = engines;
+        }
+
+        /**
+         * @return the name of the voice.
+         */
+        public String getVoiceName() {
+            return _voiceName;
+        }
+
+        /**
+         * @return the TTS system of the voice ("Mary" or "Festival").
+         */
+        public String getSpeechSynthesizer() {
+            return _speechSynthesizer;
+        }
+
+        /**
+         * @return the language of the voice, or {@code null} if not specified.
+         */
+        public String getSpeechLanguage() {
+            return _speechLanguage;
+        }
+
+        /**
+         * @return the number of prompt generators of the voice.
+         */
+        public int getEngines() {
+            return _engines;
+        }
+    }
+
 }
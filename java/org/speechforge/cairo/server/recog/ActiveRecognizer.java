@@ -10,47 +10,104 @@ import org.apache.commons.pool.ObjectPool;
 import org.apache.log4j.Logger;
 import org.speechforge.cairo.server.recog.sphinx.SphinxRecEngine;
 
+/**
+ * Lease of a rec engine for a single recognition, handed out by
+ * {@link RecogInterface#activateRecEngine(String, GrammarLocation, boolean)}.
+ * The lease owns the rec engine, the grammar loaded into it and the listener
+ * of the recognition until the rec engine is returned to its pool, so that
+ * concurrent recognitions do not interfere.
+ */
 public class ActiveRecognizer {
 
 	static Logger _logger = Logger.getLogger(ActiveRecognizer.class);
 
 	private ObjectPool _recPool;
-	private Object _recEngine;
+	private SphinxRecEngine _recEngine;
 	private String _appType;
+	private GrammarLocation _grammarLocation;
+	private RecogListener _recogListener;
+	private boolean _returned = false;
 
 	public ActiveRecognizer(ObjectPool recPool, Object recEngine, String appType) {
 		_recPool = recPool;
-		_recEngine = recEngine;
+		_recEngine = (SphinxRecEngine) recEngine;
 		_appType = appType;
 	}
 
-	public void startRecognition(PushBufferDataSource dataSource,
+	public synchronized void startRecognition(PushBufferDataSource dataSource,
 			RecogListener recogListener) throws UnsupportedEncodingException {
-		((SphinxRecEngine) _recEngine).startRecognition(dataSource,
-				recogListener);
-		((SphinxRecEngine) _recEngine).startRecogThread();
+		checkNotReturned();
+		_recogListener = recogListener;
+		_recEngine.startRecognition(dataSource, recogListener);
+		_recEngine.startRecogThread();
 	}
 
-	public void loadLM(GrammarLocation grammarLocation)
+	public synchronized void loadLM(GrammarLocation grammarLocation)
 			throws GrammarException, IOException {
-		if (_appType.equals("application/jsgf")) {
-			((SphinxRecEngine) _recEngine).loadJSGF(grammarLocation);
+		checkNotReturned();
+		// grammars of all types are stored and loaded as jsgf
+		if (grammarLocation != null) {
+			_recEngine.loadJSGF(grammarLocation);
+			_grammarLocation = grammarLocation;
 		}
 	}
 	
-	public void deallocateLM(){
-		if (_appType.equals("application/jsgf")) {
-			((SphinxRecEngine) _recEngine).deallocateJSGF();
+	public synchronized void deallocateLM(){
+		if (_grammarLocation != null) {
+			_recEngine.deallocateJSGF();
+			_grammarLocation = null;
 		}
 	}
 
-	public void setHotword(boolean hotword) {
-		((SphinxRecEngine) _recEngine).setHotword(hotword);
+	public synchronized void setHotword(boolean hotword) {
+		checkNotReturned();
+		_recEngine.setHotword(hotword);
 	}
 
-	public void returnRecEngine() throws Exception {
+	/**
+	 * Returns the rec engine to its pool, ending the lease.  Returning it
+	 * again has no effect.
+	 * 
+	 * @throws Exception
+	 *             if the pool failed to take the rec engine back.
+	 */
+	public synchronized void returnRecEngine() throws Exception {
+		if (_returned) {
+			_logger.debug("Rec engine already returned to pool");
+			return;
+		}
+		_returned = true;
+		_recogListener = null;
 		deallocateLM();
 		_recPool.returnObject(_recEngine);
 	}
 
+	/**
+	 * @return the type of the grammar of the recognition.
+	 */
+	public String getAppType() {
+		return _appType;
+	}
+
+	/**
+	 * @return the grammar loaded for the recognition, or {@code null} if none
+	 *         was loaded.
+	 */
+	public synchronized GrammarLocation getGrammarLocation() {
+		return _grammarLocation;
+	}
+
+	/**
+	 * @return the listener of the recognition, or {@code null} if not started.
+	 */
+	public synchronized RecogListener getRecogListener() {
+		return _recogListener;
+	}
+
+	private void checkNotReturned() {
+		if (_returned) {
+			throw new IllegalStateException("Rec engine returned to pool!");
+		}
+	}
+
 }
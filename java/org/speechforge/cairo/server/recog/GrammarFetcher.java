@@ -0,0 +1,146 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.recog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+import org.speechforge.cairo.util.http.HttpResourceCache;
+
+/**
+ * Fetches grammars referenced by URI (e.g. in a text/uri-list) straight into a
+ * {@link org.speechforge.cairo.server.recog.GrammarStore}.
+ * <p>
+ * Grammars fetched over http or https go through an {@link HttpResourceCache}, which revalidates them with
+ * conditional requests and shares a single fetch among concurrent requests for the same URL.  As long as the
+ * cache hands out the same resource the grammar is not read nor hashed again, so a cache hit only takes a
+ * reference in the store.  Other URLs, e.g. file URLs, are read on every use.
+ * </p>
+ */
+public class GrammarFetcher {
+
+    private static Logger _logger = Logger.getLogger(GrammarFetcher.class);
+
+    // buffer size for content of unknown length
+    private static final int BUFFER_SIZE = 16384;
+
+    private GrammarStore _grammarStore;
+    private HttpResourceCache _httpCache;
+
+    // store ids of the grammars of the cached resources, dropped with the resources replaced or evicted
+    private Map<HttpResourceCache.Resource, String> _ids = new WeakHashMap<HttpResourceCache.Resource, String>();
+
+    /**
+     * TODOC
+     * @param grammarStore store the grammars are fetched into.
+     * @param httpCache cache of the grammars fetched over http, or {@code null} to fetch them on every use.
+     */
+    public GrammarFetcher(GrammarStore grammarStore, HttpResourceCache httpCache) {
+        _grammarStore = grammarStore;
+        _httpCache = httpCache;
+    }
+
+    /**
+     * Fetches a grammar into the store and takes a reference to it.
+     * @param url the URL of the grammar.
+     * @return the id of the grammar in the store, to be released once no longer used.
+     * @throws IOException if the grammar could not be fetched.
+     */
+    public String fetch(URL url) throws IOException {
+        String protocol = url.getProtocol();
+        if (_httpCache == null || !("http".equals(protocol) || "https".equals(protocol))) {
+            URLConnection connection = url.openConnection();
+            InputStream in = connection.getInputStream();
+            try {
+                return _grammarStore.put(read(in, connection.getContentLength()));
+            } finally {
+                in.close();
+            }
+        }
+
+        HttpResourceCache.Resource resource = _httpCache.get(url);
+        String id;
+        try {
+            synchronized (_ids) {
+                id = _ids.get(resource);
+            }
+            if (id != null && _grammarStore.acquire(id)) {
+                return id;
+            }
+
+            InputStream in = new FileInputStream(resource.getFile());
+            try {
+                id = _grammarStore.put(read(in, (int) resource.getFile().length()));
+            } finally {
+                in.close();
+            }
+            synchronized (_ids) {
+                _ids.put(resource, id);
+            }
+        } finally {
+            _httpCache.release(resource);
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Fetched grammar " + url + " as " + id + ", " + _httpCache);
+        }
+        return id;
+    }
+
+    /**
+     * Reads a stream to its end.
+     * @param in the stream.
+     * @param length the length of the content if known, e.g. from Content-Length, otherwise -1.
+     * @return the content.
+     * @throws IOException if the stream could not be read or ended before the length given.
+     */
+    static byte[] read(InputStream in, int length) throws IOException {
+        if (length < 0) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        }
+        byte[] content = new byte[length];
+        int offset = 0;
+        int len;
+        while (offset < length && (len = in.read(content, offset, length - offset)) > 0) {
+            offset += len;
+        }
+        if (offset < length) {
+            throw new EOFException("Expected " + length + " bytes, read " + offset);
+        }
+        return content;
+    }
+
+}
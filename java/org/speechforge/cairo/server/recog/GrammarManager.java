@@ -22,44 +22,58 @@
  */
 package org.speechforge.cairo.server.recog;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
 
 /**
- * Manages the storage and retrieval of temporary grammar files on the file system.
+ * Manages the grammars of a recognizer channel, held in a {@link org.speechforge.cairo.server.recog.GrammarStore}
+ * shared by all channels.  The channel references the grammars it defined and the grammar of its last
+ * recognition until they are replaced or the channel is closed.
  *
  * @author Niels Godfredsen {@literal <}<a href="mailto:ngodfredsen@users.sourceforge.net">ngodfredsen@users.sourceforge.net</a>{@literal >}
  */
 public class GrammarManager {
 
-    private Map<String, GrammarLocation> _grammars = new HashMap<String, GrammarLocation>();
+    private static Logger _logger = Logger.getLogger(GrammarManager.class);
 
-    private File _grammarDir;
-    private URL _grammarDirUrl;
+    // store ids of the grammars by grammar id
+    private Map<String, String> _grammars = new HashMap<String, String>();
+
+    private String _channelID;
+    private GrammarStore _grammarStore;
+    private GrammarFetcher _grammarFetcher;
+
+    // store id of the last grammar saved without a grammar id
+    private String _anonymousGrammar;
 
     /**
      * TODOC
      * @param channelID 
-     * @param baseGrammarDir 
+     * @param grammarStore store shared by the channels.
      */
-    public GrammarManager(String channelID, File baseGrammarDir) {
-        Validate.isTrue(baseGrammarDir.isDirectory(), "baseGrammarDir parameter was not a directory: ", baseGrammarDir);
-        _grammarDir = new File(baseGrammarDir, channelID);
-        if (!_grammarDir.mkdir()) {
-            throw new IllegalArgumentException("Specified directory not valid: " + _grammarDir.getAbsolutePath());
-        }
-        try {
-            _grammarDirUrl = _grammarDir.toURL();
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Specified directory not valid: " + _grammarDir.getAbsolutePath(), e);
-        }
+    public GrammarManager(String channelID, GrammarStore grammarStore) {
+        this(channelID, grammarStore, new GrammarFetcher(grammarStore, null));
+    }
+
+    /**
+     * TODOC
+     * @param channelID 
+     * @param grammarStore store shared by the channels.
+     * @param grammarFetcher fetcher of the grammars referenced by URI into the store.
+     */
+    public GrammarManager(String channelID, GrammarStore grammarStore, GrammarFetcher grammarFetcher) {
+        Validate.notNull(grammarStore, "grammarStore parameter was null");
+        Validate.notNull(grammarFetcher, "grammarFetcher parameter was null");
+        _channelID = channelID;
+        _grammarStore = grammarStore;
+        _grammarFetcher = grammarFetcher;
     }
     
     /**
@@ -67,31 +81,43 @@ public class GrammarManager {
      * @param grammarID
      * @param grammarText
      * @return
-     * @throws IOException
      */
     // NOTE: could reduce sync scope but not necessary since generally single threaded access
-    public synchronized GrammarLocation saveGrammar(String grammarID, String grammarText)
-      throws IOException {
-
-        // generate grammar name and location
-        String grammarName = Long.toString(System.currentTimeMillis());
-        GrammarLocation location = new GrammarLocation(_grammarDirUrl, grammarName);
+    public synchronized GrammarLocation saveGrammar(String grammarID, String grammarText) {
+        return add(grammarID, _grammarStore.put(grammarText));
+    }
 
-        // write grammar to filesystem
-        File grammarFile = new File(_grammarDir, location.getFilename());
-        FileWriter fw = new FileWriter(grammarFile);
-        try {
-            fw.write(grammarText);
-        } finally {
-            fw.close();
+    /**
+     * Fetches a grammar referenced by URI.
+     * @param grammarID
+     * @param url the URL of the grammar.
+     * @return
+     * @throws IOException if the grammar could not be fetched.
+     */
+    public GrammarLocation fetchGrammar(String grammarID, URL url) throws IOException {
+        // fetched outside of the lock, the fetcher takes the reference added
+        String id = _grammarFetcher.fetch(url);
+        synchronized (this) {
+            return add(grammarID, id);
         }
+    }
 
+    private GrammarLocation add(String grammarID, String id) {
+        String replaced;
         if (grammarID != null && grammarID.length() > 0) {
             // store for future reference in session
-            _grammars.put(grammarID, location);
+            replaced = _grammars.put(grammarID, id);
+        } else {
+            replaced = _anonymousGrammar;
+            _anonymousGrammar = id;
         }
-
-        return location;
+        if (replaced != null) {
+            _grammarStore.release(replaced);
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Channel " + _channelID + " added grammar " + grammarID + " as " + id);
+        }
+        return _grammarStore.getGrammarLocation(id);
     }
 
     /**
@@ -100,7 +126,23 @@ public class GrammarManager {
      * @return
      */
     public synchronized GrammarLocation getGrammarLocation(String grammarID) {
-        return _grammars.get(grammarID);
+        String id = _grammars.get(grammarID);
+        return (id == null) ? null : _grammarStore.getGrammarLocation(id);
+    }
+
+    /**
+     * Releases the grammars of the channel.
+     */
+    public synchronized void close() {
+        List<String> ids = new ArrayList<String>(_grammars.values());
+        if (_anonymousGrammar != null) {
+            ids.add(_anonymousGrammar);
+        }
+        for (String id : ids) {
+            _grammarStore.release(id);
+        }
+        _grammars.clear();
+        _anonymousGrammar = null;
     }
 
 }
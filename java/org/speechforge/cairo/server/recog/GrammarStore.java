@@ -0,0 +1,417 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.recog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps grammars in memory, shared by all recognizer channels and addressed by the SHA-256 digest of their content,
+ * so that the same grammar sent by many calls is stored once.  Grammars are served to Sphinx through URLs of the
+ * {@code grammar:} protocol handled by the store itself, and thus load without going through the file system.
+ * <p>
+ * Grammars are reference counted: a grammar is kept while it is referenced by a channel, and the least recently
+ * used unreferenced grammars are evicted once the store exceeds its memory limit.  Evicted grammars are either
+ * dropped or spilled to an optional directory, itself bounded in size, from which they are reloaded on their next
+ * use.
+ */
+public class GrammarStore {
+
+    private static Logger _logger = Logger.getLogger(GrammarStore.class);
+
+    /**
+     * Protocol of the URLs under which the store serves its grammars.
+     */
+    public static final String PROTOCOL = "grammar";
+
+    /**
+     * Default limit in bytes of the grammars kept in memory.
+     */
+    public static final long DEFAULT_MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = '.' + GrammarLocation.DEFAULT_EXTENSION;
+    private static final Pattern ID_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    // grammars in memory by id, least recently used first
+    private Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long _memoryLimit;
+    private long _memorySize;
+
+    // lengths of the grammars spilled to disk by id, least recently used first
+    private Map<String, Long> _spilled = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private File _spillDir;
+    private long _spillLimit;
+    private long _spillSize;
+
+    private URL _baseURL;
+
+    private long _hits;
+    private long _misses;
+
+    /**
+     * Creates a store keeping its grammars in memory only.
+     * @param memoryLimit limit in bytes of the unreferenced grammars kept in memory.
+     */
+    public GrammarStore(long memoryLimit) {
+        this(memoryLimit, null, 0);
+    }
+
+    /**
+     * TODOC
+     * @param memoryLimit limit in bytes of the unreferenced grammars kept in memory.
+     * @param spillDir directory grammars evicted from memory are spilled to, or {@code null} to drop them.
+     * @param spillLimit limit in bytes of the grammars spilled to disk.
+     */
+    public GrammarStore(long memoryLimit, File spillDir, long spillLimit) {
+        if (memoryLimit < 0 || spillLimit < 0) {
+            throw new IllegalArgumentException("Invalid grammar store limits: memory=" + memoryLimit + ", spill="
+                    + spillLimit);
+        }
+        _memoryLimit = memoryLimit;
+        try {
+            _baseURL = new URL(null, PROTOCOL + ":/", new Handler());
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+        if (spillDir != null && spillLimit > 0) {
+            if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+                throw new IllegalArgumentException("Specified directory not valid: " + spillDir.getAbsolutePath());
+            }
+            _spillDir = spillDir;
+            _spillLimit = spillLimit;
+            indexSpilledGrammars();
+        }
+    }
+
+    /**
+     * Computes the id under which a grammar is stored.
+     * @param grammar content of the grammar.
+     * @return the hex encoded SHA-256 digest of the grammar.
+     */
+    public static String createID(byte[] grammar) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder id = new StringBuilder();
+        for (byte b : digest.digest(grammar)) {
+            id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Stores a grammar, encoded as the JSGF parser decodes it, and takes a reference to it.
+     * @param grammarText text of the grammar.
+     * @return the id of the grammar, to be released once no longer used.
+     */
+    public String put(String grammarText) {
+        return put(grammarText.getBytes());
+    }
+
+    /**
+     * Stores a grammar, unless it is already stored, and takes a reference to it.
+     * @param grammar content of the grammar.
+     * @return the id of the grammar, to be released once no longer used.
+     */
+    public String put(byte[] grammar) {
+        String id = createID(grammar);
+        synchronized (this) {
+            Entry entry = _entries.get(id);
+            if (entry == null) {
+                _misses++;
+                entry = new Entry(grammar);
+                _entries.put(id, entry);
+                _memorySize += grammar.length;
+            } else {
+                _hits++;
+            }
+            entry._references++;
+        }
+        return id;
+    }
+
+    /**
+     * Takes a reference to a stored grammar, reloading it from disk if it was spilled.
+     * @param id the id of the grammar.
+     * @return {@code true} if the grammar is stored, {@code false} if it is unknown or was dropped.
+     */
+    public synchronized boolean acquire(String id) {
+        Entry entry = load(id);
+        if (entry == null) {
+            return false;
+        }
+        entry._references++;
+        return true;
+    }
+
+    /**
+     * Releases a reference to a grammar, making it eligible for eviction once no longer referenced.
+     * @param id the id of the grammar.
+     */
+    public synchronized void release(String id) {
+        Entry entry = _entries.get(id);
+        if (entry == null || entry._references <= 0) {
+            _logger.warn("Releasing unreferenced grammar: " + id);
+            return;
+        }
+        if (--entry._references == 0) {
+            evict();
+        }
+    }
+
+    /**
+     * Retrieves the content of a grammar.
+     * @param id the id of the grammar.
+     * @return the content of the grammar, or {@code null} if it is not stored.
+     */
+    public synchronized byte[] get(String id) {
+        Entry entry = load(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry._references == 0) {
+            evict();
+        }
+        return entry._grammar;
+    }
+
+    /**
+     * Gives the location from which Sphinx loads a stored grammar.
+     * @param id the id of the grammar.
+     * @return the location of the grammar in the store.
+     */
+    public GrammarLocation getGrammarLocation(String id) {
+        return new GrammarLocation(_baseURL, id);
+    }
+
+    /**
+     * TODOC
+     * @return the number of grammars in memory.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * TODOC
+     * @return the number of bytes of the grammars in memory.
+     */
+    public synchronized long getMemorySize() {
+        return _memorySize;
+    }
+
+    /**
+     * TODOC
+     * @return the number of bytes of the grammars spilled to disk.
+     */
+    public synchronized long getSpillSize() {
+        return _spillSize;
+    }
+
+    private Entry load(String id) {
+        Entry entry = _entries.get(id);
+        if (entry != null || !_spilled.containsKey(id)) {
+            return entry;
+        }
+        File file = new File(_spillDir, id + FILE_SUFFIX);
+        try {
+            entry = new Entry(read(file));
+        } catch (IOException e) {
+            _logger.warn("Cannot reload spilled grammar " + file + ": " + e);
+            _spillSize -= _spilled.remove(id);
+            file.delete();
+            return null;
+        }
+        _entries.put(id, entry);
+        _memorySize += entry._grammar.length;
+        return entry;
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+                it.hasNext() && _memorySize > _memoryLimit;) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            if (entry._references == 0) {
+                it.remove();
+                _memorySize -= entry._grammar.length;
+                if (_spillDir != null) {
+                    spill(mapEntry.getKey(), entry._grammar);
+                }
+            }
+        }
+    }
+
+    private void spill(String id, byte[] grammar) {
+        if (_spilled.get(id) != null) {
+            return;
+        }
+        File file = new File(_spillDir, id + FILE_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(grammar);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            _logger.warn("Cannot spill grammar to " + file + ": " + e);
+            file.delete();
+            return;
+        }
+        _spilled.put(id, new Long(grammar.length));
+        _spillSize += grammar.length;
+        for (Iterator<Map.Entry<String, Long>> it = _spilled.entrySet().iterator();
+                it.hasNext() && _spillSize > _spillLimit;) {
+            Map.Entry<String, Long> mapEntry = it.next();
+            it.remove();
+            _spillSize -= mapEntry.getValue();
+            new File(_spillDir, mapEntry.getKey() + FILE_SUFFIX).delete();
+        }
+    }
+
+    // grammars are named by their content so those spilled by a previous run are still valid
+    private void indexSpilledGrammars() {
+        File[] files = _spillDir.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FILE_SUFFIX)) {
+                String id = name.substring(0, name.length() - FILE_SUFFIX.length());
+                if (ID_PATTERN.matcher(id).matches()) {
+                    _spilled.put(id, new Long(file.length()));
+                    _spillSize += file.length();
+                }
+            }
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Indexed " + _spilled.size() + " spilled grammars in " + _spillDir);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return GrammarFetcher.read(in, (int) file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "GrammarStore[grammars=" + _entries.size() + ", memory=" + _memorySize + "/" + _memoryLimit
+                + ", spilled=" + _spilled.size() + ", spill=" + _spillSize + "/" + _spillLimit + ", hits=" + _hits
+                + ", misses=" + _misses + "]";
+    }
+
+    private static class Entry {
+
+        private byte[] _grammar;
+        private int _references;
+
+        private Entry(byte[] grammar) {
+            _grammar = grammar;
+        }
+
+    }
+
+    /**
+     * Serves the grammars of the store under URLs of the form {@code grammar:/<id>.gram}.  URLs resolved against
+     * the base URL of the store, e.g. by the JSGF parser, inherit this handler.
+     */
+    private class Handler extends URLStreamHandler {
+
+        /* (non-Javadoc)
+         * @see java.net.URLStreamHandler#openConnection(java.net.URL)
+         */
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String path = url.getPath();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            if (id.endsWith(FILE_SUFFIX)) {
+                id = id.substring(0, id.length() - FILE_SUFFIX.length());
+            }
+            final byte[] grammar = ID_PATTERN.matcher(id).matches() ? get(id) : null;
+            if (grammar == null) {
+                throw new FileNotFoundException(url.toExternalForm());
+            }
+            return new URLConnection(url) {
+
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(grammar);
+                }
+
+                @Override
+                public int getContentLength() {
+                    return grammar.length;
+                }
+
+                @Override
+                public String getContentType() {
+                    return "application/jsgf";
+                }
+
+            };
+        }
+
+    }
+
+}
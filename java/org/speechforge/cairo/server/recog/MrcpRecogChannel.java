@@ -22,13 +22,9 @@
  */
 package org.speechforge.cairo.server.recog;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.EnumSet;
 import java.util.concurrent.TimeoutException;
 
@@ -64,6 +60,13 @@ public class MrcpRecogChannel extends MrcpGenericChannel implements RecogOnlyReq
 
     static Logger _logger = Logger.getLogger(MrcpRecogChannel.class);
 
+    /**
+     * Scheme of the URIs referencing grammars defined in the session by DEFINE-GRAMMAR.
+     */
+    public static final String SESSION_URI_SCHEME = "session:";
+
+    private static final String JSGF_CONTENT_TYPE = "application/jsgf";
+
     public static Long DEFAULT_NO_INPUT_TIMEOUT = new Long(10000);
     public static Boolean DEFAULT_START_INPUT_TIMERS = Boolean.TRUE;
 
@@ -80,20 +83,107 @@ public class MrcpRecogChannel extends MrcpGenericChannel implements RecogOnlyReq
      * TODOC
      * @param channelID 
      * @param rtpChannel 
-     * @param baseGrammarDir 
+     * @param grammarStore store of the grammars shared by the channels.
      */
-    public MrcpRecogChannel(String channelID, RTPRecogChannel rtpChannel, File baseGrammarDir) {
+    public MrcpRecogChannel(String channelID, RTPRecogChannel rtpChannel, GrammarStore grammarStore) {
+        this(channelID, rtpChannel, grammarStore, new GrammarFetcher(grammarStore, null));
+    }
+
+    /**
+     * TODOC
+     * @param channelID 
+     * @param rtpChannel 
+     * @param grammarStore store of the grammars shared by the channels.
+     * @param grammarFetcher fetcher of the grammars referenced by URI, shared by the channels.
+     */
+    public MrcpRecogChannel(String channelID, RTPRecogChannel rtpChannel, GrammarStore grammarStore,
+            GrammarFetcher grammarFetcher) {
         //_channelID = channelID;
         _rtpChannel = rtpChannel;
-        _grammarManager = new GrammarManager(channelID, baseGrammarDir);
+        _grammarManager = new GrammarManager(channelID, grammarStore, grammarFetcher);
+    }
+
+    /**
+     * Releases the grammars of the channel once it is closed.
+     */
+    public void close() {
+        _grammarManager.close();
     }
 
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.RecogOnlyRequestHandler#defineGrammar(org.mrcp4j.message.request.MrcpRequestFactory.UnimplementedRequest, org.mrcp4j.server.MrcpSession)
      */
     public synchronized MrcpResponse defineGrammar(UnimplementedRequest request, MrcpSession session) {
-        // TODO Auto-generated method stub
-        return null;
+        MrcpHeader completionCauseHeader = null;
+        MrcpHeader completionReasonHeader = null;
+        short statusCode = -1;
+
+        _logger.debug(request.toString());
+        String grammarID = getGrammarID(request);
+        if (_state == RECOGNIZING) {
+            statusCode = MrcpResponse.STATUS_METHOD_NOT_VALID_IN_STATE;
+        } else if (grammarID == null || !request.hasContent()) {
+            // defined grammars are referenced by their content id
+            statusCode = MrcpResponse.STATUS_MANDATORY_HEADER_MISSING;
+        } else {
+            String contentType = request.getContentType();
+            GrammarLocation grammarLocation = null;
+            try {
+                if (contentType.equalsIgnoreCase(JSGF_CONTENT_TYPE)) {
+                    URL url = null;
+                    try {
+                        // the content may be the url of the grammar rather than the grammar itself
+                        url = new URL(request.getContent().trim());
+                    } catch (MalformedURLException e) {
+                        grammarLocation = _grammarManager.saveGrammar(grammarID, request.getContent());
+                    }
+                    if (url != null) {
+                        grammarLocation = _grammarManager.fetchGrammar(grammarID, url);
+                    }
+                } else if (contentType.equalsIgnoreCase("text/uri-list")) {
+                    String[] uris = request.getContent().trim().split("\\s+");
+                    if (uris.length == 1) {
+                        grammarLocation = _grammarManager.fetchGrammar(grammarID, new URL(uris[0]));
+                    } else {
+                        // the content id names a single grammar, each grammar of a list is defined on its own
+                        statusCode = MrcpResponse.STATUS_UNSUPPORTED_HEADER_VALUE;
+                        completionReasonHeader = MrcpHeaderName.COMPLETION_REASON.constructHeader(
+                                "Only one URI per text/uri-list grammar definition is supported");
+                    }
+                } else {
+                    statusCode = MrcpResponse.STATUS_UNSUPPORTED_HEADER_VALUE;
+                }
+            } catch (IOException e) {
+                _logger.debug(e, e);
+                statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
+                CompletionCause completionCause = new CompletionCause((short) 4, "grammar-load-failure");
+                completionCauseHeader = MrcpHeaderName.COMPLETION_CAUSE.constructHeader(completionCause);
+                completionReasonHeader = MrcpHeaderName.COMPLETION_REASON.constructHeader(e.getMessage());
+            }
+
+            if (grammarLocation != null) {
+                // compile ahead of the recognitions referencing the grammar, compilation errors are reported
+                // by the RECOGNIZE that loads the grammar
+                _rtpChannel.compileGrammar(grammarLocation, JSGF_CONTENT_TYPE);
+                statusCode = MrcpResponse.STATUS_SUCCESS;
+                CompletionCause completionCause = new CompletionCause((short) 0, "success");
+                completionCauseHeader = MrcpHeaderName.COMPLETION_CAUSE.constructHeader(completionCause);
+            }
+        }
+
+        MrcpResponse response = session.createResponse(statusCode, MrcpRequestState.COMPLETE);
+        response.addHeader(completionCauseHeader);
+        response.addHeader(completionReasonHeader);
+        return response;
+    }
+
+    private static String getGrammarID(UnimplementedRequest request) {
+        MrcpHeader contentIdHeader = request.getHeader(MrcpHeaderName.CONTENT_ID);
+        String grammarID = (contentIdHeader == null) ? null : contentIdHeader.getValueString().trim();
+        if (grammarID != null && grammarID.startsWith("<") && grammarID.endsWith(">")) {
+            grammarID = grammarID.substring(1, grammarID.length() - 1);
+        }
+        return (grammarID == null || grammarID.length() == 0) ? null : grammarID;
     }
 
     /* (non-Javadoc)
@@ -119,15 +209,13 @@ public class MrcpRecogChannel extends MrcpGenericChannel implements RecogOnlyReq
                 _logger.info("Content: " + request.getContent());
                 if (contentType.equalsIgnoreCase("application/jsgf")) {
                 	_logger.debug("processing jsgf");
-                    // save grammar to file
-                    MrcpHeader contentIdHeader = request.getHeader(MrcpHeaderName.CONTENT_ID);
-                    String grammarID = (contentIdHeader == null) ? null : contentIdHeader.getValueString();
+                    String grammarID = getGrammarID(request);
                     try {
-                        // grammarLocation = _grammarManager.saveGrammar(grammarID, request.getContent());
-                    	grammarLocation = new GrammarLocation(new URL(request.getContent()));
-                    } catch (IOException e) {
-                        _logger.debug(e, e);
-                        statusCode = MrcpResponse.STATUS_SERVER_INTERNAL_ERROR;
+                        // the content may be the url of the grammar rather than the grammar itself
+                    	grammarLocation = new GrammarLocation(new URL(request.getContent().trim()));
+                    } catch (MalformedURLException e) {
+                        // save inline grammar to store
+                        grammarLocation = _grammarManager.saveGrammar(grammarID, request.getContent());
                     }
                 } else if (contentType.equalsIgnoreCase("text/uri-list")) {
                     String text = request.getContent();
@@ -140,45 +228,25 @@ public class MrcpRecogChannel extends MrcpGenericChannel implements RecogOnlyReq
                     }
                     //for (int i=0; i<uris.length;i++) {
                     for (int i=0; i<1;i++) {
+                        String uri = uris[i].trim();
+                        if (uri.startsWith(SESSION_URI_SCHEME)) {
+                            // grammar defined by DEFINE-GRAMMAR, compiled for the jsgf rec engines
+                            grammarLocation = _grammarManager.getGrammarLocation(uri.substring(SESSION_URI_SCHEME.length()));
+                            contentType = JSGF_CONTENT_TYPE;
+                            if (grammarLocation == null) {
+                                statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
+                                CompletionCause completionCause = new CompletionCause((short) 4, "grammar-load-failure");
+                                completionCauseHeader = MrcpHeaderName.COMPLETION_CAUSE.constructHeader(completionCause);
+                                completionReasonHeader = MrcpHeaderName.COMPLETION_REASON.constructHeader("Grammar not defined: " + uri);
+                            }
+                            continue;
+                        }
                         try {
-
-                            URL url = new URL(uris[i]);
-                            URLConnection uc = url.openConnection();
-                            _logger.debug(uris[i]+"  "+uc.getContentType());
-                            
-                            //TODO:  Should replace this check content type and not always assume it is JSGF 
+                            //TODO:  Should check content type and not always assume it is JSGF 
                             //       (But using the URI-LIST as a work around for large grammars not supported in mrcp4j 
                             //        and in some cases the uri does not hav a content type (file uri's)).
-                            //if ((uc.getContentType().equals("text/plain")) ||                //TODO: Remove this should not assume text/plain is jsgf
-                            //    (uc.getContentType().equals("application/jsgf"))){
-                               BufferedReader in = new BufferedReader(
-                                                    new InputStreamReader(
-                                                    uc.getInputStream()));
-                               
-                               //TODO: Make this more efficient
-                               String inputLine;
-                               String grammarText = new String();
-                               while ((inputLine = in.readLine()) != null) {
-                                   grammarText = grammarText +inputLine+"\n";
-                               }
-                               in.close();
-                              _logger.debug(grammarText);
-                               
-                               // save grammar to file
-                               MrcpHeader contentIdHeader = request.getHeader(MrcpHeaderName.CONTENT_ID);
-                               String grammarID = (contentIdHeader == null) ? null : contentIdHeader.getValueString();
-                               try {
-                                   grammarLocation = _grammarManager.saveGrammar(grammarID, grammarText);
-                               } catch (IOException e) {
-                                   _logger.debug(e, e);
-                                   statusCode = MrcpResponse.STATUS_SERVER_INTERNAL_ERROR;
-                               }
-                           
-                            //} else {
-                            //    _logger.warn("Unsupported content type for in the recognize request: "+ uc.getContentType());
-                            //}
-                      
-                            
+                            // fetch grammar to store, cached grammars are compiled already
+                            grammarLocation = _grammarManager.fetchGrammar(getGrammarID(request), new URL(uri));
                         } catch (MalformedURLException e) {
                             _logger.debug(e, e);
                             statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
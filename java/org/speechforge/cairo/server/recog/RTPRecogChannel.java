@@ -62,6 +62,8 @@ public class RTPRecogChannel {
 
 	// private ObjectPool _recEnginePool;
 	private RecogInterface _recInterface;
+	// lease of the rec engine of the recognition in progress
+	private ActiveRecognizer _activeRecog;
 	private RTPStreamReplicator _replicator;
 
 	RecogListener _recogListener;
@@ -188,7 +190,7 @@ public class RTPRecogChannel {
 		try {
 			_logger.debug("Borrowing recognition engine from object pool...");
 			// _recEngine = (SphinxRecEngine) _recEnginePool.borrowObject();
-			_recInterface.activateRecEngine(appType, grammarLocation, hotword);
+			_activeRecog = _recInterface.activateRecEngine(appType, grammarLocation, hotword);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -209,7 +211,7 @@ public class RTPRecogChannel {
 			_processor.addControllerListener(new ProcessorStarter());
 			_processor.start();
 
-			_recInterface.startRecognition(dataSource, _recogListener);
+			_activeRecog.startRecognition(dataSource, _recogListener);
 
 			if (noInputTimeout > 0) {
 				startInputTimers(noInputTimeout);
@@ -221,6 +223,16 @@ public class RTPRecogChannel {
 		}
 	}
 
+	/**
+	 * Compiles a grammar in the background, ahead of its recognitions.
+	 * 
+	 * @param grammarLocation
+	 * @param appType
+	 */
+	public void compileGrammar(GrammarLocation grammarLocation, String appType) {
+		_recInterface.compileGrammar(appType, grammarLocation);
+	}
+
 	public void setState(short newState) {
 		_state = newState;
 	}
@@ -275,7 +287,17 @@ public class RTPRecogChannel {
 		 * null; } else { _logger.warn("No recengine to return to pool!"); }
 		 */
 
-		_recInterface.returnRecEngine();
+		if (_activeRecog != null) {
+			_logger.debug("Returning recengine to pool...");
+			try {
+				_activeRecog.returnRecEngine();
+			} catch (Exception e) {
+				_logger.debug(e, e);
+			}
+			_activeRecog = null;
+		} else {
+			_logger.warn("No recengine to return to pool!");
+		}
 
 	}
 
@@ -1,83 +1,110 @@
 package org.speechforge.cairo.server.recog;
 
-import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-
-import javax.media.protocol.PushBufferDataSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.pool.ObjectPool;
 import org.apache.log4j.Logger;
+import org.speechforge.cairo.exception.ResourceUnavailableException;
 import org.speechforge.cairo.server.config.ReceiverConfig;
+import org.speechforge.cairo.server.recog.sphinx.GrammarCompiler;
 import org.speechforge.cairo.server.recog.sphinx.SphinxRecEngineFactory;
 
+/**
+ * Hands out the rec engines of a receiver, shared by its recognizer channels.
+ * Every recognition leases a rec engine of its own as an
+ * {@link ActiveRecognizer}, so that as many recognitions as there are
+ * configured engines run in parallel.
+ */
 public class RecogInterface {
 
 	static Logger _logger = Logger.getLogger(RecogInterface.class);
 
-	private HashMap<String, ObjectPool> _recPools;
-	private ActiveRecognizer _activeRecog;
+	public static final String JSGF_APP_TYPE = "application/jsgf";
+	public static final String URI_LIST_APP_TYPE = "text/uri-list";
+
+	// created up front, never modified while recognitions are leased
+	private Map<String, ObjectPool> _recPools = new ConcurrentHashMap<String, ObjectPool>();
+	private Map<String, GrammarCompiler> _grammarCompilers = new ConcurrentHashMap<String, GrammarCompiler>();
 	private ReceiverConfig _config;
 
-	public RecogInterface(ReceiverConfig config) {
-		_recPools = new HashMap<String, ObjectPool>();
+	public RecogInterface(ReceiverConfig config) throws InstantiationException {
 		_config = config;
 		initialize();
 	}
-	
-	public void initialize(){
-		try {
-			_recPools.put(
-					"application/jsgf",
-					SphinxRecEngineFactory.createObjectPool(
-							_config.getSphinxConfigURL(),
-							_config.getEngines()));
-		} catch (InstantiationException e) {
-			e.printStackTrace();
+
+	public void initialize() throws InstantiationException {
+		createRecPool(JSGF_APP_TYPE);
+		// grammars fetched from uri lists are stored as jsgf too, decoding
+		// them with the same rec engines shares their compiled grammars
+		_recPools.put(URI_LIST_APP_TYPE, _recPools.get(JSGF_APP_TYPE));
+		if (_grammarCompilers.containsKey(JSGF_APP_TYPE)) {
+			_grammarCompilers.put(URI_LIST_APP_TYPE, _grammarCompilers.get(JSGF_APP_TYPE));
 		}
 	}
 
-	public void startRecognition(PushBufferDataSource dataSource,
-			RecogListener recogListener) throws UnsupportedEncodingException {
-		_activeRecog.startRecognition(dataSource, recogListener);
+	private void createRecPool(String appType) throws InstantiationException {
+		SphinxRecEngineFactory factory = new SphinxRecEngineFactory(
+				_config.getSphinxConfigURL(), _config.getGrammarCacheSize());
+		_recPools.put(appType, SphinxRecEngineFactory.createObjectPool(
+				factory, _config.getEngines()));
+		if (factory.getGrammarCompiler() != null) {
+			_grammarCompilers.put(appType, factory.getGrammarCompiler());
+		}
 	}
 
-	public void startSphinxGrammar() {
-
+	/**
+	 * Compiles a grammar in the background, e.g. a grammar defined ahead of
+	 * its recognitions, so that recognitions with the grammar find it
+	 * compiled.
+	 * 
+	 * @param appType
+	 *            the type of the rec engines the grammar is used with.
+	 * @param grammarLocation
+	 *            location of the grammar.
+	 */
+	public void compileGrammar(String appType, GrammarLocation grammarLocation) {
+		GrammarCompiler grammarCompiler = _grammarCompilers.get(appType);
+		if (grammarCompiler != null) {
+			grammarCompiler.compileInBackground(grammarLocation);
+		} else {
+			_logger.debug("Compiled grammars not cached for " + appType
+					+ ", grammar is compiled on recognition");
+		}
 	}
 
-	public void activateRecEngine(String appType,
+	/**
+	 * Leases a rec engine for a recognition and loads the grammar of the
+	 * recognition into it.
+	 * 
+	 * @param appType
+	 *            the type of the grammar.
+	 * @param grammarLocation
+	 *            location of the grammar.
+	 * @param hotword
+	 * @return the lease of the rec engine, to be returned once the
+	 *         recognition is over.
+	 * @throws Exception
+	 *             if no rec engine is available or the grammar could not be
+	 *             loaded.
+	 */
+	public ActiveRecognizer activateRecEngine(String appType,
 			GrammarLocation grammarLocation, boolean hotword) throws Exception {
-		if (_recPools.containsKey(appType) == false) {
-			try {
-				_recPools.put(
-						appType,
-						SphinxRecEngineFactory.createObjectPool(
-								_config.getSphinxConfigURL(),
-								_config.getEngines()));
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			}
+		ObjectPool recPool = (appType == null) ? null : _recPools.get(appType);
+		if (recPool == null) {
+			throw new ResourceUnavailableException("No rec engines for grammar type: " + appType);
 		}
-		ObjectPool recPool = _recPools.get(appType);
-		_activeRecog = new ActiveRecognizer(recPool, recPool.borrowObject(),
-				appType);
-		_logger.debug("Loading grammar...");
-		_activeRecog.loadLM(grammarLocation);
-		_activeRecog.setHotword(hotword);
-	}
-
-	public void returnRecEngine() {
-		if (_activeRecog != null) {
-			_logger.debug("Returning recengine to pool...");
-			try {
-				_activeRecog.returnRecEngine();
-			} catch (Exception e) {
-				_logger.debug(e, e);
-			}
-			_activeRecog = null;
-		} else {
-			_logger.warn("No recengine to return to pool!");
+		ActiveRecognizer activeRecog = new ActiveRecognizer(recPool,
+				recPool.borrowObject(), appType);
+		try {
+			_logger.debug("Loading grammar...");
+			activeRecog.loadLM(grammarLocation);
+			activeRecog.setHotword(hotword);
+		} catch (Exception e) {
+			activeRecog.returnRecEngine();
+			throw e;
 		}
+		return activeRecog;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.recog.sphinx;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.speech.recognition.GrammarException;
+import javax.speech.recognition.RuleGrammar;
+
+import edu.cmu.sphinx.jsapi.JSGFGrammar;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+/**
+ * JSGF grammar whose compiled grammar graphs can be kept in a {@link CompiledGrammarCache} and activated again
+ * by swapping in the cached graph, instead of parsing and compiling the grammar every time it is used.
+ * Configured in place of {@code edu.cmu.sphinx.jsapi.JSGFGrammar} as the grammar of the linguist; the linguist
+ * only rebuilds its search graph when a different grammar graph is activated.
+ */
+public class CachingJSGFGrammar extends JSGFGrammar {
+
+    // null while the graph last compiled by the superclass is in use
+    private CompiledGrammar _active;
+
+    // a grammar only compiling grammars for others is not allocated by a linguist
+    private boolean _allocated;
+
+    /**
+     * Parses and compiles a JSGF grammar without changing the active grammar, so that grammars can be compiled
+     * in the background while another grammar is in use.
+     * @param baseURL base URL of the grammar and its imports.
+     * @param grammarName name of the grammar.
+     * @return the compiled grammar, to be cached and activated.
+     * @throws IOException if the grammar could not be read.
+     * @throws GrammarException if the grammar is invalid.
+     */
+    public synchronized CompiledGrammar compile(URL baseURL, String grammarName) throws IOException, GrammarException {
+        long start = System.currentTimeMillis();
+        if (!_allocated) {
+            allocate();
+        }
+        CompiledGrammar active = _active;
+        // compiling goes through the graph accessors of the superclass
+        _active = null;
+        try {
+            setBaseURL(baseURL);
+            loadJSGF(grammarName);
+            return new CompiledGrammar(super.getRuleGrammar(), super.getInitialNode(), super.getGrammarNodes(),
+                    System.currentTimeMillis() - start);
+        } finally {
+            _active = active;
+        }
+    }
+
+    /**
+     * Makes a previously compiled grammar the active grammar, e.g. one taken from a {@link CompiledGrammarCache}.
+     * @param grammar the compiled grammar.
+     */
+    public synchronized void activate(CompiledGrammar grammar) {
+        _active = grammar;
+    }
+
+    /**
+     * @return the active grammar, or {@code null} if the active grammar was not compiled by
+     * {@link #compile(URL, String)}, e.g. the grammar configured for the linguist.
+     */
+    public synchronized CompiledGrammar getActiveGrammar() {
+        return _active;
+    }
+
+    /* (non-Javadoc)
+     * @see edu.cmu.sphinx.jsapi.JSGFGrammar#getRuleGrammar()
+     */
+    @Override
+    public synchronized RuleGrammar getRuleGrammar() {
+        return (_active == null) ? super.getRuleGrammar() : _active.getRuleGrammar();
+    }
+
+    /* (non-Javadoc)
+     * @see edu.cmu.sphinx.jsapi.JSGFGrammar#getInitialNode()
+     */
+    @Override
+    public synchronized GrammarNode getInitialNode() {
+        return (_active == null) ? super.getInitialNode() : _active.getInitialNode();
+    }
+
+    /* (non-Javadoc)
+     * @see edu.cmu.sphinx.linguist.language.grammar.Grammar#getGrammarNodes()
+     */
+    @Override
+    public synchronized Set<GrammarNode> getGrammarNodes() {
+        return (_active == null) ? super.getGrammarNodes() : _active.getGrammarNodes();
+    }
+
+    /* (non-Javadoc)
+     * @see edu.cmu.sphinx.linguist.language.grammar.Grammar#allocate()
+     */
+    @Override
+    public synchronized void allocate() throws IOException {
+        super.allocate();
+        _allocated = true;
+    }
+
+    /* (non-Javadoc)
+     * @see edu.cmu.sphinx.linguist.language.grammar.Grammar#deallocate()
+     */
+    @Override
+    public synchronized void deallocate() {
+        _active = null;
+        _allocated = false;
+        super.deallocate();
+    }
+
+    /**
+     * The graph of a compiled JSGF grammar, immutable once compiled and shared by the rec engines activating the
+     * grammar.
+     */
+    public static class CompiledGrammar {
+
+        private RuleGrammar _ruleGrammar;
+        private GrammarNode _initialNode;
+        private Set<GrammarNode> _grammarNodes;
+        private long _compileTime;
+
+        CompiledGrammar(RuleGrammar ruleGrammar, GrammarNode initialNode, Set<GrammarNode> grammarNodes,
+                long compileTime) {
+            _ruleGrammar = ruleGrammar;
+            _initialNode = initialNode;
+            _grammarNodes = Collections.unmodifiableSet(new HashSet<GrammarNode>(grammarNodes));
+            _compileTime = compileTime;
+        }
+
+        /**
+         * @return the rule grammar, used to parse recognition results.
+         */
+        public RuleGrammar getRuleGrammar() {
+            return _ruleGrammar;
+        }
+
+        /**
+         * @return the initial node of the grammar graph.
+         */
+        public GrammarNode getInitialNode() {
+            return _initialNode;
+        }
+
+        /**
+         * @return all nodes of the grammar graph.
+         */
+        public Set<GrammarNode> getGrammarNodes() {
+            return _grammarNodes;
+        }
+
+        /**
+         * @return the time in milliseconds it took to parse and compile the grammar.
+         */
+        public long getCompileTime() {
+            return _compileTime;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.recog.sphinx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.speechforge.cairo.server.recog.GrammarLocation;
+import org.speechforge.cairo.server.recog.sphinx.CachingJSGFGrammar.CompiledGrammar;
+
+/**
+ * LRU cache of compiled JSGF grammars shared by the rec engines of a Sphinx configuration, keyed by a hash of
+ * the content of each grammar and the grammars it imports.  Grammars that are saved under a new name for every
+ * RECOGNIZE are thus only compiled the first time their content is seen.
+ */
+public class CompiledGrammarCache {
+
+    /**
+     * Default maximum number of compiled grammars kept.
+     */
+    public static final int DEFAULT_MAX_GRAMMARS = 64;
+
+    // import <com.acme.grammar.rule>; or import <com.acme.grammar.*>;
+    private static final Pattern IMPORT_PATTERN = Pattern.compile("import\\s*<\\s*([^>\\s]+)\\.[^.>\\s]+\\s*>");
+
+    private Map<String, CompiledGrammar> _grammars;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _compiles = 0;
+    private long _compileTime = 0;
+    private long _maxCompileTime = 0;
+
+    /**
+     * TODOC
+     */
+    public CompiledGrammarCache() {
+        this(DEFAULT_MAX_GRAMMARS);
+    }
+
+    /**
+     * TODOC
+     * @param maxGrammars maximum number of compiled grammars kept, the least recently used are evicted.
+     */
+    public CompiledGrammarCache(final int maxGrammars) {
+        if (maxGrammars < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of compiled grammars: " + maxGrammars);
+        }
+        // access ordered so that the least recently used grammar is evicted
+        _grammars = new LinkedHashMap<String, CompiledGrammar>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledGrammar> eldest) {
+                return size() > maxGrammars;
+            }
+        };
+    }
+
+    /**
+     * Computes the cache key of a grammar from its content and the content of the grammars it imports (as
+     * resolved by Sphinx, relative to the base URL of the grammar).
+     * @param location the location of the grammar.
+     * @return the cache key.
+     * @throws IOException if the grammar could not be read.
+     */
+    public static String createKey(GrammarLocation location) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        URL baseURL = location.getBaseURL();
+        if (!baseURL.toExternalForm().endsWith("/")) {
+            baseURL = new URL(baseURL.toExternalForm() + '/');
+        }
+        byte[] grammar = read(new URL(baseURL, location.getFilename()));
+        digest.update(grammar);
+        digestImports(digest, baseURL, grammar, new HashSet<String>());
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    private static void digestImports(MessageDigest digest, URL baseURL, byte[] grammar, Set<String> imported)
+      throws IOException {
+
+        Matcher matcher = IMPORT_PATTERN.matcher(new String(grammar, "UTF-8"));
+        while (matcher.find()) {
+            String grammarName = matcher.group(1);
+            if (imported.add(grammarName)) {
+                byte[] importedGrammar;
+                try {
+                    importedGrammar = read(new URL(baseURL, grammarName.replace('.', '/') + '.'
+                            + GrammarLocation.DEFAULT_EXTENSION));
+                } catch (IOException e) {
+                    // compiling the grammar reports the missing import
+                    importedGrammar = new byte[0];
+                }
+                digest.update(grammarName.getBytes("UTF-8"));
+                digest.update(importedGrammar);
+                digestImports(digest, baseURL, importedGrammar, imported);
+            }
+        }
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream is = url.openStream();
+        try {
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                content.write(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * TODOC
+     * @param key the cache key of the grammar.
+     * @return the compiled grammar, or {@code null} if it is not cached.
+     */
+    public synchronized CompiledGrammar get(String key) {
+        CompiledGrammar grammar = _grammars.get(key);
+        if (grammar == null) {
+            _misses++;
+        } else {
+            _hits++;
+        }
+        return grammar;
+    }
+
+    /**
+     * Adds a grammar that was just compiled, evicting the least recently used grammar if the cache is full.
+     * @param key the cache key of the grammar.
+     * @param grammar the compiled grammar.
+     */
+    public synchronized void put(String key, CompiledGrammar grammar) {
+        _grammars.put(key, grammar);
+        _compiles++;
+        _compileTime += grammar.getCompileTime();
+        _maxCompileTime = Math.max(_maxCompileTime, grammar.getCompileTime());
+    }
+
+    /**
+     * @return the number of compiled grammars kept.
+     */
+    public synchronized int size() {
+        return _grammars.size();
+    }
+
+    /**
+     * @return the number of grammars found in the cache.
+     */
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    /**
+     * @return the number of grammars not found in the cache.
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    /**
+     * @return the share of grammars found in the cache, 0 if none was looked up yet.
+     */
+    public synchronized double getHitRate() {
+        return (_hits + _misses == 0) ? 0 : (double) _hits / (_hits + _misses);
+    }
+
+    /**
+     * @return the mean time in milliseconds it took to compile the grammars added to the cache.
+     */
+    public synchronized long getMeanCompileTime() {
+        return (_compiles == 0) ? 0 : _compileTime / _compiles;
+    }
+
+    /**
+     * @return the longest time in milliseconds it took to compile a grammar added to the cache.
+     */
+    public synchronized long getMaxCompileTime() {
+        return _maxCompileTime;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "CompiledGrammarCache[grammars=" + _grammars.size() + ", hits=" + _hits + ", misses=" + _misses
+                + ", hitRate=" + Math.round(getHitRate() * 100) + "%, meanCompileTime=" + getMeanCompileTime()
+                + "ms, maxCompileTime=" + _maxCompileTime + "ms]";
+    }
+
+}
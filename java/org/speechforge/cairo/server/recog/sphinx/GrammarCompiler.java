@@ -0,0 +1,165 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.recog.sphinx;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.speech.recognition.GrammarException;
+
+import org.apache.log4j.Logger;
+import org.speechforge.cairo.server.recog.GrammarLocation;
+
+/**
+ * Compiles the grammars of the rec engines sharing a {@link CachingJSGFGrammar} into their
+ * {@link CompiledGrammarCache}, either on demand when a grammar is loaded for recognition or ahead of time in the
+ * background, e.g. for grammars defined by DEFINE-GRAMMAR.  Concurrent requests for the same grammar wait for
+ * a single compilation.
+ */
+public class GrammarCompiler {
+
+    private static Logger _logger = Logger.getLogger(GrammarCompiler.class);
+
+    private CachingJSGFGrammar _grammar;
+    private CompiledGrammarCache _grammarCache;
+
+    // compilations in progress by cache key
+    private Map<String, FutureTask<CachingJSGFGrammar.CompiledGrammar>> _pending =
+        new HashMap<String, FutureTask<CachingJSGFGrammar.CompiledGrammar>>();
+
+    private ExecutorService _executor;
+
+    /**
+     * TODOC
+     * @param grammar the grammar shared by the rec engines.
+     * @param grammarCache cache of the compiled grammars of the rec engines.
+     */
+    public GrammarCompiler(CachingJSGFGrammar grammar, CompiledGrammarCache grammarCache) {
+        _grammar = grammar;
+        _grammarCache = grammarCache;
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GrammarCompiler");
+                t.setDaemon(true);
+                // compiling ahead of time must not hold up the recognitions in progress
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Gets a grammar from the cache, compiling it if it is not cached yet.
+     * @param grammarLocation location of the grammar.
+     * @return the compiled grammar, to be activated by a rec engine.
+     * @throws IOException if the grammar could not be read.
+     * @throws GrammarException if the grammar is invalid.
+     */
+    public CachingJSGFGrammar.CompiledGrammar compile(final GrammarLocation grammarLocation)
+      throws IOException, GrammarException {
+
+        final String key = CompiledGrammarCache.createKey(grammarLocation);
+        CachingJSGFGrammar.CompiledGrammar compiled = _grammarCache.get(key);
+        if (compiled != null) {
+            return compiled;
+        }
+
+        FutureTask<CachingJSGFGrammar.CompiledGrammar> task;
+        boolean compiling = false;
+        synchronized (_pending) {
+            task = _pending.get(key);
+            if (task == null) {
+                task = new FutureTask<CachingJSGFGrammar.CompiledGrammar>(
+                        new Callable<CachingJSGFGrammar.CompiledGrammar>() {
+                    public CachingJSGFGrammar.CompiledGrammar call() throws IOException, GrammarException {
+                        _logger.info("Compiling grammar " + grammarLocation.getGrammarName());
+                        CachingJSGFGrammar.CompiledGrammar compiled = _grammar.compile(
+                                grammarLocation.getBaseURL(), grammarLocation.getGrammarName());
+                        _grammarCache.put(key, compiled);
+                        return compiled;
+                    }
+                });
+                _pending.put(key, task);
+                compiling = true;
+            }
+        }
+
+        try {
+            if (compiling) {
+                task.run();
+            }
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for grammar compilation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GrammarException) {
+                throw (GrammarException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            if (compiling) {
+                synchronized (_pending) {
+                    _pending.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a grammar in the background so that it is ready when it is first loaded for recognition.
+     * Failures are only logged, loading the grammar reports them again.
+     * @param grammarLocation location of the grammar.
+     */
+    public void compileInBackground(final GrammarLocation grammarLocation) {
+        _executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    compile(grammarLocation);
+                } catch (Exception e) {
+                    _logger.warn("Background compilation of grammar " + grammarLocation.getGrammarName()
+                            + " failed: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the cache of compiled grammars.
+     */
+    public CompiledGrammarCache getGrammarCache() {
+        return _grammarCache;
+    }
+
+}
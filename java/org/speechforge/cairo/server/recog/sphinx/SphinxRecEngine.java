@@ -81,6 +81,7 @@ public class SphinxRecEngine extends AbstractPoolableObject implements SpeechEve
     private int _id;
     private Recognizer _recognizer;
     private JSGFGrammar _jsgfGrammar;
+    private GrammarCompiler _grammarCompiler;
     private RawAudioProcessor _rawAudioProcessor;
 
     private RawAudioTransferHandler _rawAudioTransferHandler;
@@ -89,6 +90,22 @@ public class SphinxRecEngine extends AbstractPoolableObject implements SpeechEve
     private boolean hotword = false;
 
     public SphinxRecEngine(ConfigurationManager cm, int id)
+      throws IOException, PropertyException, InstantiationException {
+        this(cm, id, null);
+    }
+
+    /**
+     * TODOC
+     * @param cm
+     * @param id
+     * @param grammarCompiler compiler of the grammars cached for the rec engines of the configuration, or
+     * {@code null} to compile the grammar of every recognition.  Only used if the configured grammar is a
+     * {@link CachingJSGFGrammar}.
+     * @throws IOException
+     * @throws PropertyException
+     * @throws InstantiationException
+     */
+    public SphinxRecEngine(ConfigurationManager cm, int id, GrammarCompiler grammarCompiler)
       throws IOException, PropertyException, InstantiationException {
 
     	_logger.info("Creating Engine # "+id);
@@ -96,7 +113,18 @@ public class SphinxRecEngine extends AbstractPoolableObject implements SpeechEve
         _recognizer = (Recognizer) cm.lookup("recognizer"+id);
         _recognizer.allocate();
 	_logger.info("lookup JSGFGrammar");
-        _jsgfGrammar = (JSGFGrammar) cm.lookup("grammar");
+        // recognitions are isolated if the rec engine has a linguist and grammar of its own
+        Object grammar = cm.lookup("grammar"+id);
+        if (grammar == null) {
+            _logger.warn("No grammar" + id + " configured, rec engine shares the grammar of the other rec engines");
+            grammar = cm.lookup("grammar");
+        }
+        _jsgfGrammar = (JSGFGrammar) grammar;
+        if (grammarCompiler != null && _jsgfGrammar instanceof CachingJSGFGrammar) {
+            _grammarCompiler = grammarCompiler;
+        } else if (grammarCompiler != null) {
+            _logger.info("Grammar is not a CachingJSGFGrammar, compiled grammars are not cached");
+        }
 
 //	FastDictionary _fast_dictionary = (FastDictionary) cm.lookup("dictionary");
 //	_logger.info("lookup dictionary");
@@ -162,12 +190,20 @@ public class SphinxRecEngine extends AbstractPoolableObject implements SpeechEve
     }
 
     /**
-     * TODOC
+     * Loads the grammar of a recognition.  A grammar whose content was compiled before is taken from the
+     * compiled grammar cache if there is one, waiting for the grammar if it is being compiled in the background.
      * @param grammarLocation
      * @throws IOException
      * @throws GrammarException
      */
     public synchronized void loadJSGF(GrammarLocation grammarLocation) throws IOException, GrammarException {
+        if (_grammarCompiler != null) {
+            ((CachingJSGFGrammar) _jsgfGrammar).activate(_grammarCompiler.compile(grammarLocation));
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("loadJSGF(): completed successfully, " + _grammarCompiler.getGrammarCache());
+            }
+            return;
+        }
     	
     	_logger.info("Allocating grammar");
     	_jsgfGrammar.allocate();
@@ -178,8 +214,20 @@ public class SphinxRecEngine extends AbstractPoolableObject implements SpeechEve
 //	_jsgfGrammar.deallocate();
     }
     
+    /**
+     * Ends the use of the grammar loaded for a recognition.  The grammar stays allocated until the next grammar is
+     * loaded: deallocating it would also deallocate the dictionary, which is shared with the grammars of the other
+     * rec engines and may be in use by their recognitions.
+     */
     public synchronized void deallocateJSGF(){
-    	_jsgfGrammar.deallocate();
+        // the next loadJSGF() replaces the grammar, cached grammars are activated without reallocating it
+    }
+
+    /**
+     * @return the cache of compiled grammars, or {@code null} if compiled grammars are not cached.
+     */
+    public CompiledGrammarCache getGrammarCache() {
+        return (_grammarCompiler == null) ? null : _grammarCompiler.getGrammarCache();
     }
 
     /**
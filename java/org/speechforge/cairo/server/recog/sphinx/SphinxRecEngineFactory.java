@@ -31,7 +31,6 @@ import java.net.URL;
 import edu.cmu.sphinx.util.props.ConfigurationManager;
 
 import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.PoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.Logger;
 
@@ -46,21 +45,55 @@ public class SphinxRecEngineFactory extends AbstractPoolableObjectFactory {
 
     URL _sphinxConfigURL = null;
     ConfigurationManager _cm;
+    private CompiledGrammarCache _grammarCache;
+    private GrammarCompiler _grammarCompiler;
     private int id = 1;
 
     public SphinxRecEngineFactory(URL sphinxConfigURL) {
+        this(sphinxConfigURL, CompiledGrammarCache.DEFAULT_MAX_GRAMMARS);
+    }
+
+    /**
+     * TODOC
+     * @param sphinxConfigURL
+     * @param grammarCacheSize maximum number of compiled grammars cached for the rec engines, 0 to compile the
+     * grammar of every recognition.
+     */
+    public SphinxRecEngineFactory(URL sphinxConfigURL, int grammarCacheSize) {
         _sphinxConfigURL = sphinxConfigURL;
         _cm = new ConfigurationManager(_sphinxConfigURL);
+        // the rec engines share the grammar of the configuration, hence its compiled grammars
+        _grammarCache = (grammarCacheSize > 0) ? new CompiledGrammarCache(grammarCacheSize) : null;
 	_logger.info("_sphinxConfigURL :" + _sphinxConfigURL);
     }
 
+    /**
+     * @return the cache of compiled grammars shared by the rec engines, or {@code null} if disabled.
+     */
+    public CompiledGrammarCache getGrammarCache() {
+        return _grammarCache;
+    }
+
+    /**
+     * @return the compiler of the grammars cached for the rec engines, or {@code null} if compiled grammars are
+     * not cached or no rec engine was created yet.
+     */
+    public synchronized GrammarCompiler getGrammarCompiler() {
+        return _grammarCompiler;
+    }
+
     /* (non-Javadoc)
      * @see org.apache.commons.pool.PoolableObjectFactory#makeObject()
      */
     @Override
-    public PoolableObject makeObject() throws Exception {
-
-        return new SphinxRecEngine(_cm, id++);
+    public synchronized PoolableObject makeObject() throws Exception {
+        if (_grammarCompiler == null && _grammarCache != null) {
+            Object grammar = _cm.lookup("grammar");
+            if (grammar instanceof CachingJSGFGrammar) {
+                _grammarCompiler = new GrammarCompiler((CachingJSGFGrammar) grammar, _grammarCache);
+            }
+        }
+        return new SphinxRecEngine(_cm, id++, _grammarCompiler);
     }
 
     /**
@@ -71,13 +104,41 @@ public class SphinxRecEngineFactory extends AbstractPoolableObjectFactory {
      * @throws InstantiationException if initializing the object pool triggers an exception.
      */
     public static ObjectPool createObjectPool(URL sphinxConfigURL, int instances)
+      throws InstantiationException {
+
+        return createObjectPool(sphinxConfigURL, instances, CompiledGrammarCache.DEFAULT_MAX_GRAMMARS);
+    }
+
+    /**
+     * TODOC
+     * @param sphinxConfigURL
+     * @param instances
+     * @param grammarCacheSize maximum number of compiled grammars cached for the rec engines of the pool, 0 to
+     * compile the grammar of every recognition.
+     * @return
+     * @throws InstantiationException if initializing the object pool triggers an exception.
+     */
+    public static ObjectPool createObjectPool(URL sphinxConfigURL, int instances, int grammarCacheSize)
       throws InstantiationException {
         
         if (_logger.isDebugEnabled()) {
             _logger.debug("creating new rec engine pool... instances: " + instances);
         }
 
-        PoolableObjectFactory factory = new SphinxRecEngineFactory(sphinxConfigURL);
+        return createObjectPool(new SphinxRecEngineFactory(sphinxConfigURL, grammarCacheSize), instances);
+    }
+
+    /**
+     * Creates a pool of rec engines made by a given factory, e.g. to keep hold of the grammar compiler of the
+     * factory.
+     * @param factory
+     * @param instances
+     * @return
+     * @throws InstantiationException if initializing the object pool triggers an exception.
+     */
+    public static ObjectPool createObjectPool(SphinxRecEngineFactory factory, int instances)
+      throws InstantiationException {
+
         GenericObjectPool.Config config = ObjectPoolUtil.getGenericObjectPoolConfig(instances);
 
         ObjectPool objectPool = new GenericObjectPool(factory, config);
@@ -0,0 +1,46 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.resource;
+
+import org.speechforge.cairo.server.tts.PrewarmPrompt;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Lets administration tools pre-warm additional prompts on a running transmitter resource, e.g. the prompts
+ * of a newly deployed application.  Transmitter resources bound in the {@link ResourceRegistry} implement this
+ * interface besides {@link Resource}.
+ */
+public interface PromptPrewarmService extends Remote {
+
+    /**
+     * Starts rendering and caching prompts in the background, progress is reported in the resource log.
+     * @param prompts the prompts to pre-warm.
+     * @return the number of prompts queued for pre-warming.
+     * @throws RemoteException
+     */
+    public int prewarm(List<PrewarmPrompt> prompts) throws RemoteException;
+
+}
@@ -51,6 +51,8 @@ import org.speechforge.cairo.rtp.server.RTPStreamReplicator;
 import org.speechforge.cairo.rtp.server.RTPStreamReplicatorFactory;
 import org.speechforge.cairo.server.config.CairoConfig;
 import org.speechforge.cairo.server.config.ReceiverConfig;
+import org.speechforge.cairo.server.recog.GrammarFetcher;
+import org.speechforge.cairo.server.recog.GrammarStore;
 import org.speechforge.cairo.server.recog.MrcpRecogChannel;
 import org.speechforge.cairo.server.recog.RTPRecogChannel;
 import org.speechforge.cairo.server.recog.RecogInterface;
@@ -65,6 +67,7 @@ import org.speechforge.cairo.server.resource.session.RecorderResources;
 import org.speechforge.cairo.sip.ResourceUnavailableException;
 import org.speechforge.cairo.sip.SdpMessage;
 import org.speechforge.cairo.util.CairoUtil;
+import org.speechforge.cairo.util.http.HttpResourceCache;
 
 /**
  * Implements a {@link org.speechforge.cairo.server.resource.Resource} for handling MRCPv2 requests
@@ -86,13 +89,23 @@ public class ReceiverResource extends ResourceImpl {
         
 
     private File _baseRecordingDir;
-    private File _baseGrammarDir;
+    private static final String HTTP_CACHE_DIR_NAME = "http-cache";
+
+    private GrammarStore _grammarStore;
+    private GrammarFetcher _grammarFetcher;
 
     public ReceiverResource(ReceiverConfig config)
       throws IOException, RemoteException, InstantiationException {
         super(RESOURCE_TYPE);
         _baseRecordingDir = config.getBaseRecordingDir();
-        _baseGrammarDir = config.getBaseGrammarDir();
+        _grammarStore = new GrammarStore(config.getGrammarStoreSize(),
+                new File(config.getBaseGrammarDir(), "store"), config.getGrammarSpillSize());
+        HttpResourceCache httpCache = null;
+        if (config.getHttpCacheSize() > 0) {
+            httpCache = new HttpResourceCache(new File(config.getBaseGrammarDir(), HTTP_CACHE_DIR_NAME),
+                    config.getHttpCacheSize());
+        }
+        _grammarFetcher = new GrammarFetcher(_grammarStore, httpCache);
         _mrcpServer = new MrcpServerSocket(config.getMrcpPort());
         
         InetAddress localIpAddress = CairoUtil.getLocalHost();
@@ -170,7 +183,8 @@ public class ReceiverResource extends ResourceImpl {
                         }
 
                         RTPRecogChannel recog = new RTPRecogChannel(_recogInterface, replicator);
-                        _mrcpServer.openChannel(channelID, new MrcpRecogChannel(channelID, recog, _baseGrammarDir));
+                        MrcpRecogChannel mrcpChannel = new MrcpRecogChannel(channelID, recog, _grammarStore, _grammarFetcher);
+                        _mrcpServer.openChannel(channelID, mrcpChannel);
                         md.getMedia().setMediaPort(_mrcpServer.getPort());
                         rtpmd.get(0).getMedia().setMediaFormats(af.filterOutUnSupportedFormatsInOffer());
                         
@@ -184,6 +198,7 @@ public class ReceiverResource extends ResourceImpl {
                         cr.setChannelId(channelID);
                         ((RecognizerResources)cr).setReplicator(replicator);
                         ((RecognizerResources)cr).setRecog(recog);
+                        ((RecognizerResources)cr).setMrcpChannel(mrcpChannel);
                         sessionChannels.put(channelID, cr);
                         break;
 
@@ -266,6 +281,7 @@ public class ReceiverResource extends ResourceImpl {
             if (channel instanceof RecognizerResources) {
             	RecognizerResources r = (RecognizerResources) channel;
 	            //r.getRecog().closeProcessor();
+            	r.getMrcpChannel().close();
             	r.getReplicator().shutdown();
 	            try {
 	                _replicatorPool.returnObject(r.getReplicator());
@@ -30,9 +30,22 @@ import org.speechforge.cairo.server.resource.session.RecorderResources;
 import org.speechforge.cairo.server.resource.session.TransmitterResources;
 import org.speechforge.cairo.rtp.server.PortPairPool;
 import org.speechforge.cairo.server.tts.MrcpSpeechSynthChannel;
+import org.speechforge.cairo.server.tts.EncodedPromptStore;
+import org.speechforge.cairo.server.tts.PrewarmPrompt;
+import org.speechforge.cairo.server.tts.PromptCache;
+import org.speechforge.cairo.server.tts.PromptFileManager;
+import org.speechforge.cairo.server.tts.MaryEndpointPool;
 import org.speechforge.cairo.server.tts.PromptGeneratorFactory;
+import org.speechforge.cairo.server.tts.PromptGeneratorRouter;
+import org.speechforge.cairo.server.tts.PromptPrewarmer;
+import org.speechforge.cairo.server.tts.PromptSynthesizer;
+import org.speechforge.cairo.server.tts.RTPPacketSender;
+import org.speechforge.cairo.server.tts.RTPSendScheduler;
 import org.speechforge.cairo.server.tts.RTPSpeechSynthChannel;
+import org.speechforge.cairo.server.tts.SilenceTrimmer;
 import org.speechforge.cairo.util.CairoUtil;
+import org.speechforge.cairo.util.audio.G711Codec;
+import org.speechforge.cairo.util.http.HttpResourceCache;
 import org.speechforge.cairo.rtp.AudioFormats;
 import org.speechforge.cairo.sip.ResourceUnavailableException;
 import org.speechforge.cairo.sip.SdpMessage;
@@ -47,6 +60,8 @@ import java.rmi.RemoteException;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.sdp.MediaDescription;
 
@@ -66,19 +81,50 @@ import org.mrcp4j.server.MrcpServerSocket;
  *
  * @author Niels Godfredsen {@literal <}<a href="mailto:ngodfredsen@users.sourceforge.net">ngodfredsen@users.sourceforge.net</a>{@literal >}
  */
-public class TransmitterResource extends ResourceImpl {
+public class TransmitterResource extends ResourceImpl implements PromptPrewarmService {
 
     private static Logger _logger = Logger.getLogger(TransmitterResource.class);
 
     public static final Resource.Type RESOURCE_TYPE = Resource.Type.TRANSMITTER;
 
+    // sub directory of the base prompt directory holding prompts fetched from http and https URIs
+    private static final String HTTP_CACHE_DIR_NAME = "http-cache";
+
     private File _basePromptDir;
 
     private String _speechSynthesizer;
 
+    private PromptCache _promptCache;
+
+    private boolean _streamingPrompts;
+
+    private EncodedPromptStore _encodedPromptStore;
+
+    private HttpResourceCache _httpCache;
+
+    private PromptFileManager _promptFiles;
+
+    private RTPSendScheduler _sendScheduler;
+
+    private long _promptCompletionTail;
+
+    private String _comfortNoise;
+
+    private int _comfortNoiseLevel;
+
     private MrcpServerSocket _mrcpServer;
 
-    private ObjectPool _promptGeneratorPool;
+    private PromptGeneratorRouter _promptGenerators;
+
+    // used while creating the prompt generator pools of the voices
+    private MaryEndpointPool _maryEndpoints;
+    private int _nextFestivalPort;
+
+    private PromptSynthesizer _promptSynthesizer;
+
+    private PromptPrewarmer _promptPrewarmer;
+
+    private ExecutorService _speakExecutor = Executors.newCachedThreadPool();
 
     private PortPairPool _portPairPool;
 
@@ -89,8 +135,48 @@ public class TransmitterResource extends ResourceImpl {
         super(RESOURCE_TYPE);
         _basePromptDir = config.getBasePromptDir();
 	_speechSynthesizer = config.getSpeechSynthesizer();
+        _streamingPrompts = config.isStreamingPrompts();
+        _promptCompletionTail = config.getPromptCompletionTail();
+        _comfortNoise = config.getComfortNoise();
+        _comfortNoiseLevel = config.getComfortNoiseLevel();
+        SilenceTrimmer silenceTrimmer = config.isTrimPromptSilence() ? new SilenceTrimmer() : null;
+        if (_streamingPrompts) {
+            _sendScheduler = new RTPSendScheduler();
+            if (config.getEncodedPromptStoreSize() > 0) {
+                _encodedPromptStore = new EncodedPromptStore(config.getEncodedPromptStoreSize());
+                _encodedPromptStore.setSilenceTrimmer(silenceTrimmer);
+            }
+        }
+        if (config.getPromptCacheDiskSize() > 0) {
+            _promptCache = new PromptCache(new File(_basePromptDir, PromptCache.CACHE_DIR_NAME),
+                    config.getPromptCacheMemorySize(), config.getPromptCacheDiskSize());
+        }
+        if (config.getHttpCacheSize() > 0) {
+            _httpCache = new HttpResourceCache(new File(_basePromptDir, HTTP_CACHE_DIR_NAME), config.getHttpCacheSize());
+        }
+        _promptFiles = new PromptFileManager(_basePromptDir, config.getPromptFileQuota(), _promptCache);
         _mrcpServer = new MrcpServerSocket(config.getMrcpPort());
-        _promptGeneratorPool = PromptGeneratorFactory.createObjectPool(config.getVoiceName(), config.getEngines(), _speechSynthesizer);
+        // the default voice comes first, serving requests that match no voice
+        _promptGenerators = new PromptGeneratorRouter(config.getSynthesizerMaxWait());
+        _nextFestivalPort = config.getFestivalBasePort();
+        _promptGenerators.addRoute(config.getVoiceName(), _speechSynthesizer, config.getSpeechLanguage(),
+                createPromptGeneratorPool(config, config.getVoiceName(), _speechSynthesizer, config.getSpeechLanguage(),
+                        config.getEngines()),
+                config.getEngines());
+        for (TransmitterConfig.VoiceConfig voice : config.getVoices()) {
+            _promptGenerators.addRoute(voice.getVoiceName(), voice.getSpeechSynthesizer(), voice.getSpeechLanguage(),
+                    createPromptGeneratorPool(config, voice.getVoiceName(), voice.getSpeechSynthesizer(),
+                            voice.getSpeechLanguage(), voice.getEngines()),
+                    voice.getEngines());
+        }
+        _logger.info(_promptGenerators);
+        // streamed synthesis never runs on more threads than there are prompt generators
+        _promptSynthesizer = new PromptSynthesizer(_promptGenerators, _promptCache, _encodedPromptStore,
+                Executors.newFixedThreadPool(_promptGenerators.getCapacity()), _promptFiles);
+        _promptSynthesizer.setSilenceTrimmer(silenceTrimmer);
+        // pre-warming takes at most one prompt generator per voice engine as well, leaving SPEAK requests a chance
+        _promptPrewarmer = new PromptPrewarmer(_promptSynthesizer, _httpCache,
+                Executors.newFixedThreadPool(_promptGenerators.getCapacity()));
         _portPairPool = new PortPairPool(config.getRtpBasePort(), config.getMaxConnects());
         
         //if in config file, use as specified else get the local host programatically
@@ -102,6 +188,57 @@ public class TransmitterResource extends ResourceImpl {
         _logger.info(_myIpAddress);
     }
 
+    /**
+     * Creates the pool of prompt generators of a voice.  Festival voices get servers on consecutive ports, Mary
+     * voices share the Mary servers and synthesize text in the language of their route.
+     */
+    private ObjectPool createPromptGeneratorPool(TransmitterConfig config, String voiceName, String speechSynthesizer,
+            String language, int engines) throws InstantiationException {
+
+        if ("Festival".equals(speechSynthesizer)) {
+            ObjectPool pool = PromptGeneratorFactory.createFestivalObjectPool(voiceName, engines,
+                    config.getFestivalCommand(), _nextFestivalPort);
+            _nextFestivalPort += engines;
+            return pool;
+        }
+        if (_maryEndpoints == null) {
+            String[] maryServers = config.getMaryServers();
+            _maryEndpoints = (maryServers == null || maryServers.length == 0) ? MaryEndpointPool.createDefault()
+                    : new MaryEndpointPool(maryServers, MaryEndpointPool.DEFAULT_RETRY_INTERVAL);
+        }
+        return PromptGeneratorFactory.createMaryObjectPool(voiceName, language, engines, _maryEndpoints);
+    }
+
+    /**
+     * @return whether an RTP payload type is among the media formats of an SDP media description.
+     */
+    private static boolean containsPayloadType(Vector formats, int payloadType) {
+        if (formats != null) {
+            for (Object format : formats) {
+                if (String.valueOf(payloadType).equals(String.valueOf(format).trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts rendering and caching a set of prompts in the background.
+     * @param prompts the prompts to pre-warm.
+     * @return the progress of pre-warming.
+     */
+    public PromptPrewarmer.Progress startPrewarm(List<PrewarmPrompt> prompts) {
+        return _promptPrewarmer.prewarm(prompts);
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.resource.PromptPrewarmService#prewarm(java.util.List)
+     */
+    public int prewarm(List<PrewarmPrompt> prompts) throws RemoteException {
+        return startPrewarm(prompts).getTotal();
+    }
+
     /* (non-Javadoc)
 
      * @see org.speechforge.cairo.server.resource.Resource#invite(org.speechforge.cairo.server.resource.ResourceMessage)
@@ -171,11 +308,26 @@ public class TransmitterResource extends ResourceImpl {
                     case BASICSYNTH:
                     case SPEECHSYNTH:
 
-                        rtpscc = new RTPSpeechSynthChannel(localPort, _myIpAddress, mediaHost, remotePort,af);
-                        MrcpSpeechSynthChannel mrcpChannel = new MrcpSpeechSynthChannel(channelID, rtpscc, _basePromptDir, _promptGeneratorPool, _speechSynthesizer);
+                        Vector supportedFormats = af.filterOutUnSupportedFormatsInOffer();
+                        G711Codec codec = _streamingPrompts ? RTPSpeechSynthChannel.selectCodec(supportedFormats) : null;
+                        rtpscc = new RTPSpeechSynthChannel(localPort, _myIpAddress, mediaHost, remotePort, af, codec, _sendScheduler);
+                        rtpscc.setCompletionTail(_promptCompletionTail);
+                        rtpscc.setPromptFileManager(_promptFiles);
+                        if (codec != null && TransmitterConfig.COMFORT_NOISE_FRAMES.equals(_comfortNoise)) {
+                            rtpscc.setComfortNoise(_comfortNoiseLevel, false);
+                        } else if (codec != null && TransmitterConfig.COMFORT_NOISE_PACKETS.equals(_comfortNoise)
+                                && containsPayloadType(formatsInRequest, RTPPacketSender.CN_PAYLOAD_TYPE)) {
+                            // answers comfort noise only if offered, otherwise pauses stay empty
+                            rtpscc.setComfortNoise(_comfortNoiseLevel, true);
+                            if (!containsPayloadType(supportedFormats, RTPPacketSender.CN_PAYLOAD_TYPE)) {
+                                supportedFormats.add(String.valueOf(RTPPacketSender.CN_PAYLOAD_TYPE));
+                            }
+                        }
+                        MrcpSpeechSynthChannel mrcpChannel = new MrcpSpeechSynthChannel(channelID, rtpscc, _basePromptDir, _promptSynthesizer,
+                                _speakExecutor, _httpCache, _promptFiles);
                         _mrcpServer.openChannel(channelID, mrcpChannel);
                         md.getMedia().setMediaPort(_mrcpServer.getPort());
-                        rtpmd.get(0).getMedia().setMediaFormats(af.filterOutUnSupportedFormatsInOffer());
+                        rtpmd.get(0).getMedia().setMediaFormats(supportedFormats);
                         _logger.debug("Created a SPEECHSYNTH Channel.  id is: "+channelID+" rtp remotehost:port is: "+ mediaHost+":"+remotePort);
                         break;
 
@@ -232,6 +384,7 @@ public class TransmitterResource extends ResourceImpl {
             	TransmitterResources r = (TransmitterResources) channel;
                 r.getRtpssc().shutdown();
                 _portPairPool.returnPort(r.getPort());
+                _promptFiles.removeChannelDir(channel.getChannelId());
 
             } else {
             	_logger.warn("Unsupported channel resource of type: "+channel.toString());
@@ -273,6 +426,11 @@ public class TransmitterResource extends ResourceImpl {
 
         TransmitterResource impl = new TransmitterResource(resourceConfig);
 
+        if (!resourceConfig.getPrewarmPrompts().isEmpty()) {
+            // channels are only opened once registered, so the first calls find the prompts cached
+            impl.startPrewarm(resourceConfig.getPrewarmPrompts()).await();
+        }
+
         _logger.info("binding transmitter resource...");
         resourceRegistry.register(impl, RESOURCE_TYPE);
 
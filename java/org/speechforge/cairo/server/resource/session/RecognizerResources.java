@@ -3,6 +3,7 @@ package org.speechforge.cairo.server.resource.session;
 import java.rmi.RemoteException;
 
 import org.speechforge.cairo.rtp.server.RTPStreamReplicator;
+import org.speechforge.cairo.server.recog.MrcpRecogChannel;
 import org.speechforge.cairo.server.recog.RTPRecogChannel;
 
 
@@ -12,6 +13,7 @@ public class RecognizerResources extends ChannelResources {
 	//resource to be cleaned up for a recog channels
     private RTPStreamReplicator replicator;
     private RTPRecogChannel recog;
+    private MrcpRecogChannel mrcpChannel;
     
 
     /**
@@ -40,5 +42,18 @@ public class RecognizerResources extends ChannelResources {
         this.recog = recog;
     }
 
+    /**
+     * @return the mrcp channel
+     */
+    public MrcpRecogChannel getMrcpChannel() {
+        return mrcpChannel;
+    }
+    /**
+     * @param mrcpChannel the mrcp channel to set
+     */
+    public void setMrcpChannel(MrcpRecogChannel mrcpChannel) {
+        this.mrcpChannel = mrcpChannel;
+    }
+
 	
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+
+/**
+ * Source of encoded audio frames played by an {@link RTPSpeechSynthChannel} without going through a prompt file.
+ */
+public interface AudioFrameSource {
+
+    /**
+     * Reads the next frame of encoded audio.  Never blocks; if the producer of the audio has not yet caught up
+     * with playback nothing is read.
+     * @param frame buffer receiving the frame.
+     * @return the number of bytes read (less than the frame size only for the last frame), 0 if no audio is
+     * available yet, or -1 if the end of the audio has been reached.
+     * @throws IOException if producing the audio failed.
+     */
+    public int readFrame(byte[] frame) throws IOException;
+
+    /**
+     * Releases the source, e.g. when playback is stopped.  Any producer still writing to the source is aborted.
+     */
+    public void close();
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.util.Random;
+
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Generates comfort noise, i.e. low level background noise filling the pauses between prompts so that the
+ * receiver does not hear the line drop out, or digital silence.  Noise levels are given in -dBov as in the
+ * comfort noise payload of RFC 3389, from 0 (full scale) to 127 (silence).
+ */
+public class ComfortNoiseSource implements AudioFrameSource {
+
+    /**
+     * Default noise level in -dBov, a quiet room.
+     */
+    public static final int DEFAULT_LEVEL = 70;
+
+    /**
+     * Noise level in -dBov of digital silence.
+     */
+    public static final int SILENCE_LEVEL = 127;
+
+    // the noise is low-pass filtered, which makes it less hissy and divides its power by 3
+    private static final double SMOOTHING = 0.5;
+    private static final double SMOOTHING_GAIN = Math.sqrt(3);
+
+    private G711Codec _codec;
+    private int _level;
+    private double _amplitude;
+    private long _remaining;
+    private double _noise = 0;
+    private Random _random = new Random();
+
+    /**
+     * Creates a source of endless comfort noise.
+     * @param codec codec of the noise.
+     * @param level noise level in -dBov.
+     */
+    public ComfortNoiseSource(G711Codec codec, int level) {
+        this(codec, level, -1);
+    }
+
+    /**
+     * TODOC
+     * @param codec codec of the noise.
+     * @param level noise level in -dBov.
+     * @param duration duration of the noise in milliseconds, or -1 for endless noise.
+     */
+    public ComfortNoiseSource(G711Codec codec, int level, long duration) {
+        if (level < 0 || level > SILENCE_LEVEL) {
+            throw new IllegalArgumentException("Invalid comfort noise level: -" + level + "dBov");
+        }
+        _codec = codec;
+        _level = level;
+        _amplitude = (level == SILENCE_LEVEL) ? 0 : 32768 * Math.pow(10, -level / 20.0) * SMOOTHING_GAIN;
+        _remaining = (duration < 0) ? -1 : duration * G711Codec.SAMPLE_RATE / 1000;
+    }
+
+    /**
+     * @return the noise level in -dBov.
+     */
+    public int getLevel() {
+        return _level;
+    }
+
+    /**
+     * Generates a prompt of comfort noise or silence, e.g. to prime a player.
+     * @param codec codec of the prompt.
+     * @param level noise level in -dBov.
+     * @param duration duration of the prompt in milliseconds.
+     * @return the encoded prompt.
+     */
+    public static EncodedPrompt createPrompt(G711Codec codec, int level, long duration) {
+        byte[] audio = new byte[(int) (duration * G711Codec.SAMPLE_RATE / 1000)];
+        int length = new ComfortNoiseSource(codec, level, duration).readFrame(audio);
+        return new EncodedPrompt(codec, audio, Math.max(length, 0));
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+     */
+    public synchronized int readFrame(byte[] frame) {
+        int length = frame.length;
+        if (_remaining >= 0) {
+            if (_remaining == 0) {
+                return -1;
+            }
+            length = (int) Math.min(length, _remaining);
+            _remaining -= length;
+        }
+        if (_amplitude == 0) {
+            for (int i = 0; i < length; i++) {
+                frame[i] = _codec.getSilence();
+            }
+            return length;
+        }
+        for (int i = 0; i < length; i++) {
+            _noise = SMOOTHING * _noise + (1 - SMOOTHING) * _random.nextGaussian();
+            long sample = Math.round(_noise * _amplitude);
+            frame[i] = _codec.encode((int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+        }
+        return length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+     */
+    public synchronized void close() {
+        _remaining = 0;
+    }
+
+}
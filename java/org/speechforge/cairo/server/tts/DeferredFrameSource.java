@@ -0,0 +1,120 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * Placeholder queued for a prompt whose audio source is still being prepared (e.g. while its text is fetched), so
+ * that the prompt keeps its place in the queue and can be cancelled before it has any audio.  Reads nothing until
+ * the source is set.
+ */
+public class DeferredFrameSource implements SlicedFrameSource {
+
+    private AudioFrameSource _source;
+    private IOException _failure;
+    private boolean _closed = false;
+    private Future<?> _preparation;
+
+    /**
+     * @param preparation the task preparing the source, cancelled if this source is closed first.
+     */
+    public synchronized void setPreparation(Future<?> preparation) {
+        _preparation = preparation;
+        if (_closed) {
+            preparation.cancel(true);
+        }
+    }
+
+    /**
+     * Sets the prepared source.  If this source has been closed in the meantime the prepared source is closed right away.
+     * @param source the prepared source.
+     */
+    public synchronized void setSource(AudioFrameSource source) {
+        if (_closed) {
+            source.close();
+        } else {
+            _source = source;
+        }
+    }
+
+    /**
+     * Marks the preparation as failed, the failure is reported by the next read.
+     * @param cause the reason the source could not be prepared.
+     */
+    public synchronized void fail(Exception cause) {
+        if (cause instanceof IOException) {
+            _failure = (IOException) cause;
+        } else {
+            _failure = new IOException("Prompt preparation failed: " + cause);
+            _failure.initCause(cause);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+     */
+    public synchronized int readFrame(byte[] frame) throws IOException {
+        if (_source != null) {
+            return _source.readFrame(frame);
+        }
+        if (_failure != null) {
+            throw _failure;
+        }
+        return _closed ? -1 : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.SlicedFrameSource#readFrame(java.nio.ByteBuffer)
+     */
+    public synchronized ByteBuffer readFrame(ByteBuffer frame) throws IOException {
+        if (_source != null) {
+            return FrameSources.readFrame(_source, frame);
+        }
+        if (_failure != null) {
+            throw _failure;
+        }
+        if (_closed) {
+            return null;
+        }
+        frame.clear();
+        frame.limit(0);
+        return frame;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+     */
+    public synchronized void close() {
+        _closed = true;
+        if (_source != null) {
+            _source.close();
+        }
+        if (_preparation != null) {
+            _preparation.cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.speechforge.cairo.util.audio.AuEncodingOutputStream;
+import org.speechforge.cairo.util.audio.AudioEncoder;
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * A complete prompt encoded in the codec of an RTP channel and split into 20ms frames, so that playing it only
+ * copies each frame into an RTP packet.  Immutable and shared between all channels playing the prompt.
+ */
+public class EncodedPrompt {
+
+    /**
+     * Size in bytes of a 20ms frame of G.711 audio.
+     */
+    public static final int FRAME_SIZE = (int) (G711Codec.SAMPLE_RATE * RTPSendScheduler.FRAME_NANOS / 1000000000L);
+
+    private static final int AU_MAGIC = 0x2e736e64;
+    private static final int AU_HEADER_LENGTH = 24;
+    private static final int AU_ENCODING_ULAW = 1;
+    private static final int AU_ENCODING_ALAW = 27;
+
+    private G711Codec _codec;
+    private byte[] _frames;
+
+    /**
+     * TODOC
+     * @param codec codec of the audio.
+     * @param audio the encoded audio.
+     * @param length number of bytes of encoded audio, the last frame is padded with silence.
+     */
+    public EncodedPrompt(G711Codec codec, byte[] audio, int length) {
+        this(codec, audio, 0, length);
+    }
+
+    /**
+     * TODOC
+     * @param codec codec of the audio.
+     * @param audio the encoded audio.
+     * @param offset offset of the prompt audio within the encoded audio.
+     * @param length number of bytes of encoded audio, the last frame is padded with silence.
+     */
+    public EncodedPrompt(G711Codec codec, byte[] audio, int offset, int length) {
+        _codec = codec;
+        int frames = (length + FRAME_SIZE - 1) / FRAME_SIZE;
+        _frames = new byte[frames * FRAME_SIZE];
+        System.arraycopy(audio, offset, _frames, 0, length);
+        Arrays.fill(_frames, length, _frames.length, codec.getSilence());
+    }
+
+    /**
+     * @return the codec of the audio.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * @return the number of 20ms frames of the prompt.
+     */
+    public int getFrameCount() {
+        return _frames.length / FRAME_SIZE;
+    }
+
+    /**
+     * @return the size of the encoded audio in bytes.
+     */
+    public int getSize() {
+        return _frames.length;
+    }
+
+    /**
+     * @return the encoded audio including the padding of the last frame, not to be modified.
+     */
+    byte[] getFrames() {
+        return _frames;
+    }
+
+    /**
+     * @return the prompt as the content of an AU file, for players reading prompt files.
+     */
+    public byte[] toAu() {
+        byte[] au = new byte[AU_HEADER_LENGTH + _frames.length];
+        int[] header = {AU_MAGIC, AU_HEADER_LENGTH, _frames.length, (_codec == G711Codec.ALAW) ? AU_ENCODING_ALAW
+                : AU_ENCODING_ULAW, G711Codec.SAMPLE_RATE, 1};
+        for (int i = 0; i < header.length; i++) {
+            au[4 * i] = (byte) (header[i] >> 24);
+            au[4 * i + 1] = (byte) (header[i] >> 16);
+            au[4 * i + 2] = (byte) (header[i] >> 8);
+            au[4 * i + 3] = (byte) header[i];
+        }
+        System.arraycopy(_frames, 0, au, AU_HEADER_LENGTH, _frames.length);
+        return au;
+    }
+
+    /**
+     * @return a new source playing the prompt from the start.
+     */
+    public SlicedFrameSource openSource() {
+        return new Source();
+    }
+
+    /**
+     * Encodes audio in AU format, e.g. a synthesized prompt.
+     * @param au the audio.
+     * @param codec codec to encode to.
+     * @return the encoded prompt.
+     * @throws IOException if the audio is not in a supported AU format.
+     */
+    public static EncodedPrompt fromAu(byte[] au, G711Codec codec) throws IOException {
+        return fromAu(au, codec, Prosody.DEFAULT);
+    }
+
+    /**
+     * Encodes audio in AU format changing its rate and volume, e.g. a synthesized prompt requested with another
+     * prosody than the one it was synthesized with.
+     * @param au the audio.
+     * @param codec codec to encode to.
+     * @param prosody rate and volume of the encoded prompt relative to the audio.
+     * @return the encoded prompt.
+     * @throws IOException if the audio is not in a supported AU format.
+     */
+    public static EncodedPrompt fromAu(byte[] au, G711Codec codec, Prosody prosody) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(au.length / 2);
+        OutputStream os = new AuEncodingOutputStream(encoded, codec, prosody.getRate(), prosody.getVolume());
+        os.write(au);
+        os.close();
+        return new EncodedPrompt(codec, encoded.toByteArray(), encoded.size());
+    }
+
+    /**
+     * Encodes an audio file in any format supported by Java Sound.
+     * @param file the audio file.
+     * @param codec codec to encode to.
+     * @return the encoded prompt.
+     * @throws IOException if the file could not be read or is not a supported audio file.
+     */
+    public static EncodedPrompt fromFile(File file, G711Codec codec) throws IOException {
+        AudioInputStream ais;
+        try {
+            ais = AudioSystem.getAudioInputStream(file);
+        } catch (UnsupportedAudioFileException e) {
+            IOException ioe = new IOException("Unsupported audio file: " + file);
+            ioe.initCause(e);
+            throw ioe;
+        }
+
+        try {
+            AudioFormat format = ais.getFormat();
+            AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                    format.getChannels(), format.getChannels() * 2, format.getSampleRate(), true);
+            InputStream is = format.matches(pcm) ? ais : AudioSystem.getAudioInputStream(pcm, ais);
+
+            AudioEncoder encoder = new AudioEncoder(format.getSampleRate(), format.getChannels(), codec);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            short[] samples = new short[buf.length / 2];
+            byte[] out = new byte[encoder.getMaxEncodedLength(samples.length)];
+            int pending = 0;
+            int len;
+            while ((len = is.read(buf, pending, buf.length - pending)) > 0) {
+                len += pending;
+                int count = len / 2 - (len / 2) % format.getChannels();
+                for (int i = 0; i < count; i++) {
+                    samples[i] = (short) ((buf[2 * i] << 8) | (buf[2 * i + 1] & 0xFF));
+                }
+                encoded.write(out, 0, encoder.encode(samples, 0, count, out));
+                pending = len - count * 2;
+                System.arraycopy(buf, count * 2, buf, 0, pending);
+            }
+            encoded.write(out, 0, encoder.finish(out));
+            return new EncodedPrompt(codec, encoded.toByteArray(), encoded.size());
+        } catch (IllegalArgumentException e) {
+            IOException ioe = new IOException("Unsupported audio format: " + file);
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            ais.close();
+        }
+    }
+
+    private class Source implements SlicedFrameSource {
+
+        private int _position = 0;
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.SlicedFrameSource#readFrame(java.nio.ByteBuffer)
+         */
+        public synchronized ByteBuffer readFrame(ByteBuffer frame) {
+            if (_position >= _frames.length) {
+                return null;
+            }
+            int len = Math.min(frame.capacity(), _frames.length - _position);
+            ByteBuffer slice = ByteBuffer.wrap(_frames, _position, len).slice();
+            _position += len;
+            return slice;
+        }
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+         */
+        public synchronized int readFrame(byte[] frame) {
+            if (_position >= _frames.length) {
+                return -1;
+            }
+            int len = Math.min(frame.length, _frames.length - _position);
+            System.arraycopy(_frames, _position, frame, 0, len);
+            _position += len;
+            return len;
+        }
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+         */
+        public synchronized void close() {
+            _position = _frames.length;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Size bounded LRU store of {@link EncodedPrompt}s shared by the streaming channels of a transmitter, so that
+ * static and cached prompts are transcoded once per codec rather than every time they are played.
+ * <p>
+ * Static prompt files that are already encoded in the codec of a channel are not copied into the store but
+ * memory mapped as {@link MappedPromptFile}s, which only count against a limit on the number of mapped files.
+ * </p>
+ * <p>
+ * Prompts put into the store, e.g. synthesized prompts, can have their leading and trailing silence trimmed as
+ * they enter it.  Static prompt files are kept as recorded.
+ * </p>
+ */
+public class EncodedPromptStore {
+
+    private static Logger _logger = Logger.getLogger(EncodedPromptStore.class);
+
+    /**
+     * Default maximum number of prompt files kept mapped.
+     */
+    public static final int DEFAULT_MAX_MAPPED_FILES = 256;
+
+    private long _maxBytes;
+    private long _bytes = 0;
+
+    // access ordered so that iteration starts with the least recently used prompt
+    private Map<String, EncodedPrompt> _prompts = new LinkedHashMap<String, EncodedPrompt>(16, 0.75f, true);
+
+    // values are null for files that are not encoded in the codec of the key, so they are not probed again
+    private Map<String, MappedPromptFile> _mappedFiles;
+
+    private SilenceTrimmer _silenceTrimmer;
+
+    private long _hits = 0;
+    private long _misses = 0;
+
+    /**
+     * TODOC
+     * @param maxBytes maximum number of bytes of encoded audio kept.
+     */
+    public EncodedPromptStore(long maxBytes) {
+        this(maxBytes, DEFAULT_MAX_MAPPED_FILES);
+    }
+
+    /**
+     * TODOC
+     * @param maxBytes maximum number of bytes of encoded audio kept.
+     * @param maxMappedFiles maximum number of prompt files kept mapped.
+     */
+    public EncodedPromptStore(long maxBytes, final int maxMappedFiles) {
+        _maxBytes = maxBytes;
+        _mappedFiles = new LinkedHashMap<String, MappedPromptFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MappedPromptFile> eldest) {
+                return size() > maxMappedFiles;
+            }
+        };
+    }
+
+    /**
+     * Sets the trimmer applied to the prompts put into the store.
+     * @param silenceTrimmer the trimmer, or {@code null} (the default) to store prompts as they are.
+     */
+    public synchronized void setSilenceTrimmer(SilenceTrimmer silenceTrimmer) {
+        _silenceTrimmer = silenceTrimmer;
+    }
+
+    /**
+     * @param promptKey identifies the audio of the prompt, e.g. a {@link PromptCache} key.
+     * @param codec the codec the prompt is encoded in.
+     * @return the key of the encoded prompt.
+     */
+    public static String createKey(String promptKey, G711Codec codec) {
+        return promptKey + '/' + codec;
+    }
+
+    /**
+     * TODOC
+     * @param key the key of the encoded prompt.
+     * @return the encoded prompt or {@code null} if it is not in the store.
+     */
+    public synchronized EncodedPrompt get(String key) {
+        EncodedPrompt prompt = _prompts.get(key);
+        if (prompt == null) {
+            _misses++;
+        } else {
+            _hits++;
+        }
+        return prompt;
+    }
+
+    /**
+     * Adds an encoded prompt, trimming its silence if a silence trimmer is set and evicting the least recently
+     * used prompts if the store is full.
+     * @param key the key of the encoded prompt.
+     * @param prompt the encoded prompt.
+     * @return the prompt as stored, to be played instead of the prompt given.
+     */
+    public EncodedPrompt put(String key, EncodedPrompt prompt) {
+        SilenceTrimmer silenceTrimmer;
+        synchronized (this) {
+            silenceTrimmer = _silenceTrimmer;
+        }
+        if (silenceTrimmer != null) {
+            // scans the whole prompt, done outside the lock
+            prompt = silenceTrimmer.trim(prompt);
+        }
+        store(key, prompt);
+        return prompt;
+    }
+
+    private synchronized void store(String key, EncodedPrompt prompt) {
+        if (prompt.getSize() > _maxBytes) {
+            return;
+        }
+        EncodedPrompt previous = _prompts.put(key, prompt);
+        if (previous != null) {
+            _bytes -= previous.getSize();
+        }
+        _bytes += prompt.getSize();
+
+        Iterator<EncodedPrompt> it = _prompts.values().iterator();
+        while (_bytes > _maxBytes && it.hasNext()) {
+            _bytes -= it.next().getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * Opens a static prompt file for playback in the specified codec.  A file already encoded in the codec is
+     * played straight from a shared mapping of the file, any other file is encoded on first use.  A file that
+     * changed since it was mapped or encoded is mapped or encoded again.
+     * @param file the prompt file.
+     * @param codec the codec to play the file in.
+     * @return the source of the prompt audio.
+     * @throws IOException if the file could not be read or is not a supported audio file.
+     */
+    public AudioFrameSource openFilePrompt(File file, G711Codec codec) throws IOException {
+        String key = createKey("file:" + file.getCanonicalPath() + ':' + file.lastModified() + ':' + file.length(), codec);
+
+        MappedPromptFile mappedFile;
+        boolean probed;
+        synchronized (this) {
+            mappedFile = _mappedFiles.get(key);
+            probed = mappedFile != null || _mappedFiles.containsKey(key);
+        }
+        if (!probed) {
+            mappedFile = MappedPromptFile.map(file, codec);
+            synchronized (this) {
+                _mappedFiles.put(key, mappedFile);
+            }
+            if (mappedFile != null && _logger.isDebugEnabled()) {
+                _logger.debug("Mapped " + mappedFile);
+            }
+        }
+        if (mappedFile != null) {
+            synchronized (this) {
+                _hits++;
+            }
+            return mappedFile.openSource();
+        }
+
+        EncodedPrompt prompt = get(key);
+        if (prompt == null) {
+            prompt = EncodedPrompt.fromFile(file, codec);
+            store(key, prompt);
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Encoded prompt file " + file + " (" + prompt.getFrameCount() + " frames), " + this);
+            }
+        }
+        return prompt.openSource();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "EncodedPromptStore[prompts=" + _prompts.size() + '/' + _bytes + "B, mappedFiles=" + _mappedFiles.size()
+                + ", hits=" + _hits + ", misses=" + _misses + ']';
+    }
+
+}
@@ -25,71 +25,367 @@ package org.speechforge.cairo.server.tts;
 
 import org.speechforge.cairo.util.pool.AbstractPoolableObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFormat;
+import org.apache.log4j.Logger;
 
 /**
  * Generates speech prompt files using the Festival text-to-speech engine.
+ * <p>
+ * Each generator runs its own long-lived {@code festival --server} process, listening on a port of its own, and
+ * synthesizes over Festival's client/server socket protocol.  The voice is loaded once when the generator
+ * connects, and the waveform of each prompt is streamed back as it is received from the server.  A server
+ * process that died is restarted on the next prompt, and {@link #validate()} fails for a server that stopped
+ * responding so that the pool replaces the generator.
+ * </p>
  *
  * @author Martin Mory {@literal <}<a href="mailto:linuxfan91@users.sourceforge.net">linuxfan91@users.sourceforge.net</a>{@literal >}
  */
-public class FestivalPromptGenerator extends AbstractPoolableObject {
+public class FestivalPromptGenerator extends AbstractPoolableObject implements PromptGenerator {
+
+    private static Logger _logger = Logger.getLogger(FestivalPromptGenerator.class);
+
+    /**
+     * Default command starting Festival.
+     */
+    public static final String DEFAULT_COMMAND = "festival";
+
+    /**
+     * Default server port of Festival.
+     */
+    public static final int DEFAULT_PORT = 1314;
+
+    // terminates files sent by the server, occurrences within the data are stuffed with an 'X'
+    private static final byte[] FILE_STUFF_KEY = {'f', 't', '_', 'S', 't', 'U', 'f', 'F', '_', 'k', 'e', 'y'};
+
+    private static final long STARTUP_TIMEOUT = 30000;
+    private static final int READ_TIMEOUT = 60000;
 
     // private Voice _voice;
     private String _voiceName;
+    private String _command;
+    private int _port;
 
+    private Process _server;
+    private Socket _socket;
+    private InputStream _in;
+    private OutputStream _out;
+
+    /**
+     * Creates a prompt generator running {@value #DEFAULT_COMMAND} on port {@value #DEFAULT_PORT}.
+     * @param voiceName the Festival voice used for synthesis, e.g. "kal_diphone", or {@code null} for the default.
+     */
     public FestivalPromptGenerator(String voiceName) {
-	_voiceName = voiceName;
+        this(voiceName, DEFAULT_COMMAND, DEFAULT_PORT);
     }
 
     /**
-     * Generates a prompt file containing the specified speech text.
-     * @param text textual content of prompt file.
-     * @param dir directory in which to save the generated prompt file.
-     * @return the generated prompt file.
-     * @throws IllegalArgumentException if the directory specified is not a directory.
+     * TODOC
+     * @param voiceName the Festival voice used for synthesis, e.g. "kal_diphone", or {@code null} for the default.
+     * @param command command (with any options) starting Festival.
+     * @param port port the Festival server of this generator listens on.
+     */
+    public FestivalPromptGenerator(String voiceName, String command, int port) {
+        _voiceName = voiceName;
+        _command = command;
+        _port = port;
+    }
+
+    /**
+     * @return the port the Festival server of this generator listens on.
+     */
+    public int getPort() {
+        return _port;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.PromptGenerator#generatePrompt(java.lang.String, java.io.File)
      */
     public synchronized File generatePrompt(String text, File dir) throws IllegalArgumentException {
-	if(dir == null || !dir.isDirectory()) {  
+        if (dir == null || !dir.isDirectory()) {
             throw new IllegalArgumentException("Directory file specified does not exist or is not a directory: " + dir);
         }
 
+        File promptFile = null;
+        try {
+            // unique even for prompts generated at the same time by different generators
+            promptFile = File.createTempFile("prompt", ".au", dir);
+            OutputStream out = new FileOutputStream(promptFile);
+            try {
+                generatePrompt(text, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            if (promptFile != null) {
+                promptFile.delete();
+            }
+            throw new RuntimeException("Cannot synthesize with Festival!", e);
+        }
+        return promptFile;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.PromptGenerator#generatePrompt(java.lang.String, java.io.OutputStream)
+     */
+    public synchronized void generatePrompt(String text, OutputStream out) throws IOException {
         if (text == null) {
             text = "";
         }
+        connect();
+        try {
+            // one utterance for the whole text, so that a single waveform is returned
+            if (!evaluate("(utt.send.wave.client (utt.synth (Utterance Text " + quote(text) + ")))", out)) {
+                throw new IOException("Festival could not synthesize: " + text);
+            }
+        } catch (IOException e) {
+            // the protocol stream is out of step after a failure, reconnect for the next prompt
+            disconnect();
+            throw e;
+        }
+    }
 
-        String promptName = Long.toString(System.currentTimeMillis());
-
-        // File promptFile = new File(dir, promptName);
-
-        // AudioPlayer ap = new SingleFileAudioPlayer(promptFile.getAbsolutePath(), AudioFileFormat.Type.AU);
-        // AudioFormat af = new AudioFormat(AudioFormat.Encoding.ULAW, 8000, 8, 1, 8, 8000, false);
-        // ap.setAudioFormat(af);
-        // _voice.setAudioPlayer(ap);
-        // _voice.speak(text);
-        // ap.close();
-        // _voice.setAudioPlayer(null);
-	try{
-	    PrintWriter writer = new PrintWriter(dir + "/" + promptName);
-	    writer.println(text);
-	    writer.close();
-	    Process p = Runtime.getRuntime().exec(
-						  "/home/tjr/festival/bin/text2wave -o " +
-	    dir + "/" + promptName + ".au -otype snd " + dir + "/" + promptName);
-	    p.waitFor();
-	}
-	catch(Exception e){
-	    throw new RuntimeException("Cannot invoke text2wave (Festival)!");
-	}
-        File promptFile = new File(dir, promptName + ".au");
-	/*	        if (!promptFile.exists()) {
-            throw new RuntimeException("Expected generated prompt file does not exist!");
-		}*/
-        return promptFile;
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.util.pool.PoolableObject#validate()
+     */
+    @Override
+    public synchronized boolean validate() {
+        if (_server == null) {
+            return true; // not started yet
+        }
+        if (!isRunning()) {
+            _logger.warn("Festival server on port " + _port + " has exited");
+            return false;
+        }
+        try {
+            connect();
+            return evaluate("t", null);
+        } catch (IOException e) {
+            _logger.warn("Festival server on port " + _port + " is not responding: " + e);
+            disconnect();
+            return false;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.util.pool.PoolableObject#destroy()
+     */
+    @Override
+    public synchronized void destroy() {
+        disconnect();
+        if (_server != null) {
+            _server.destroy();
+            // wait for the port to be released, it is handed on to the next generator
+            try {
+                _server.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _server = null;
+        }
+    }
+
+    /**
+     * Starts the Festival server process, if not already running, without waiting for it to accept connections.
+     * @throws IOException if the process could not be started.
+     */
+    public synchronized void start() throws IOException {
+        if (_server == null || !isRunning()) {
+            disconnect();
+            startServer();
+        }
+    }
+
+    private void connect() throws IOException {
+        start();
+        if (_socket != null) {
+            return;
+        }
+
+        // the server accepts connections once it has loaded its voices
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (true) {
+            try {
+                _socket = new Socket(InetAddress.getByName("localhost"), _port);
+                break;
+            } catch (IOException e) {
+                if (!isRunning() || System.currentTimeMillis() > deadline) {
+                    IOException ioe = new IOException("Cannot connect to Festival server on port " + _port);
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted connecting to Festival server");
+                }
+            }
+        }
+        _socket.setSoTimeout(READ_TIMEOUT);
+        _socket.setTcpNoDelay(true);
+        _in = new BufferedInputStream(_socket.getInputStream());
+        _out = _socket.getOutputStream();
+
+        try {
+            if (_voiceName != null && _voiceName.matches("[A-Za-z0-9_]+") && !evaluate("(voice_" + _voiceName + ")", null)) {
+                _logger.warn("Festival voice " + _voiceName + " not available, using the default voice");
+            }
+            if (!evaluate("(Parameter.set 'Wavefiletype 'snd)", null)) {
+                throw new IOException("Festival could not set the waveform type");
+            }
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private void startServer() throws IOException {
+        List<String> command = new ArrayList<String>(Arrays.asList(_command.trim().split("\\s+")));
+        command.add("--server");
+        command.add("(set! server_port " + _port + ")");
+        _logger.info("Starting Festival server: " + command);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        _server = builder.start();
+
+        // drain the server output so that the server never blocks writing it
+        final BufferedReader output = new BufferedReader(new InputStreamReader(_server.getInputStream()));
+        Thread drain = new Thread("festival-" + _port) {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = output.readLine()) != null) {
+                        _logger.debug(line);
+                    }
+                } catch (IOException e) {
+                    _logger.debug(e, e);
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    private boolean isRunning() {
+        try {
+            _server.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private void disconnect() {
+        if (_socket != null) {
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                _logger.debug(e, e);
+            }
+            _socket = null;
+            _in = null;
+            _out = null;
+        }
+    }
+
+    /**
+     * Sends an expression to the server and reads the replies up to the end of the command.
+     * @param expression the Scheme expression.
+     * @param wave stream receiving any waveform sent by the server, or {@code null} to discard it.
+     * @return {@code true} if the command succeeded, {@code false} if the server reported an error.
+     */
+    private boolean evaluate(String expression, OutputStream wave) throws IOException {
+        _out.write((expression + '\n').getBytes("ISO-8859-1"));
+        _out.flush();
+
+        byte[] ack = new byte[3];
+        while (true) {
+            for (int n = 0; n < ack.length; n++) {
+                int c = _in.read();
+                if (c < 0) {
+                    throw new EOFException("Festival server closed the connection");
+                }
+                ack[n] = (byte) c;
+            }
+            String reply = new String(ack, "ISO-8859-1");
+            if (reply.equals("WV\n")) {
+                receiveFile(wave);
+            } else if (reply.equals("LP\n")) {
+                receiveFile(null);
+            } else if (reply.equals("ER\n")) {
+                return false;
+            } else if (reply.equals("OK\n")) {
+                return true;
+            } else {
+                throw new IOException("Unexpected reply from Festival server: " + reply);
+            }
+        }
+    }
+
+    /**
+     * Receives a file terminated by the file stuff key, as done by Festival's own client.
+     */
+    private void receiveFile(OutputStream out) throws IOException {
+        byte[] buf = new byte[4096];
+        int len = 0;
+        int k = 0;
+        while (k < FILE_STUFF_KEY.length) {
+            int c = _in.read();
+            if (c < 0) {
+                throw new EOFException("Festival server closed the connection");
+            }
+            if (buf.length - len < FILE_STUFF_KEY.length + 1) {
+                if (out != null) {
+                    out.write(buf, 0, len);
+                }
+                len = 0;
+            }
+            if (FILE_STUFF_KEY[k] == c) {
+                k++;
+            } else if (c == 'X' && k == FILE_STUFF_KEY.length - 1) {
+                // looked like the key but was stuffed data, the 'X' is dropped
+                System.arraycopy(FILE_STUFF_KEY, 0, buf, len, k);
+                len += k;
+                k = 0;
+            } else {
+                System.arraycopy(FILE_STUFF_KEY, 0, buf, len, k);
+                len += k;
+                k = 0;
+                buf[len++] = (byte) c;
+            }
+        }
+        if (out != null && len > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
     }
 
 }
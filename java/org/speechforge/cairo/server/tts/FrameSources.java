@@ -0,0 +1,57 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from any {@link AudioFrameSource}, slicing them where the source supports it.
+ */
+public class FrameSources {
+
+    private FrameSources() {
+    }
+
+    /**
+     * Reads the next frame of a source.
+     * @param source the source.
+     * @param frame array backed buffer with a capacity of the frame size, receiving frames that cannot be sliced.
+     * @return the frame, an empty buffer if no audio is available yet, or {@code null} at the end of the audio.
+     * @throws IOException if producing the audio failed.
+     * @see SlicedFrameSource#readFrame(ByteBuffer)
+     */
+    public static ByteBuffer readFrame(AudioFrameSource source, ByteBuffer frame) throws IOException {
+        if (source instanceof SlicedFrameSource) {
+            return ((SlicedFrameSource) source).readFrame(frame);
+        }
+        int len = source.readFrame(frame.array());
+        if (len < 0) {
+            return null;
+        }
+        frame.clear();
+        frame.limit(len);
+        return frame;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * A static prompt file already encoded in the wire format of an RTP channel (8 kHz mono G.711 in an AU or WAV
+ * file), memory mapped read-only so that its RTP payloads are sliced directly from the mapping.  One instance
+ * is shared by all channels playing the file.
+ * <p>
+ * The mapping stays valid until the instance is garbage collected, prompt files must therefore be replaced
+ * rather than modified in place while they are in use.
+ * </p>
+ */
+public class MappedPromptFile {
+
+    private static final int AU_MAGIC = 0x2e736e64;
+    private static final int AU_ENCODING_ULAW = 1;
+    private static final int AU_ENCODING_ALAW = 27;
+
+    private static final int WAVE_FORMAT_ALAW = 6;
+    private static final int WAVE_FORMAT_MULAW = 7;
+
+    private File _file;
+    private G711Codec _codec;
+    private ByteBuffer _data;
+
+    private MappedPromptFile(File file, G711Codec codec, ByteBuffer data) {
+        _file = file;
+        _codec = codec;
+        _data = data;
+    }
+
+    /**
+     * Maps a prompt file if it is encoded in the specified codec.
+     * @param file the prompt file.
+     * @param codec the codec of the RTP channel.
+     * @return the mapped prompt file, or {@code null} if the file is not 8 kHz mono audio in the codec.
+     * @throws IOException if the file could not be mapped.
+     */
+    public static MappedPromptFile map(File file, G711Codec codec) throws IOException {
+        MappedByteBuffer mapping;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping remains valid after the channel is closed
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        ByteBuffer data = (mapping.remaining() >= 4 && mapping.getInt(0) == AU_MAGIC)
+                ? findAuData(mapping, codec) : findWaveData(mapping, codec);
+        return (data == null) ? null : new MappedPromptFile(file, codec, data);
+    }
+
+    /**
+     * @return the codec of the prompt audio.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * @return the size of the prompt audio in bytes.
+     */
+    public int getSize() {
+        return _data.capacity();
+    }
+
+    /**
+     * @return a new source playing the prompt from the start.
+     */
+    public SlicedFrameSource openSource() {
+        return new Source(_data.duplicate());
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "MappedPromptFile[" + _file + ", " + _codec + ", " + getSize() + "B]";
+    }
+
+    private static ByteBuffer findAuData(ByteBuffer au, G711Codec codec) {
+        au.order(ByteOrder.BIG_ENDIAN);
+        if (au.remaining() < 24) {
+            return null;
+        }
+        int offset = au.getInt(4);
+        int size = au.getInt(8);
+        int encoding = au.getInt(12);
+        G711Codec fileCodec = (encoding == AU_ENCODING_ULAW) ? G711Codec.ULAW
+                : (encoding == AU_ENCODING_ALAW) ? G711Codec.ALAW : null;
+        if (fileCodec != codec || au.getInt(16) != G711Codec.SAMPLE_RATE || au.getInt(20) != 1
+                || offset < 24 || offset > au.limit()) {
+            return null;
+        }
+        // a size of -1 (unknown) or beyond the end of the file means up to the end of the file
+        int limit = (size < 0 || size > au.limit() - offset) ? au.limit() : offset + size;
+        return slice(au, offset, limit);
+    }
+
+    private static ByteBuffer findWaveData(ByteBuffer wave, G711Codec codec) {
+        wave.order(ByteOrder.LITTLE_ENDIAN);
+        if (wave.remaining() < 12 || wave.getInt(0) != 0x46464952 || wave.getInt(8) != 0x45564157) {
+            return null; // not "RIFF" ... "WAVE"
+        }
+        boolean formatMatches = false;
+        int position = 12;
+        while (position + 8 <= wave.limit()) {
+            int chunkId = wave.getInt(position);
+            int chunkSize = wave.getInt(position + 4);
+            int start = position + 8;
+            if (chunkSize < 0 || chunkSize > wave.limit() - start) {
+                chunkSize = wave.limit() - start;
+            }
+            if (chunkId == 0x20746d66 && chunkSize >= 16) { // "fmt "
+                int format = wave.getShort(start) & 0xFFFF;
+                G711Codec fileCodec = (format == WAVE_FORMAT_MULAW) ? G711Codec.ULAW
+                        : (format == WAVE_FORMAT_ALAW) ? G711Codec.ALAW : null;
+                formatMatches = fileCodec == codec && wave.getShort(start + 2) == 1
+                        && wave.getInt(start + 4) == G711Codec.SAMPLE_RATE && wave.getShort(start + 14) == 8;
+                if (!formatMatches) {
+                    return null;
+                }
+            } else if (chunkId == 0x61746164) { // "data"
+                return formatMatches ? slice(wave, start, start + chunkSize) : null;
+            }
+            // chunks are word aligned
+            position = start + chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer data = buffer.duplicate();
+        data.limit(end).position(start);
+        return data.slice();
+    }
+
+    private static class Source implements SlicedFrameSource {
+
+        private ByteBuffer _data;
+
+        Source(ByteBuffer data) {
+            _data = data;
+        }
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.SlicedFrameSource#readFrame(java.nio.ByteBuffer)
+         */
+        public synchronized ByteBuffer readFrame(ByteBuffer frame) {
+            if (!_data.hasRemaining()) {
+                return null;
+            }
+            ByteBuffer slice = _data.slice();
+            slice.limit(Math.min(frame.capacity(), slice.remaining()));
+            _data.position(_data.position() + slice.remaining());
+            return slice;
+        }
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+         */
+        public synchronized int readFrame(byte[] frame) {
+            if (!_data.hasRemaining()) {
+                return -1;
+            }
+            int len = Math.min(frame.length, _data.remaining());
+            _data.get(frame, 0, len);
+            return len;
+        }
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+         */
+        public synchronized void close() {
+            _data.position(_data.limit());
+        }
+    }
+
+}
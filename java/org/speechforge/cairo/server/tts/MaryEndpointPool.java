@@ -0,0 +1,322 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import marytts.client.MaryClient;
+import marytts.util.http.Address;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of persistent connections to one or more Mary servers, shared by the {@link MaryPromptGenerator}s of a
+ * transmitter.
+ * <p>
+ * Each request is sent to the healthy server with the fewest requests in progress, reusing an idle client
+ * connected to it if there is one.  A server that fails is taken out of rotation and reconnected once the
+ * retry interval has passed, either by a later request or by a health {@link #probe()}.
+ * </p>
+ */
+public class MaryEndpointPool {
+
+    private static Logger _logger = Logger.getLogger(MaryEndpointPool.class);
+
+    /**
+     * Default port of a Mary server.
+     */
+    public static final int DEFAULT_PORT = 59125;
+
+    /**
+     * Default time in milliseconds between attempts to reconnect to a failed server, and between health probes
+     * of a healthy server.
+     */
+    public static final long DEFAULT_RETRY_INTERVAL = 10000;
+
+    private List<Endpoint> _endpoints;
+    private long _retryInterval;
+
+    // rotates the starting point of the endpoint search so that equally loaded servers take turns
+    private int _next = 0;
+
+    /**
+     * TODOC
+     * @param servers Mary servers as "host" or "host:port".
+     * @param retryInterval time in milliseconds between reconnect attempts and health probes of a server.
+     */
+    public MaryEndpointPool(String[] servers, long retryInterval) {
+        if (servers.length == 0) {
+            throw new IllegalArgumentException("No Mary server specified");
+        }
+        _endpoints = new ArrayList<Endpoint>(servers.length);
+        for (String server : servers) {
+            _endpoints.add(new Endpoint(parseAddress(server.trim())));
+        }
+        _retryInterval = retryInterval;
+    }
+
+    /**
+     * Creates a pool for the Mary server specified by the {@code server.host} and {@code server.port} system
+     * properties, defaulting to localhost.
+     * @return the pool.
+     */
+    public static MaryEndpointPool createDefault() {
+        String serverHost = System.getProperty("server.host", "localhost");
+        int serverPort = Integer.getInteger("server.port", DEFAULT_PORT).intValue();
+        return new MaryEndpointPool(new String[] {serverHost + ':' + serverPort}, DEFAULT_RETRY_INTERVAL);
+    }
+
+    private static Address parseAddress(String server) {
+        int colon = server.lastIndexOf(':');
+        if (colon < 0) {
+            return new Address(server, DEFAULT_PORT);
+        }
+        try {
+            return new Address(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Mary server: " + server);
+        }
+    }
+
+    /**
+     * @return the number of servers in the pool.
+     */
+    public int size() {
+        return _endpoints.size();
+    }
+
+    /**
+     * Leases a connection to the least loaded healthy server, reconnecting to failed servers whose retry
+     * interval has passed if no server is healthy.  The connection must be released after use.
+     * @return the connection.
+     * @throws IOException if no server could be connected.
+     */
+    public Connection acquire() throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < _endpoints.size(); attempt++) {
+            Endpoint endpoint;
+            MaryClient client;
+            synchronized (this) {
+                endpoint = select(System.currentTimeMillis());
+                if (endpoint == null) {
+                    break;
+                }
+                endpoint._active++;
+                client = endpoint._idle.isEmpty() ? null : endpoint._idle.removeFirst();
+            }
+
+            if (client == null) {
+                try {
+                    client = connect(endpoint);
+                } catch (IOException e) {
+                    failure = e;
+                    synchronized (this) {
+                        endpoint._active--;
+                    }
+                    continue;
+                }
+            }
+            return new Connection(endpoint, client);
+        }
+
+        IOException e = new IOException("No Mary server available: " + this);
+        if (failure != null) {
+            e.initCause(failure);
+        }
+        throw e;
+    }
+
+    /**
+     * Returns a leased connection to the pool.
+     * @param connection the connection.
+     * @param failed whether the request failed, in which case the server is taken out of rotation until its
+     * retry interval has passed.
+     */
+    public synchronized void release(Connection connection, boolean failed) {
+        Endpoint endpoint = connection._endpoint;
+        endpoint._active--;
+        if (failed) {
+            markDown(endpoint, System.currentTimeMillis());
+        } else if (endpoint._healthy) {
+            endpoint._idle.addFirst(connection._client);
+            endpoint._nextProbe = System.currentTimeMillis() + _retryInterval;
+        }
+    }
+
+    /**
+     * Probes the servers that were not probed or used within the retry interval, reconnecting failed servers
+     * and detecting servers that went down while idle.
+     * @return whether any server is healthy.
+     */
+    public boolean probe() {
+        for (Endpoint endpoint : _endpoints) {
+            synchronized (this) {
+                if (System.currentTimeMillis() < endpoint._nextProbe) {
+                    continue;
+                }
+                // claim the probe so that concurrent callers do not probe the same server
+                endpoint._nextProbe = System.currentTimeMillis() + _retryInterval;
+            }
+            try {
+                MaryClient client = connect(endpoint);
+                synchronized (this) {
+                    if (endpoint._idle.isEmpty()) {
+                        endpoint._idle.add(client);
+                    }
+                }
+            } catch (IOException e) {
+                _logger.debug(e, e);
+            }
+        }
+
+        synchronized (this) {
+            for (Endpoint endpoint : _endpoints) {
+                if (endpoint._healthy) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Endpoint select(long now) {
+        Endpoint best = null;
+        for (int i = 0; i < _endpoints.size(); i++) {
+            Endpoint endpoint = _endpoints.get((_next + i) % _endpoints.size());
+            if (endpoint._healthy) {
+                if (best == null || !best._healthy || endpoint._active < best._active) {
+                    best = endpoint;
+                }
+            } else if (now >= endpoint._retryTime && (best == null || (!best._healthy && endpoint._active < best._active))) {
+                best = endpoint;
+            }
+        }
+        _next = (_next + 1) % _endpoints.size();
+        return best;
+    }
+
+    private MaryClient connect(Endpoint endpoint) throws IOException {
+        MaryClient client;
+        try {
+            client = MaryClient.getMaryClient(endpoint._address);
+        } catch (Exception e) {
+            synchronized (this) {
+                markDown(endpoint, System.currentTimeMillis());
+            }
+            IOException ioe = new IOException("Cannot connect to Mary server " + endpoint);
+            ioe.initCause(e);
+            throw ioe;
+        }
+
+        synchronized (this) {
+            if (!endpoint._healthy) {
+                _logger.info("Connected to Mary server " + endpoint);
+            }
+            endpoint._healthy = true;
+            endpoint._nextProbe = System.currentTimeMillis() + _retryInterval;
+        }
+        return client;
+    }
+
+    private void markDown(Endpoint endpoint, long now) {
+        if (endpoint._healthy) {
+            _logger.warn("Mary server " + endpoint + " failed, retrying in " + _retryInterval + "ms");
+        }
+        endpoint._healthy = false;
+        endpoint._retryTime = now + _retryInterval;
+        endpoint._idle.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("MaryEndpointPool[");
+        for (int i = 0; i < _endpoints.size(); i++) {
+            Endpoint endpoint = _endpoints.get(i);
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(endpoint).append(endpoint._healthy ? " up/" : " down/").append(endpoint._active);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * A connection leased from the pool.
+     */
+    public static class Connection {
+
+        private Endpoint _endpoint;
+        private MaryClient _client;
+
+        Connection(Endpoint endpoint, MaryClient client) {
+            _endpoint = endpoint;
+            _client = client;
+        }
+
+        /**
+         * @return the client connected to the server.
+         */
+        public MaryClient getClient() {
+            return _client;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return _endpoint.toString();
+        }
+    }
+
+    private static class Endpoint {
+
+        private Address _address;
+        private LinkedList<MaryClient> _idle = new LinkedList<MaryClient>();
+        private int _active = 0;
+
+        // servers are assumed healthy until the first connection attempt fails
+        private boolean _healthy = true;
+        private long _retryTime = 0;
+        private long _nextProbe = 0;
+
+        Endpoint(Address address) {
+            _address = address;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return _address.getHost() + ':' + _address.getPort();
+        }
+    }
+
+}
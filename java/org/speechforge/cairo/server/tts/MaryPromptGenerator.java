@@ -29,13 +29,12 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.io.IOException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 
-import marytts.client.MaryClient;
-import marytts.util.http.Address;
-
 import org.apache.log4j.Logger;
 
 // import com.sun.speech.freetts.Voice;
@@ -44,27 +43,61 @@ import org.apache.log4j.Logger;
 // import com.sun.speech.freetts.audio.SingleFileAudioPlayer;
 
 /**
- * Generates speech prompt files using the Mary text-to-speech engine.
+ * Generates speech prompt files using the Mary text-to-speech engine.  Requests are sent over connections
+ * leased from a {@link MaryEndpointPool}, so a failed request is retried on another server and a server that
+ * was down is reconnected automatically.
  *
  * @author Martin Mory {@literal <}<a href="mailto:linuxfan91@users.sourceforge.net">linuxfan91@users.sourceforge.net</a>{@literal >}
  */
-public class MaryPromptGenerator extends AbstractPoolableObject {
+public class MaryPromptGenerator extends AbstractPoolableObject implements PromptGenerator {
+
+    /**
+     * Locale of the synthesized text if the language of the voice is not configured.
+     */
+    public static final String DEFAULT_LOCALE = "en-US";
 
     // private Voice _voice;
     private String _voiceName;
+    private String _locale;
     private static Logger _logger = Logger.getLogger(MaryPromptGenerator.class);
-    private MaryClient _mary;
+    private MaryEndpointPool _endpoints;
 
+    /**
+     * Creates a prompt generator using the Mary server specified by the {@code server.host} and
+     * {@code server.port} system properties.
+     * @param voiceName the voice used for synthesis.
+     */
     public MaryPromptGenerator(String voiceName) {
-	_voiceName = voiceName;
-	try{
-	    String serverHost = System.getProperty("server.host", "localhost");
-	    int serverPort = Integer.getInteger("server.port", 59125).intValue();
-	    _mary = MaryClient.getMaryClient(new Address(serverHost, serverPort));
-	}
-	catch(Exception e){
-	    _logger.info("FATAL: Cannot connect to Mary server");
-	}
+        this(voiceName, MaryEndpointPool.createDefault());
+    }
+
+    /**
+     * TODOC
+     * @param voiceName the voice used for synthesis.
+     * @param endpoints the Mary servers to use.
+     */
+    public MaryPromptGenerator(String voiceName, MaryEndpointPool endpoints) {
+        this(voiceName, null, endpoints);
+    }
+
+    /**
+     * TODOC
+     * @param voiceName the voice used for synthesis.
+     * @param locale the language of the voice, e.g. "de", or {@code null} for {@link #DEFAULT_LOCALE}.
+     * @param endpoints the Mary servers to use.
+     */
+    public MaryPromptGenerator(String voiceName, String locale, MaryEndpointPool endpoints) {
+        _voiceName = voiceName;
+        _locale = (locale == null) ? DEFAULT_LOCALE : locale;
+        _endpoints = endpoints;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.util.pool.PoolableObject#validate()
+     */
+    @Override
+    public boolean validate() {
+        return _endpoints.probe();
     }
 
     /**
@@ -83,7 +116,7 @@ public class MaryPromptGenerator extends AbstractPoolableObject {
             text = "";
         }
 
-        String promptName = Long.toString(System.currentTimeMillis());
+        File promptFile = null;
 
         // File promptFile = new File(dir, promptName);
 
@@ -95,25 +128,130 @@ public class MaryPromptGenerator extends AbstractPoolableObject {
         // ap.close();
         // _voice.setAudioPlayer(null);
 	try{
+	    // unique even for prompts generated at the same time by different generators
+	    promptFile = File.createTempFile("prompt", ".au", dir);
 	    _logger.info("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-	    String locale = "en-US"; // or US English (en-US), Telugu (te), Turkish (tr), ... 
+	    String locale = _locale; // e.g. US English (en-US), Telugu (te), Turkish (tr), ... 
 	    String inputType = "TEXT";
 	    String outputType = "AUDIO";
 	    String audioType = "AU";
 	    
-	    _logger.info("MARY in action: " + dir + "/" + promptName + ".au");
-	    FileOutputStream baos = new FileOutputStream(dir + "/" + promptName + ".au");
-	    _mary.process(text, inputType, outputType, locale, audioType, _voiceName, baos);
-	    baos.close();
+	    _logger.info("MARY in action: " + promptFile);
+	    // a failed request is repeated from scratch on the next server
+	    for (int attempt = 1; ; attempt++) {
+	        MaryEndpointPool.Connection connection = _endpoints.acquire();
+	        FileOutputStream baos = new FileOutputStream(promptFile);
+	        try {
+	            connection.getClient().process(text, inputType, outputType, locale, audioType, _voiceName, baos);
+	            _endpoints.release(connection, false);
+	            break;
+	        } catch (IOException e) {
+	            _endpoints.release(connection, true);
+	            if (attempt >= _endpoints.size()) {
+	                throw e;
+	            }
+	            _logger.warn("Mary request to " + connection + " failed, retrying: " + e);
+	        } catch (RuntimeException e) {
+	            _endpoints.release(connection, true);
+	            throw e;
+	        } finally {
+	            baos.close();
+	        }
+	    }
 	}
 	catch(Exception e){
-	    throw new RuntimeException("Cannot synthesize with Mary!");
+	    // do not leave a partial prompt behind once every server has failed
+	    if (promptFile != null) {
+	        promptFile.delete();
+	    }
+	    throw new RuntimeException("Cannot synthesize with Mary!", e);
 	}
-        File promptFile = new File(dir, promptName + ".au");
 	/*	        if (!promptFile.exists()) {
             throw new RuntimeException("Expected generated prompt file does not exist!");
 		}*/
         return promptFile;
     }
 
+    /**
+     * Synthesizes the specified speech text, writing the audio (AU format) to the supplied stream as it is
+     * received from the Mary server.
+     * @param text textual content of the prompt.
+     * @param out stream receiving the synthesized audio, not closed by this method.
+     * @throws IOException if the audio could not be synthesized or written.
+     */
+    public synchronized void generatePrompt(String text, OutputStream out) throws IOException {
+        if (text == null) {
+            text = "";
+        }
+
+        // a failed request can only be retried on the next server as long as no audio was written
+        CountingOutputStream counter = new CountingOutputStream(out);
+        for (int attempt = 1; ; attempt++) {
+            MaryEndpointPool.Connection connection = _endpoints.acquire();
+            try {
+                connection.getClient().process(text, "TEXT", "AUDIO", _locale, "AU", _voiceName, counter);
+                _endpoints.release(connection, false);
+                return;
+            } catch (IOException e) {
+                // failures writing to the stream (e.g. playback stopped) are not the server's fault
+                _endpoints.release(connection, !counter._failed);
+                if (counter._failed || counter._count > 0 || attempt >= _endpoints.size()) {
+                    throw e;
+                }
+                _logger.warn("Mary request to " + connection + " failed, retrying: " + e);
+            } catch (RuntimeException e) {
+                _endpoints.release(connection, true);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written and records whether writing failed.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long _count = 0;
+        private boolean _failed = false;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.FilterOutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.FilterOutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                _failed = true;
+                throw e;
+            }
+            _count += len;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.FilterOutputStream#flush()
+         */
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+    }
+
 }
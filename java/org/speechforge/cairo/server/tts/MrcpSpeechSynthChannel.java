@@ -23,23 +23,35 @@
 package org.speechforge.cairo.server.tts;
 
 import org.speechforge.cairo.exception.UnsupportedHeaderException;
+import org.speechforge.cairo.rtp.AudioFormats;
 import org.speechforge.cairo.server.MrcpGenericChannel;
 import org.speechforge.cairo.server.resource.TransmitterResource;
+import org.speechforge.cairo.util.audio.G711Codec;
+import org.speechforge.cairo.util.http.HttpResourceCache;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeoutException;
 
 import javax.media.rtp.InvalidSessionAddressException;
 
-import org.apache.commons.pool.ObjectPool;
 import org.apache.log4j.Logger;
 import org.mrcp4j.MrcpEventName;
 import org.mrcp4j.MrcpRequestState;
@@ -70,155 +82,112 @@ public class MrcpSpeechSynthChannel extends MrcpGenericChannel implements Speech
 //
 //    volatile short _state = IDLE;
 
-    private ObjectPool _promptGeneratorPool;
     private RTPSpeechSynthChannel _rtpChannel;
     private File _promptDir;
-    private String _speechSynthesizer;
+    private PromptSynthesizer _promptSynthesizer;
+    private String _audioFormats;
+    private G711Codec _promptCodec;
+    private ExecutorService _requestExecutor;
+    private HttpResourceCache _httpCache;
+    private PromptFileManager _promptFiles;
+
+    // ids of the SPEAK requests queued or playing, in order
+    private Set<Long> _activeRequests = new LinkedHashSet<Long>();
 
     /**
      * TODOC
      * @param channelID 
      * @param basePromptDir 
      * @param rtpChannel 
-     * @param promptGeneratorPool 
+     * @param promptSynthesizer synthesizer shared between the channels of the transmitter.
+     * @param requestExecutor executor preparing the prompts of SPEAK requests (fetching URIs, starting synthesis).
+     * @param httpCache cache of http and https URIs shared between the channels, or {@code null} to download
+     * every time.
+     * @param promptFiles manager of the prompt directory of the channel and the prompt files copied into it, or
+     * {@code null} to leave them on disk.
      * @throws IllegalArgumentException 
      */
-    public MrcpSpeechSynthChannel(String channelID, RTPSpeechSynthChannel rtpChannel, File basePromptDir, ObjectPool promptGeneratorPool, String speechSynthesizer)
-      throws IllegalArgumentException {
+    public MrcpSpeechSynthChannel(String channelID, RTPSpeechSynthChannel rtpChannel, File basePromptDir,
+            PromptSynthesizer promptSynthesizer, ExecutorService requestExecutor, HttpResourceCache httpCache,
+            PromptFileManager promptFiles) throws IllegalArgumentException {
 
         if (basePromptDir == null || !basePromptDir.isDirectory()) {
             throw new IllegalArgumentException("Base prompt directory file specified does not exist or is not a directory: " + basePromptDir);
         }
 
-        _promptDir = new File(basePromptDir, channelID);
-        if (!_promptDir.mkdir()) {
-            throw new RuntimeException("Could not make prompt directory: " + _promptDir.getAbsolutePath());
+        if (promptFiles != null) {
+            _promptDir = promptFiles.createChannelDir(channelID);
+        } else {
+            _promptDir = new File(basePromptDir, channelID);
+            if (!_promptDir.mkdir()) {
+                throw new RuntimeException("Could not make prompt directory: " + _promptDir.getAbsolutePath());
+            }
         }
 
         _rtpChannel = rtpChannel;
-        _promptGeneratorPool = promptGeneratorPool;
-
-	if(speechSynthesizer == null)
-	    _speechSynthesizer = "Mary";
-	else
-	    _speechSynthesizer = speechSynthesizer;
+        _promptSynthesizer = promptSynthesizer;
+        _requestExecutor = requestExecutor;
+        _httpCache = httpCache;
+        _promptFiles = promptFiles;
+        AudioFormats af = rtpChannel.getAudioFormats();
+        _audioFormats = (af == null) ? null : String.valueOf(af.filterOutUnSupportedFormatsInOffer());
+        if (af != null && !rtpChannel.isStreaming()) {
+            // JMF plays prompt files already in the negotiated codec without resampling them
+            _promptCodec = RTPSpeechSynthChannel.selectCodec(af.filterOutUnSupportedFormatsInOffer());
+        }
     }
 
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.SpeechSynthRequestHandler#speak(org.mrcp4j.message.request.MrcpRequestFactory.UnimplementedRequest, org.mrcp4j.server.MrcpSession)
      */
-    public synchronized MrcpResponse speak(UnimplementedRequest request, MrcpSession session) {
+    public MrcpResponse speak(UnimplementedRequest request, MrcpSession session) {
         MrcpRequestState requestState = MrcpRequestState.COMPLETE;
         short statusCode = -1;
 
         _logger.debug(request.getContent());
         if (request.hasContent()) {
             String contentType = request.getContentType();
-            if (contentType.equalsIgnoreCase("text/plain")) {
-                String text = request.getContent();
+            if (contentType.equalsIgnoreCase("text/plain") || contentType.equalsIgnoreCase("text/uri-list")) {
+                Long requestID = new Long(request.getRequestID());
+                PromptPlayListener listener = new Listener(session, requestID);
                 try {
-                    File promptFile = generatePrompt(text);
-                    int state = _rtpChannel.queuePrompt(promptFile, new Listener(session));
+                    boolean killOnBargeIn = isKillOnBargeIn(request);
+                    PromptGeneratorRouter.Route voice = selectVoice(request);
+                    Prosody prosody = getProsody(request);
+                    // synthesis and fetching happen in the background, the prompt keeps its place in the queue
+                    int state;
+                    synchronized (_activeRequests) {
+                        _activeRequests.add(requestID);
+                        if (_rtpChannel.isStreaming()) {
+                            DeferredFrameSource source = new DeferredFrameSource();
+                            state = _rtpChannel.queuePrompt(source, listener, requestID, killOnBargeIn);
+                            source.setPreparation(_requestExecutor.submit(new StreamPreparation(request, source, voice, prosody)));
+                        } else {
+                            PromptFileManager.Request files = new PromptFileManager.Request();
+                            FutureTask<List<Future<File>>> pendingFiles =
+                                new FutureTask<List<Future<File>>>(new FilePreparation(request, voice, prosody, files));
+                            state = _rtpChannel.queuePrompt(pendingFiles, files, listener, requestID, killOnBargeIn);
+                            _requestExecutor.execute(pendingFiles);
+                        }
+                    }
                     requestState = (state == RTPSpeechSynthChannel.IDLE) ? MrcpRequestState.IN_PROGRESS : MrcpRequestState.PENDING;
                     statusCode = MrcpResponse.STATUS_SUCCESS;
+                } catch (IllegalValueException e) {
+                    _logger.debug(e, e);
+                    statusCode = MrcpResponse.STATUS_ILLEGAL_VALUE_FOR_HEADER;
                 } catch (RuntimeException e) {
                     _logger.debug(e, e);
+                    removeActiveRequest(requestID);
                     statusCode = MrcpResponse.STATUS_SERVER_INTERNAL_ERROR;
                 } catch (InvalidSessionAddressException e) {
                     _logger.debug(e, e);
+                    removeActiveRequest(requestID);
                     statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
                 } catch (IOException e) {
                     _logger.debug(e, e);
+                    removeActiveRequest(requestID);
                     statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
                 }
-            } else if (contentType.equalsIgnoreCase("text/uri-list")) {
-                String text = request.getContent();
-                String[] uris = text.split("\\r");
-                _logger.debug(text);
-                //TODO: Handle multiple URI's in a URI list
-                //should there be just one listener for the last prompt?  for now limiting to one.
-                if (uris.length > 1) {
-                   _logger.warn("Multiple URIs not supported yet.  Just playing the first URI.");
-                }
-                //for (int i=0; i<uris.length;i++) {
-                for (int i=0; i<1;i++) {
-                    try {
-
-                        URL url = new URL(uris[i]);
-                        URLConnection uc = url.openConnection();
-                        _logger.debug(uris[i]+"  "+uc.getContentType());
-                        
-                        if (uc.getContentType().equals("text/plain")) {                        
-                           BufferedReader in = new BufferedReader(
-                                                new InputStreamReader(
-                                                uc.getInputStream()));
-                           
-                           //TODO: Make this more efficient
-                           String inputLine;
-                           String promptString = new String();
-                           while ((inputLine = in.readLine()) != null) {
-                               promptString = promptString +inputLine;
-                           }
-                           in.close();
-                           
-                           try {
-                              File promptFile = generatePrompt(promptString);
-                              int state = _rtpChannel.queuePrompt(promptFile, new Listener(session));
-                              requestState = (state == RTPSpeechSynthChannel.IDLE) ? MrcpRequestState.IN_PROGRESS : MrcpRequestState.PENDING;
-                              statusCode = MrcpResponse.STATUS_SUCCESS;
-                           } catch (RuntimeException e) {
-                               _logger.debug(e, e);
-                               statusCode = MrcpResponse.STATUS_SERVER_INTERNAL_ERROR;
-                               break;
-                           } catch (InvalidSessionAddressException e) {
-                               _logger.debug(e, e);
-                               statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                               break;
-                           } catch (IOException e) {
-                               _logger.debug(e, e);
-                               statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                               break;
-                           }
-                           
-                        } else if ((uc.getContentType().equals("audio/x-wav")) ||
-                                   (uc.getContentType().equals("audio/basic"))){
-                            try {
-                                File promptFile;
-                                //if file protocol url -- no need to copy it to the server else copy it
-                                if (url.getProtocol().equals("file")) {
-                                   promptFile = new File(url.getFile());
-                                } else {
-                                   promptFile = copyPrompt(url);
-                                }
-                                int state = _rtpChannel.queuePrompt(promptFile, new Listener(session));
-                                requestState = (state == RTPSpeechSynthChannel.IDLE) ? MrcpRequestState.IN_PROGRESS : MrcpRequestState.PENDING;
-                                statusCode = MrcpResponse.STATUS_SUCCESS;
-                             } catch (RuntimeException e) {
-                                 _logger.debug(e, e);
-                                 statusCode = MrcpResponse.STATUS_SERVER_INTERNAL_ERROR;
-                                 break;
-                             } catch (InvalidSessionAddressException e) {
-                                 _logger.debug(e, e);
-                                 statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                                 break;
-                             } catch (IOException e) {
-                                 _logger.debug(e, e);
-                                 statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                                 break;
-                             }
-                        } else {
-                            _logger.warn("Unsupported content type for in the speak request: "+ uc.getContentType());
-                        }
-                  
-                        
-                    } catch (MalformedURLException e) {
-                        _logger.debug(e, e);
-                        statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                    } catch (IOException e) {
-                        _logger.debug(e, e);
-                        statusCode = MrcpResponse.STATUS_OPERATION_FAILED;
-                    }
-                }
             } else {
                 statusCode = MrcpResponse.STATUS_UNSUPPORTED_HEADER_VALUE;
             }
@@ -232,45 +201,50 @@ public class MrcpSpeechSynthChannel extends MrcpGenericChannel implements Speech
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.SpeechSynthRequestHandler#stop(org.mrcp4j.message.request.StopRequest, org.mrcp4j.server.MrcpSession)
      */
-    public synchronized MrcpResponse stop(StopRequest request, MrcpSession session) {
-        MrcpRequestState requestState = MrcpRequestState.COMPLETE;
-        short statusCode = -1;
-        _rtpChannel.stopPlayback();
-        statusCode = MrcpResponse.STATUS_SUCCESS;
-
-        //TODO: set Active-Request-Id-List header
-
-        return session.createResponse(statusCode, requestState);
+    public MrcpResponse stop(StopRequest request, MrcpSession session) {
+        MrcpHeader header = request.getHeader(MrcpHeaderName.ACTIVE_REQUEST_ID_LIST);
+        if (header == null) {
+            return stopPlayback(session, null);
+        }
+        List<Long> requestIDs = new ArrayList<Long>();
+        try {
+            for (String requestID : header.getValueString().split(",")) {
+                requestIDs.add(Long.valueOf(requestID.trim()));
+            }
+        } catch (NumberFormatException e) {
+            _logger.debug(e, e);
+            MrcpResponse response = session.createResponse(MrcpResponse.STATUS_ILLEGAL_VALUE_FOR_HEADER, MrcpRequestState.COMPLETE);
+            response.addHeader(header);
+            return response;
+        }
+        return stopPlayback(session, requestIDs);
     }
 
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.SpeechSynthRequestHandler#pause(org.mrcp4j.message.request.MrcpRequestFactory.UnimplementedRequest, org.mrcp4j.server.MrcpSession)
      */
-    public synchronized MrcpResponse pause(UnimplementedRequest request, MrcpSession session) {
-        // TODO Auto-generated method stub
-        return null;
+    public MrcpResponse pause(UnimplementedRequest request, MrcpSession session) {
+        return pausePlayback(session, true);
     }
 
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.SpeechSynthRequestHandler#resume(org.mrcp4j.message.request.MrcpRequestFactory.UnimplementedRequest, org.mrcp4j.server.MrcpSession)
      */
-    public synchronized MrcpResponse resume(UnimplementedRequest request, MrcpSession session) {
-        // TODO Auto-generated method stub
-        return null;
+    public MrcpResponse resume(UnimplementedRequest request, MrcpSession session) {
+        return pausePlayback(session, false);
     }
 
     /* (non-Javadoc)
      * @see org.mrcp4j.server.provider.SpeechSynthRequestHandler#bargeInOccurred(org.mrcp4j.message.request.MrcpRequestFactory.UnimplementedRequest, org.mrcp4j.server.MrcpSession)
      */
-    public synchronized MrcpResponse bargeInOccurred(UnimplementedRequest request, MrcpSession session) {
-        MrcpRequestState requestState = MrcpRequestState.COMPLETE;
-        short statusCode = -1;
-        _rtpChannel.stopPlayback();
-        statusCode = MrcpResponse.STATUS_SUCCESS;
-
-        //TODO: set Active-Request-Id-List header
-
-        return session.createResponse(statusCode, requestState);
+    public MrcpResponse bargeInOccurred(UnimplementedRequest request, MrcpSession session) {
+        List<Long> stopped;
+        synchronized (_activeRequests) {
+            // SPEAK requests with Kill-On-Barge-In false keep playing
+            stopped = _rtpChannel.bargeIn();
+            _activeRequests.removeAll(stopped);
+        }
+        return createStopResponse(session, stopped);
     }
 
     /* (non-Javadoc)
@@ -289,111 +263,508 @@ public class MrcpSpeechSynthChannel extends MrcpGenericChannel implements Speech
         return null;
     }
 
+    // headers that may be set by SET-PARAMS
+    private static EnumSet<MrcpHeaderName> SUPPORTED_HEADERS = EnumSet.of(
+            MrcpHeaderName.KILL_ON_BARGE_IN, MrcpHeaderName.VOICE_NAME, MrcpHeaderName.SPEECH_LANGUAGE,
+            MrcpHeaderName.PROSODY_RATE, MrcpHeaderName.PROSODY_VOLUME);
+
     /* (non-Javadoc)
      * @see org.speechforge.cairo.server.MrcpGenericChannel#validateParam(org.mrcp4j.message.header.MrcpHeader)
      */
     @SuppressWarnings("unused")
     @Override
     protected boolean validateParam(MrcpHeader header) throws UnsupportedHeaderException, IllegalValueException {
+        if (SUPPORTED_HEADERS.contains(header.getHeaderName())) {
+            header.getValueObject();
+            return true;
+        }
         throw new UnsupportedHeaderException();
     }
 
-    private File copyPrompt(URL url) throws IOException {
+    /**
+     * Selects the voice of a SPEAK request from its Voice-Name and Speech-Language, which default to the values
+     * set by SET-PARAMS.
+     */
+    private PromptGeneratorRouter.Route selectVoice(UnimplementedRequest request) throws IllegalValueException {
+        Object voiceName = getParam(MrcpHeaderName.VOICE_NAME, request, null);
+        Object language = getParam(MrcpHeaderName.SPEECH_LANGUAGE, request, null);
+        return _promptSynthesizer.selectVoice((voiceName == null) ? null : voiceName.toString().trim(),
+                (language == null) ? null : language.toString().trim());
+    }
+
+    /**
+     * Returns the prosody of a SPEAK request from its Prosody-Rate and Prosody-Volume, which default to the values
+     * set by SET-PARAMS.
+     */
+    private Prosody getProsody(UnimplementedRequest request) throws IllegalValueException {
+        Object rate = getParam(MrcpHeaderName.PROSODY_RATE, request, null);
+        Object volume = getParam(MrcpHeaderName.PROSODY_VOLUME, request, null);
+        try {
+            return Prosody.valueOf((rate == null) ? null : rate.toString(), (volume == null) ? null : volume.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalValueException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the Kill-On-Barge-In value of a SPEAK request, which defaults to the value set by SET-PARAMS or true.
+     */
+    private boolean isKillOnBargeIn(UnimplementedRequest request) throws IllegalValueException {
+        Object killOnBargeIn = getParam(MrcpHeaderName.KILL_ON_BARGE_IN, request, Boolean.TRUE);
+        return !"false".equalsIgnoreCase(String.valueOf(killOnBargeIn).trim());
+    }
+
+    private File copyPrompt(InputStream is, String suffix, PromptFileManager.Request request) throws IOException {
         
         if (_promptDir == null || !_promptDir.isDirectory()) {
             throw new IllegalArgumentException("Directory file specified does not exist or is not a directory: " + _promptDir);
         }
 
-        String promptName = Long.toString(System.currentTimeMillis());
-        File promptFile = new File(_promptDir, promptName);
+        // unique even for the URIs of a list fetched at the same time
+        File promptFile = File.createTempFile("prompt", suffix, _promptDir);
         
-        InputStream is = url.openStream();
-        FileOutputStream fos = new FileOutputStream(promptFile);
-    
         // Transfer bytes from in to out
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = is.read(buf)) > 0) {
-            fos.write(buf, 0, len);
+        try {
+            FileOutputStream fos = new FileOutputStream(promptFile);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = is.read(buf)) > 0) {
+                    fos.write(buf, 0, len);
+                }
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            // do not leave a partial prompt behind
+            promptFile.delete();
+            throw e;
+        }
+        if (_promptFiles != null) {
+            _promptFiles.track(promptFile, request);
         }
-        is.close();
-        fos.close();
         return promptFile;
     }
     
-    private File generatePrompt(String text) throws IllegalArgumentException, IOException {
-	_logger.info(">>>>>>>>>>>>>>>>>>>_speechSynthesizer:"+ _speechSynthesizer + "<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
-	if(_speechSynthesizer.equals("Festival")) return generateFestivalPrompt(text);
-	else return generateMaryPrompt(text);
-	
+    /**
+     * Stops playback and cancels the synthesis of the given SPEAK requests, or of all active SPEAK requests,
+     * listing those stopped in the Active-Request-Id-List header of the response.
+     * @param requestIDs ids of the SPEAK requests to stop, or {@code null} to stop all.
+     */
+    private MrcpResponse stopPlayback(MrcpSession session, Collection<Long> requestIDs) {
+        List<Long> stopped;
+        synchronized (_activeRequests) {
+            // takes effect within one RTP frame, no SPEAK-COMPLETE is sent for the stopped requests
+            stopped = (requestIDs == null) ? _rtpChannel.stopPlayback() : _rtpChannel.stopPlayback(requestIDs);
+            _activeRequests.removeAll(stopped);
+        }
+        return createStopResponse(session, stopped);
     }
 
-    private File generateFestivalPrompt(String text) throws IllegalArgumentException, IOException {
-        FestivalPromptGenerator promptGenerator = null;
-	_logger.info(">>>>>>>>>>>>>>>>>>> in festivalPrompt<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
-        // borrow prompt generator
-        try {
-            promptGenerator = (FestivalPromptGenerator) _promptGeneratorPool.borrowObject();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new RuntimeException(e);
+    private MrcpResponse createStopResponse(MrcpSession session, List<Long> stopped) {
+        MrcpResponse response = session.createResponse(MrcpResponse.STATUS_SUCCESS, MrcpRequestState.COMPLETE);
+        if (!stopped.isEmpty()) {
+            StringBuilder requestIDs = new StringBuilder();
+            for (Long requestID : stopped) {
+                if (requestIDs.length() > 0) {
+                    requestIDs.append(", ");
+                }
+                requestIDs.append(requestID);
+            }
+            response.addHeader(MrcpHeaderName.ACTIVE_REQUEST_ID_LIST.constructHeader(requestIDs.toString()));
+        }
+        return response;
+    }
+
+    /**
+     * Pauses or resumes playback of the active SPEAK request, listing it in the Active-Request-Id-List header of
+     * the response.  Playback resumes from the frame at which it was paused, the prompt is neither restarted nor
+     * synthesized again.
+     */
+    private MrcpResponse pausePlayback(MrcpSession session, boolean pause) {
+        Long requestID;
+        boolean supported;
+        synchronized (_activeRequests) {
+            if (_activeRequests.isEmpty()) {
+                return session.createResponse(MrcpResponse.STATUS_METHOD_NOT_VALID_IN_STATE, MrcpRequestState.COMPLETE);
+            }
+            requestID = _activeRequests.iterator().next();
+            supported = pause ? _rtpChannel.pausePlayback() : _rtpChannel.resumePlayback();
+        }
+        if (!supported) {
+            // prompts played by JMF cannot be paused
+            return session.createResponse(MrcpResponse.STATUS_OPERATION_FAILED, MrcpRequestState.COMPLETE);
         }
 
-        // generate prompt
-        File promptFile = promptGenerator.generatePrompt(text, _promptDir);
+        MrcpResponse response = session.createResponse(MrcpResponse.STATUS_SUCCESS, MrcpRequestState.COMPLETE);
+        response.addHeader(MrcpHeaderName.ACTIVE_REQUEST_ID_LIST.constructHeader(requestID.toString()));
+        return response;
+    }
+
+    private boolean removeActiveRequest(Long requestID) {
+        synchronized (_activeRequests) {
+            return _activeRequests.remove(requestID);
+        }
+    }
 
-        // return prompt generator
+    /**
+     * Splits speech text into sentence chunks and starts synthesizing them concurrently, so that playback can
+     * start as soon as the first sentence is ready.
+     */
+    private AudioFrameSource synthesizeStream(String text, PromptGeneratorRouter.Route voice, Prosody prosody)
+      throws IOException {
+        List<String> chunks = TextChunker.split(text);
+        List<AudioFrameSource> buffers = new ArrayList<AudioFrameSource>(chunks.size());
         try {
-            _promptGeneratorPool.returnObject(promptGenerator);
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            _logger.debug(e, e);
+            for (String chunk : chunks) {
+                buffers.add(_promptSynthesizer.synthesizeStream(chunk, voice, _promptDir, _audioFormats,
+                        _rtpChannel.getCodec(), prosody));
+            }
+        } catch (IOException e) {
+            for (AudioFrameSource buffer : buffers) {
+                buffer.close();
+            }
+            throw e;
         }
+        return (buffers.size() == 1) ? buffers.get(0) : new SequenceFrameSource(buffers);
+    }
 
-        return promptFile;
+    /**
+     * Splits speech text into sentence chunks and starts synthesizing them concurrently into prompt files.
+     */
+    private List<Future<File>> synthesizeFiles(String text, PromptGeneratorRouter.Route voice, Prosody prosody,
+            PromptFileManager.Request request) {
+        List<String> chunks = TextChunker.split(text);
+        List<Future<File>> pendingFiles = new ArrayList<Future<File>>(chunks.size());
+        for (String chunk : chunks) {
+            pendingFiles.add(_promptSynthesizer.synthesizeLater(chunk, voice, _promptDir, _audioFormats, _promptCodec, prosody,
+                    request));
+        }
+        return pendingFiles;
     }
 
-    private File generateMaryPrompt(String text) throws IllegalArgumentException, IOException {
-        MaryPromptGenerator promptGenerator = null;
+    /**
+     * Splits the content of a text/uri-list (RFC 2483) into its URIs, skipping comments and blank lines.
+     */
+    private static List<String> parseUriList(String content) throws IOException {
+        List<String> uris = new ArrayList<String>();
+        for (String line : content.split("\\r\\n|\\r|\\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                uris.add(line);
+            }
+        }
+        if (uris.isEmpty()) {
+            throw new IOException("No URI in the speak request");
+        }
+        return uris;
+    }
 
-        // borrow prompt generator
+    /**
+     * Fetches the content of a URI of a text/uri-list SPEAK request, either speech text or an audio prompt file.
+     * Audio with a file: URI is played in place, http and https URIs are taken from the HTTP cache (the cached
+     * resource must be released by {@link #release(SpeakContent)}), any other audio is copied to the prompt
+     * directory for the SPEAK request (if any) playing it.
+     */
+    private SpeakContent fetchContent(String uri, PromptFileManager.Request request) throws IOException {
+        URL url = new URL(uri);
+        if (_httpCache != null && (url.getProtocol().equals("http") || url.getProtocol().equals("https"))) {
+            HttpResourceCache.Resource resource = _httpCache.get(url);
+            String contentType = getMediaType(resource.getContentType());
+            _logger.debug(uri + "  " + contentType + " (cached)");
+            if (contentType.equals("audio/x-wav") || contentType.equals("audio/basic")) {
+                // cached files are never modified, they can be mapped and stored like static prompts
+                return new SpeakContent(resource);
+            }
+            try {
+                if (contentType.equals("text/plain")) {
+                    return new SpeakContent(readText(new FileInputStream(resource.getFile()), resource.getContentType()));
+                }
+            } finally {
+                _httpCache.release(resource);
+            }
+            throw new IOException("Unsupported content type for in the speak request: " + resource.getContentType());
+        }
+
+        URLConnection uc = url.openConnection();
+        String contentType = getMediaType(uc.getContentType());
+        _logger.debug(uri + "  " + contentType);
+
+        if (contentType.equals("text/plain")) {
+            return new SpeakContent(readText(uc.getInputStream(), uc.getContentType()));
+
+        } else if (contentType.equals("audio/x-wav") || contentType.equals("audio/basic")) {
+            //if file protocol url -- no need to copy it to the server else copy it
+            if (url.getProtocol().equals("file")) {
+                uc.getInputStream().close();
+                return new SpeakContent(new File(url.getFile()), true);
+            }
+            InputStream is = uc.getInputStream();
+            try {
+                return new SpeakContent(copyPrompt(is, getSuffix(contentType), request), false);
+            } finally {
+                is.close();
+            }
+        }
+        throw new IOException("Unsupported content type for in the speak request: " + uc.getContentType());
+    }
+
+    /**
+     * Copies an audio prompt taken from the HTTP cache to the prompt directory, so that it can be played after
+     * the cached resource has been released.
+     */
+    private SpeakContent copyCached(SpeakContent content, PromptFileManager.Request request) throws IOException {
         try {
-            promptGenerator = (MaryPromptGenerator) _promptGeneratorPool.borrowObject();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new RuntimeException(e);
+            InputStream is = new FileInputStream(content._promptFile);
+            try {
+                return new SpeakContent(copyPrompt(is, getSuffix(getMediaType(content._resource.getContentType())),
+                        request), false);
+            } finally {
+                is.close();
+            }
+        } finally {
+            release(content);
+        }
+    }
+
+    /**
+     * Releases the HTTP cache resource holding the prompt file of the content of a URI, if any.
+     */
+    private void release(SpeakContent content) {
+        if (content._resource != null) {
+            _httpCache.release(content._resource);
+        }
+    }
+
+    private static String getSuffix(String mediaType) {
+        return mediaType.equals("audio/basic") ? ".au" : ".wav";
+    }
+
+    private static String getMediaType(String contentType) {
+        if (contentType == null) {
+            return "";
         }
+        int semicolon = contentType.indexOf(';');
+        return ((semicolon < 0) ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    }
 
-        // generate prompt
-        File promptFile = promptGenerator.generatePrompt(text, _promptDir);
+    private static String readText(InputStream is, String contentType) throws IOException {
+        String charset = null;
+        int index = (contentType == null) ? -1 : contentType.toLowerCase().indexOf("charset=");
+        if (index >= 0) {
+            charset = contentType.substring(index + 8).split(";")[0].trim().replace("\"", "");
+        }
 
-        // return prompt generator
+        BufferedReader in = new BufferedReader((charset == null) ? new InputStreamReader(is) : new InputStreamReader(is, charset));
         try {
-            _promptGeneratorPool.returnObject(promptGenerator);
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            _logger.debug(e, e);
+            StringBuilder text = new StringBuilder();
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                // line breaks separate words, they must not be joined
+                if (text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append(inputLine);
+            }
+            return text.toString();
+        } finally {
+            in.close();
         }
+    }
 
-        return promptFile;
+    /**
+     * Content of a SPEAK request, either speech text or an audio prompt file.
+     */
+    private static class SpeakContent {
+
+        private String _text;
+        private File _promptFile;
+        private boolean _static;
+        private HttpResourceCache.Resource _resource;
+
+        SpeakContent(String text) {
+            _text = text;
+        }
+
+        /**
+         * TODOC
+         * @param promptFile the audio prompt file.
+         * @param isStatic whether the file is a static prompt (rather than a copy made for this request).
+         */
+        SpeakContent(File promptFile, boolean isStatic) {
+            _promptFile = promptFile;
+            _static = isStatic;
+        }
+
+        /**
+         * TODOC
+         * @param resource the HTTP cache resource holding the audio prompt file, kept until released.
+         */
+        SpeakContent(HttpResourceCache.Resource resource) {
+            this(resource.getFile(), true);
+            _resource = resource;
+        }
+    }
+
+    /**
+     * Prepares the prompt of a SPEAK request on a streaming channel.  The URIs of a text/uri-list are fetched
+     * concurrently, each into its own part of the prompt, while the parts are played in list order.
+     */
+    private class StreamPreparation implements Runnable {
+
+        private UnimplementedRequest _request;
+        private DeferredFrameSource _source;
+        private PromptGeneratorRouter.Route _voice;
+        private Prosody _prosody;
+
+        StreamPreparation(UnimplementedRequest request, DeferredFrameSource source, PromptGeneratorRouter.Route voice,
+                Prosody prosody) {
+            _request = request;
+            _source = source;
+            _voice = voice;
+            _prosody = prosody;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                if (_request.getContentType().equalsIgnoreCase("text/plain")) {
+                    _source.setSource(synthesizeStream(_request.getContent(), _voice, _prosody));
+                    return;
+                }
+
+                List<String> uris = parseUriList(_request.getContent());
+                List<DeferredFrameSource> parts = new ArrayList<DeferredFrameSource>(uris.size());
+                for (String uri : uris) {
+                    DeferredFrameSource part = new DeferredFrameSource();
+                    part.setPreparation(_requestExecutor.submit(new UriPreparation(uri, part, _voice, _prosody)));
+                    parts.add(part);
+                }
+                // closes the parts, cancelling their preparation, if the request was stopped meanwhile
+                _source.setSource((parts.size() == 1) ? parts.get(0) : new SequenceFrameSource(parts));
+            } catch (Exception e) {
+                _logger.debug(e, e);
+                _source.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Fetches a URI of a text/uri-list SPEAK request on a streaming channel and prepares its part of the prompt.
+     */
+    private class UriPreparation implements Runnable {
+
+        private String _uri;
+        private DeferredFrameSource _part;
+        private PromptGeneratorRouter.Route _voice;
+        private Prosody _prosody;
+
+        UriPreparation(String uri, DeferredFrameSource part, PromptGeneratorRouter.Route voice, Prosody prosody) {
+            _uri = uri;
+            _part = part;
+            _voice = voice;
+            _prosody = prosody;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                SpeakContent content = fetchContent(_uri, null);
+                if (content._text != null) {
+                    _part.setSource(synthesizeStream(content._text, _voice, _prosody));
+                } else {
+                    try {
+                        _part.setSource(_promptSynthesizer.openPrompt(content._promptFile, _rtpChannel.getCodec(), content._static));
+                    } finally {
+                        // cached audio is mapped and copied audio read into memory when opened
+                        release(content);
+                    }
+                    if (!content._static && _promptFiles != null) {
+                        _promptFiles.release(content._promptFile);
+                    }
+                }
+            } catch (Exception e) {
+                _logger.debug(e, e);
+                _part.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Prepares the prompt files of a SPEAK request on a JMF channel.  The URIs of a text/uri-list are fetched
+     * (and synthesized) concurrently, one prompt file each.
+     */
+    private class FilePreparation implements Callable<List<Future<File>>> {
+
+        private UnimplementedRequest _request;
+        private PromptGeneratorRouter.Route _voice;
+        private Prosody _prosody;
+        private PromptFileManager.Request _files;
+
+        FilePreparation(UnimplementedRequest request, PromptGeneratorRouter.Route voice, Prosody prosody,
+                PromptFileManager.Request files) {
+            _request = request;
+            _voice = voice;
+            _prosody = prosody;
+            _files = files;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        public List<Future<File>> call() throws Exception {
+            if (_request.getContentType().equalsIgnoreCase("text/plain")) {
+                return synthesizeFiles(_request.getContent(), _voice, _prosody, _files);
+            }
+
+            List<String> uris = parseUriList(_request.getContent());
+            List<Future<File>> pendingFiles = new ArrayList<Future<File>>(uris.size());
+            for (final String uri : uris) {
+                pendingFiles.add(_requestExecutor.submit(new Callable<File>() {
+                    public File call() throws Exception {
+                        SpeakContent content = fetchContent(uri, _files);
+                        if (content._text != null) {
+                            return _promptSynthesizer.synthesize(content._text, _voice, _promptDir, _audioFormats,
+                                    _promptCodec, _prosody, _files);
+                        }
+                        if (content._resource != null) {
+                            // played later, the cached file may be evicted meanwhile
+                            content = copyCached(content, _files);
+                        }
+                        return content._promptFile;
+                    }
+                }));
+            }
+            return pendingFiles;
+        }
     }
 
     private class Listener implements PromptPlayListener {
 
         private MrcpSession _session;
+        private Long _requestID;
 
         /**
          * TODOC
          * @param session
+         * @param requestID id of the SPEAK request, no event is posted once it is no longer active.
          */
-        public Listener(MrcpSession session) {
+        public Listener(MrcpSession session, Long requestID) {
             _session = session;
+            _requestID = requestID;
         }
 
         /* (non-Javadoc)
          * @see org.speechforge.cairo.server.tts.PromptPlayListener#playCompleted()
          */
         public void playCompleted() {
+            if (!removeActiveRequest(_requestID)) {
+                return;
+            }
             try {
                 //TODO: check state before posting event
                 MrcpEvent event = _session.createEvent(
@@ -424,6 +795,9 @@ public class MrcpSpeechSynthChannel extends MrcpGenericChannel implements Speech
          * @see org.speechforge.cairo.server.tts.PromptPlayListener#playFailed(java.lang.Exception)
          */
         public void playFailed(Exception cause) {
+            if (!removeActiveRequest(_requestID)) {
+                return;
+            }
             try {
                 //TODO: check state before posting event
                 MrcpEvent event = _session.createEvent(
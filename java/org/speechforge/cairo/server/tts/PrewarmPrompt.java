@@ -0,0 +1,114 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.Serializable;
+
+/**
+ * A prompt to render and cache ahead of the SPEAK requests playing it, either a text synthesized with a voice or
+ * the URI of an audio prompt.
+ */
+public class PrewarmPrompt implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String _text;
+    private String _voiceName;
+    private String _language;
+    private String _uri;
+
+    private PrewarmPrompt(String text, String voiceName, String language, String uri) {
+        _text = text;
+        _voiceName = voiceName;
+        _language = language;
+        _uri = uri;
+    }
+
+    /**
+     * Creates a prompt synthesizing a text.
+     * @param text the text to synthesize.
+     * @param voiceName the voice to synthesize with, or {@code null}.
+     * @param language the language to synthesize in, or {@code null}.
+     * @return the prompt.
+     * @see PromptGeneratorRouter#select(String, String)
+     */
+    public static PrewarmPrompt forText(String text, String voiceName, String language) {
+        return new PrewarmPrompt(text, voiceName, language, null);
+    }
+
+    /**
+     * Creates a prompt fetching an audio file.
+     * @param uri the file, http or https URI of the audio prompt.
+     * @return the prompt.
+     */
+    public static PrewarmPrompt forUri(String uri) {
+        return new PrewarmPrompt(null, null, null, uri);
+    }
+
+    /**
+     * @return the text to synthesize, or {@code null} for an audio prompt.
+     */
+    public String getText() {
+        return _text;
+    }
+
+    /**
+     * @return the voice to synthesize with, or {@code null}.
+     */
+    public String getVoiceName() {
+        return _voiceName;
+    }
+
+    /**
+     * @return the language to synthesize in, or {@code null}.
+     */
+    public String getLanguage() {
+        return _language;
+    }
+
+    /**
+     * @return the URI of the audio prompt, or {@code null} for a text prompt.
+     */
+    public String getUri() {
+        return _uri;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if (_uri != null) {
+            return _uri;
+        }
+        StringBuilder sb = new StringBuilder("\"").append(_text).append('"');
+        if (_voiceName != null) {
+            sb.append(" voice=").append(_voiceName);
+        }
+        if (_language != null) {
+            sb.append(" language=").append(_language);
+        }
+        return sb.toString();
+    }
+
+}
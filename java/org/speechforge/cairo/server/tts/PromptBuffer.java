@@ -0,0 +1,237 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.speechforge.cairo.util.audio.AuEncodingOutputStream;
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Bounded in-memory buffer of G.711 encoded prompt audio, filled by a synthesizer while the prompt is being played.
+ * <p>
+ * The synthesizer writes its output (AU format, any sample rate) to the stream returned by {@link #openAuStream()},
+ * which converts it incrementally to the codec of the RTP channel.  Writers block while the buffer is full and are
+ * aborted with an {@link IOException} once the buffer is closed, e.g. because playback was stopped.
+ * </p>
+ */
+public class PromptBuffer implements AudioFrameSource {
+
+    /**
+     * Default capacity in bytes, one minute of G.711 audio.
+     */
+    public static final int DEFAULT_CAPACITY = G711Codec.SAMPLE_RATE * 60;
+
+    // storage grows on demand up to the capacity, starting with one second of audio
+    private static final int INITIAL_SIZE = G711Codec.SAMPLE_RATE;
+
+    private G711Codec _codec;
+    private int _capacity;
+    private byte[] _buffer;
+    private int _head = 0;
+    private int _count = 0;
+
+    private boolean _ended = false;
+    private boolean _closed = false;
+    private IOException _failure;
+
+    /**
+     * TODOC
+     * @param codec codec of the buffered audio.
+     */
+    public PromptBuffer(G711Codec codec) {
+        this(codec, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * TODOC
+     * @param codec codec of the buffered audio.
+     * @param capacity maximum number of encoded bytes buffered.
+     */
+    public PromptBuffer(G711Codec codec, int capacity) {
+        _codec = codec;
+        _capacity = capacity;
+        _buffer = new byte[Math.min(capacity, INITIAL_SIZE)];
+    }
+
+    /**
+     * @return the codec of the buffered audio.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * Appends encoded audio to the buffer, blocking while the buffer is full.
+     * @param b encoded audio.
+     * @param off offset of the audio.
+     * @param len number of bytes to append.
+     * @throws IOException if the buffer has been closed or the writing thread is interrupted.
+     */
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (_ended) {
+            throw new IllegalStateException("Prompt buffer already ended");
+        }
+        while (len > 0) {
+            if (_count == _buffer.length && _buffer.length < _capacity) {
+                grow();
+            }
+            while (_count == _buffer.length && !_closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while writing to prompt buffer");
+                }
+            }
+            if (_closed) {
+                throw new IOException("Prompt buffer closed");
+            }
+
+            int tail = (_head + _count) % _buffer.length;
+            int n = Math.min(len, Math.min(_buffer.length - _count, _buffer.length - tail));
+            System.arraycopy(b, off, _buffer, tail, n);
+            _count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void grow() {
+        byte[] buffer = new byte[(int) Math.min((long) _buffer.length * 2, _capacity)];
+        int first = Math.min(_count, _buffer.length - _head);
+        System.arraycopy(_buffer, _head, buffer, 0, first);
+        System.arraycopy(_buffer, 0, buffer, first, _count - first);
+        _buffer = buffer;
+        _head = 0;
+    }
+
+    /**
+     * Marks the end of the audio, playback completes once the buffered audio has been read.
+     */
+    public synchronized void end() {
+        _ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the audio as failed, playback fails with the specified cause when it reaches the end of the buffered audio.
+     * @param cause the reason the audio could not be produced.
+     */
+    public synchronized void fail(Exception cause) {
+        if (cause instanceof IOException) {
+            _failure = (IOException) cause;
+        } else {
+            _failure = new IOException("Prompt synthesis failed: " + cause);
+            _failure.initCause(cause);
+        }
+        _ended = true;
+        notifyAll();
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+     */
+    public synchronized int readFrame(byte[] frame) throws IOException {
+        if (_closed) {
+            return -1;
+        }
+        if (_count < frame.length && !_ended) {
+            // wait for a complete frame
+            return 0;
+        }
+        if (_count == 0) {
+            if (_failure != null) {
+                throw _failure;
+            }
+            return -1;
+        }
+
+        int n = Math.min(frame.length, _count);
+        int first = Math.min(n, _buffer.length - _head);
+        System.arraycopy(_buffer, _head, frame, 0, first);
+        System.arraycopy(_buffer, 0, frame, first, n - first);
+        _head = (_head + n) % _buffer.length;
+        _count -= n;
+        notifyAll();
+        return n;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+     */
+    public synchronized void close() {
+        _closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Opens a stream accepting audio in AU format, encoding it into this buffer as it is written.  Closing the
+     * stream ends the buffered audio.
+     * @return the stream to pass to the synthesizer.
+     */
+    public OutputStream openAuStream() {
+        return new AuEncodingOutputStream(openEncodedStream(), _codec);
+    }
+
+    /**
+     * Opens a stream accepting audio already encoded in the codec of this buffer.  Closing the stream ends the
+     * buffered audio.
+     * @return the stream writing into this buffer.
+     */
+    public OutputStream openEncodedStream() {
+        return new BufferStream();
+    }
+
+    /**
+     * Writes encoded audio into the enclosing buffer, ending it when closed.
+     */
+    private class BufferStream extends OutputStream {
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            PromptBuffer.this.write(b, off, len);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() {
+            end();
+        }
+    }
+
+}
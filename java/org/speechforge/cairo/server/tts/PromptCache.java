@@ -0,0 +1,560 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Content-addressed cache of synthesized prompts shared by all the speech synthesis channels of a transmitter.
+ * <p>
+ * Prompts are keyed by a digest of everything that determines the rendered audio (text, voice, synthesizer and
+ * negotiated audio formats) and are kept in two LRU tiers: a memory tier holding the rendered bytes of the most
+ * recently used prompts and a disk tier holding the prompt files themselves.  Both tiers are bounded by size;
+ * evicting a prompt from the disk tier deletes its file.  Since prompt files are named after their key, the disk
+ * tier survives a restart of the transmitter.
+ * </p>
+ * <p>
+ * Cached prompt files handed out for playback are pinned until released: evicting a pinned prompt removes it from
+ * the cache but only deletes its file once the last user released it.
+ * </p>
+ */
+public class PromptCache {
+
+    private static Logger _logger = Logger.getLogger(PromptCache.class);
+
+    /**
+     * Name of the sub directory of the base prompt directory holding the disk tier.
+     */
+    public static final String CACHE_DIR_NAME = "cache";
+
+    private static final String EXTENSION = ".au";
+
+    // prompt files being written, renamed once complete
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private File _cacheDir;
+    private long _maxMemoryBytes;
+    private long _maxDiskBytes;
+
+    private long _memoryBytes = 0;
+    private long _diskBytes = 0;
+
+    // access ordered so that iteration starts with the least recently used entry
+    private Map<String, byte[]> _memoryTier = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private Map<String, Long> _diskTier = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    // prompt files handed out and not released yet, whether still cached or evicted
+    private Map<String, Pin> _pins = new HashMap<String, Pin>();
+
+    private long _memoryHits = 0;
+    private long _diskHits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+
+    /**
+     * TODOC
+     * @param cacheDir directory holding the disk tier, created if it does not exist.
+     * @param maxMemoryBytes maximum number of bytes of prompt audio kept in memory.
+     * @param maxDiskBytes maximum number of bytes of prompt files kept on disk.
+     * @throws IllegalArgumentException if the cache directory cannot be created.
+     */
+    public PromptCache(File cacheDir, long maxMemoryBytes, long maxDiskBytes) throws IllegalArgumentException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IllegalArgumentException("Could not make prompt cache directory: " + cacheDir.getAbsolutePath());
+        }
+        _cacheDir = cacheDir;
+        _maxMemoryBytes = maxMemoryBytes;
+        _maxDiskBytes = maxDiskBytes;
+        loadDiskTier();
+    }
+
+    /**
+     * Computes the cache key of a synthesized prompt.
+     * @param text the text being synthesized.
+     * @param voiceName the voice used for synthesis.
+     * @param speechSynthesizer the synthesizer (e.g. Mary or Festival) used for synthesis.
+     * @param audioFormats the audio formats negotiated for the RTP channel the prompt is played on, or {@code null}
+     * for prompts pre-warmed for all channels.
+     * @return a hex encoded digest identifying the rendered prompt.
+     */
+    public static String createKey(String text, String voiceName, String speechSynthesizer, String audioFormats) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            String[] parts = {text, voiceName, speechSynthesizer, audioFormats};
+            for (String part : parts) {
+                if (part != null) {
+                    digest.update(part.getBytes("UTF-8"));
+                }
+                digest.update((byte) 0);
+            }
+            byte[] hash = digest.digest();
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether a prompt is cached, without counting a hit or miss.
+     * @param key the key of the prompt.
+     * @return whether the prompt is in the memory or disk tier.
+     */
+    public synchronized boolean contains(String key) {
+        return _memoryTier.containsKey(key) || (_diskTier.containsKey(key) && getFile(key).exists());
+    }
+
+    /**
+     * Hands out the cached file of a previously synthesized prompt, pinned until {@link #releasePrompt(File)
+     * released} so that it is not deleted while it is played.
+     * @param key the key of the prompt as returned by {@link #createKey(String, String, String, String)}.
+     * @return the cached prompt file or {@code null} if the prompt is not cached.
+     * @throws IOException if a prompt file removed from the disk tier could not be restored from memory.
+     */
+    public File acquirePrompt(String key) throws IOException {
+        byte[] audio;
+        synchronized (this) {
+            Long length = _diskTier.get(key);
+            audio = _memoryTier.get(key);
+            if (length != null && getFile(key).exists()) {
+                if (audio != null) {
+                    _memoryHits++;
+                    _logger.debug("Prompt cache memory hit: " + key);
+                } else {
+                    _diskHits++;
+                    _logger.debug("Prompt cache disk hit: " + key);
+                }
+                return pin(key);
+            }
+            if (length != null) {
+                // file removed behind our back, restored from memory if possible
+                _diskTier.remove(key);
+                _diskBytes -= length.longValue();
+            }
+            if (length == null || audio == null) {
+                _misses++;
+                _logger.debug("Prompt cache miss: " + key);
+                return null;
+            }
+            _memoryHits++;
+            _logger.debug("Prompt cache memory hit: " + key);
+        }
+
+        store(key, audio);
+        synchronized (this) {
+            // evicted again meanwhile unless pinned now
+            return _diskTier.containsKey(key) ? pin(key) : null;
+        }
+    }
+
+    /**
+     * Releases a prompt file handed out by {@link #acquirePrompt(String)}, deleting it if it was evicted and this
+     * was its last user.
+     * @param promptFile the prompt file.
+     */
+    public synchronized void releasePrompt(File promptFile) {
+        String name = promptFile.getName();
+        String key = name.substring(0, name.length() - EXTENSION.length());
+        Pin pin = _pins.get(key);
+        if (pin == null) {
+            _logger.warn("Released prompt file that was not handed out: " + promptFile);
+            return;
+        }
+        if (--pin._users == 0) {
+            _pins.remove(key);
+            if (pin._evicted) {
+                deleteFile(promptFile);
+            }
+        }
+    }
+
+    /**
+     * Copies a previously synthesized prompt to a new prompt file, owned by the caller.
+     * @param key the key of the prompt as returned by {@link #createKey(String, String, String, String)}.
+     * @param dir directory in which to create the copy.
+     * @return the copy of the cached prompt file or {@code null} if the prompt is not cached.
+     * @throws IOException if the copy could not be written.
+     */
+    public File copyPrompt(String key, File dir) throws IOException {
+        byte[] audio;
+        InputStream is = null;
+        boolean restore = false;
+        synchronized (this) {
+            Long length = _diskTier.get(key);
+            audio = _memoryTier.get(key);
+            File promptFile = (length == null) ? null : getFile(key);
+            if (promptFile != null && !promptFile.exists()) {
+                // file removed behind our back, restore it from memory if possible
+                _diskTier.remove(key);
+                _diskBytes -= length.longValue();
+                restore = audio != null;
+                if (!restore) {
+                    promptFile = null;
+                }
+            }
+
+            if (promptFile == null) {
+                _misses++;
+                _logger.debug("Prompt cache miss: " + key);
+                return null;
+            } else if (audio != null) {
+                _memoryHits++;
+                _logger.debug("Prompt cache memory hit: " + key);
+            } else {
+                _diskHits++;
+                _logger.debug("Prompt cache disk hit: " + key);
+                // opened while still cached, the content remains readable if the prompt is evicted meanwhile
+                is = new FileInputStream(promptFile);
+            }
+        }
+
+        File copy = File.createTempFile("prompt", EXTENSION, dir);
+        try {
+            OutputStream os = new FileOutputStream(copy);
+            try {
+                if (audio != null) {
+                    os.write(audio);
+                } else {
+                    byte[] buf = new byte[8192];
+                    int len;
+                    while ((len = is.read(buf)) > 0) {
+                        os.write(buf, 0, len);
+                    }
+                }
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            copy.delete();
+            throw e;
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+
+        if (restore) {
+            try {
+                store(key, audio);
+            } catch (IOException e) {
+                _logger.warn("Could not restore prompt file: " + getFile(key), e);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the rendered audio of a cached prompt, promoting it to the memory tier if it is only on disk.
+     * @param key the key of the prompt.
+     * @return the content of the prompt file or {@code null} if the prompt is not cached.
+     * @throws IOException if the prompt file could not be read.
+     */
+    public byte[] getAudio(String key) throws IOException {
+        File promptFile;
+        InputStream is;
+        long length;
+        synchronized (this) {
+            byte[] audio = _memoryTier.get(key);
+            if (audio != null) {
+                _memoryHits++;
+                _logger.debug("Prompt cache memory hit: " + key);
+                return audio;
+            }
+            promptFile = getFile(key);
+            if (!_diskTier.containsKey(key) || !promptFile.exists()) {
+                _misses++;
+                _logger.debug("Prompt cache miss: " + key);
+                return null;
+            }
+            // opened while still cached, read outside the monitor
+            is = new FileInputStream(promptFile);
+            length = _diskTier.get(key).longValue();
+            _diskHits++;
+            _logger.debug("Prompt cache disk hit: " + key);
+        }
+
+        byte[] audio = readFile(promptFile, is, length);
+        synchronized (this) {
+            if (_diskTier.containsKey(key)) {
+                putMemory(key, audio);
+            }
+        }
+        return audio;
+    }
+
+    /**
+     * Adds the rendered audio of a newly synthesized prompt to the cache.  The cache keeps a prompt file of its
+     * own, any prompt file the audio was read from remains the caller's.  Does nothing if the prompt is already
+     * cached.
+     * @param key the key of the prompt.
+     * @param audio the synthesized audio.
+     * @throws IOException if the prompt file could not be written.
+     */
+    public void putAudio(String key, byte[] audio) throws IOException {
+        synchronized (this) {
+            if (_diskTier.containsKey(key) && getFile(key).exists()) {
+                return;
+            }
+        }
+        store(key, audio);
+    }
+
+    /**
+     * @return the number of lookups served from the memory tier.
+     */
+    public synchronized long getMemoryHits() {
+        return _memoryHits;
+    }
+
+    /**
+     * @return the number of lookups served from the disk tier only.
+     */
+    public synchronized long getDiskHits() {
+        return _diskHits;
+    }
+
+    /**
+     * @return the number of lookups that required the prompt to be synthesized.
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    /**
+     * @return the number of prompts evicted from the disk tier.
+     */
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("PromptCache[");
+        sb.append("memory=").append(_memoryTier.size()).append('/').append(_memoryBytes).append("B");
+        sb.append(", disk=").append(_diskTier.size()).append('/').append(_diskBytes).append("B");
+        sb.append(", memoryHits=").append(_memoryHits);
+        sb.append(", diskHits=").append(_diskHits);
+        sb.append(", misses=").append(_misses);
+        sb.append(", evictions=").append(_evictions);
+        return sb.append(']').toString();
+    }
+
+    private void putMemory(String key, byte[] audio) {
+        if (audio.length > _maxMemoryBytes) {
+            return;
+        }
+        byte[] previous = _memoryTier.put(key, audio);
+        if (previous != null) {
+            _memoryBytes -= previous.length;
+        }
+        _memoryBytes += audio.length;
+
+        Iterator<byte[]> it = _memoryTier.values().iterator();
+        while (_memoryBytes > _maxMemoryBytes && it.hasNext()) {
+            _memoryBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private void evictDisk(String keep) {
+        Iterator<Map.Entry<String, Long>> it = _diskTier.entrySet().iterator();
+        while (_diskBytes > _maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                // never evict the prompt being returned to the caller
+                continue;
+            }
+            File promptFile = getFile(entry.getKey());
+            _diskBytes -= entry.getValue().longValue();
+            it.remove();
+            byte[] audio = _memoryTier.remove(entry.getKey());
+            if (audio != null) {
+                _memoryBytes -= audio.length;
+            }
+            Pin pin = _pins.get(entry.getKey());
+            if (pin != null) {
+                // deleted once released
+                pin._evicted = true;
+            } else {
+                deleteFile(promptFile);
+            }
+            _evictions++;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(_cacheDir, key + EXTENSION);
+    }
+
+    private File pin(String key) {
+        Pin pin = _pins.get(key);
+        if (pin == null) {
+            pin = new Pin();
+            _pins.put(key, pin);
+        }
+        pin._users++;
+        return getFile(key);
+    }
+
+    private void deleteFile(File promptFile) {
+        if (!promptFile.delete()) {
+            _logger.warn("Could not delete evicted prompt file: " + promptFile);
+        }
+    }
+
+    /**
+     * Writes a prompt file under a temporary name outside the monitor and moves it into place once complete, so
+     * that a prompt file is never seen half written, then adds it to both tiers.
+     */
+    private void store(String key, byte[] audio) throws IOException {
+        File temp = File.createTempFile("prompt", TEMP_EXTENSION, _cacheDir);
+        try {
+            OutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(audio);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            File cached = getFile(key);
+            if (_diskTier.containsKey(key) && cached.exists()) {
+                // cached by another channel meanwhile
+                if (!temp.delete()) {
+                    _logger.debug("Could not delete duplicate prompt file: " + temp);
+                }
+                return;
+            }
+            Pin pin = _pins.get(key);
+            if (pin != null && pin._evicted && cached.exists()) {
+                // evicted but still played, the file is taken back rather than replaced under its users
+                pin._evicted = false;
+                if (!temp.delete()) {
+                    _logger.debug("Could not delete duplicate prompt file: " + temp);
+                }
+            } else if (!temp.renameTo(cached)) {
+                temp.delete();
+                throw new IOException("Could not move prompt file into the cache: " + cached);
+            }
+
+            Long previous = _diskTier.put(key, new Long(audio.length));
+            if (previous != null) {
+                _diskBytes -= previous.longValue();
+            }
+            _diskBytes += audio.length;
+            putMemory(key, audio);
+            evictDisk(key);
+
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Cached prompt " + key + " (" + audio.length + " bytes), " + this);
+            }
+        }
+    }
+
+    private void loadDiskTier() {
+        File[] files = _cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // oldest first so that the least recently written prompts get evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.endsWith(TEMP_EXTENSION)) {
+                // left behind by a write that did not complete
+                if (!file.delete()) {
+                    _logger.debug("Could not delete incomplete prompt file: " + file);
+                }
+            } else if (file.isFile() && name.endsWith(EXTENSION)) {
+                _diskTier.put(name.substring(0, name.length() - EXTENSION.length()), new Long(file.length()));
+                _diskBytes += file.length();
+            }
+        }
+        evictDisk(null);
+
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Loaded prompt cache from " + _cacheDir.getAbsolutePath() + ": " + this);
+        }
+    }
+
+    private static byte[] readFile(File file, InputStream is, long length) throws IOException {
+        byte[] content = new byte[(int) length];
+        try {
+            int offset = 0;
+            int len;
+            while (offset < content.length && (len = is.read(content, offset, content.length - offset)) > 0) {
+                offset += len;
+            }
+            if (offset < content.length) {
+                throw new IOException("Unexpected end of prompt file: " + file);
+            }
+        } finally {
+            is.close();
+        }
+        return content;
+    }
+
+    /**
+     * Users of a prompt file handed out, guarded by the cache.
+     */
+    private static class Pin {
+
+        private int _users = 0;
+        private boolean _evicted = false;
+
+    }
+
+}
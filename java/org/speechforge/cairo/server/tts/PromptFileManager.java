@@ -0,0 +1,342 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Manages the prompt files generated in the per channel prompt directories of a transmitter, i.e. synthesized
+ * prompts that are not kept by the {@link PromptCache} and audio copied from SPEAK URIs.
+ * <p>
+ * Prompt files are deleted once they have been played, and a channel directory is deleted (in the background)
+ * when the channel is closed.  Files left behind meanwhile, e.g. by requests stopped while their prompt was
+ * still being synthesized, are bounded by a disk quota over all channels: when it is exceeded the oldest prompt
+ * files of SPEAK requests that were stopped or completed are deleted.  Files of requests still queued or playing
+ * are never deleted to enforce the quota.  Static prompts are never tracked and therefore never deleted.
+ * </p>
+ * <p>
+ * Prompt files handed out by the {@link PromptCache} are played in place; they stay pinned in the cache until
+ * their SPEAK request is stopped or completed and are never deleted by the manager.
+ * </p>
+ */
+public class PromptFileManager {
+
+    private static Logger _logger = Logger.getLogger(PromptFileManager.class);
+
+    private File _basePromptDir;
+    private long _maxBytes;
+    private PromptCache _promptCache;
+    private ExecutorService _cleaner;
+
+    // channel prompt directories created, the prompt cache lives under the base prompt directory too
+    private Set<File> _channelDirs = new HashSet<File>();
+    // size of the prompt files not deleted yet, oldest first
+    private Map<File, Long> _files = new LinkedHashMap<File, Long>();
+    // requests the prompt files were generated for, files without a request are never deleted over quota
+    private Map<File, Request> _requests = new HashMap<File, Request>();
+    private long _bytes = 0;
+    private long _created = 0;
+    private long _deleted = 0;
+    private long _quotaDeletions = 0;
+    private long _removedDirs = 0;
+
+    /**
+     * TODOC
+     * @param basePromptDir directory in which the channel prompt directories are created.
+     * @param maxBytes maximum number of bytes of prompt files on disk, 0 for no limit.
+     * @param promptCache cache handing out the cached prompt files played, or {@code null}.
+     * @throws IllegalArgumentException if the base prompt directory is not a directory.
+     */
+    public PromptFileManager(File basePromptDir, long maxBytes, PromptCache promptCache)
+            throws IllegalArgumentException {
+        if (basePromptDir == null || !basePromptDir.isDirectory()) {
+            throw new IllegalArgumentException("Base prompt directory file specified does not exist or is not a directory: " + basePromptDir);
+        }
+        _basePromptDir = basePromptDir;
+        _maxBytes = maxBytes;
+        _promptCache = promptCache;
+        _cleaner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PromptFileManager-cleaner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param channelID id of a speech synthesis channel.
+     * @return the prompt directory of the channel, which may not exist.
+     */
+    public File getChannelDir(String channelID) {
+        return new File(_basePromptDir, channelID);
+    }
+
+    /**
+     * Creates the prompt directory of a channel.
+     * @param channelID id of the speech synthesis channel.
+     * @return the prompt directory.
+     * @throws IllegalStateException if the directory could not be created, e.g. because it exists already.
+     */
+    public File createChannelDir(String channelID) throws IllegalStateException {
+        File dir = getChannelDir(channelID);
+        if (!dir.mkdir()) {
+            throw new IllegalStateException("Could not make prompt directory: " + dir.getAbsolutePath());
+        }
+        synchronized (this) {
+            _channelDirs.add(dir.getAbsoluteFile());
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes the prompt directory of a closed channel, along with any prompt files left in it, in the background.
+     * @param channelID id of the speech synthesis channel.
+     */
+    public void removeChannelDir(String channelID) {
+        final File dir = getChannelDir(channelID);
+        _cleaner.execute(new Runnable() {
+            public void run() {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        delete(file, false);
+                        if (file.exists() && !file.delete()) {
+                            _logger.debug("Could not delete prompt file: " + file);
+                        }
+                    }
+                }
+                if (dir.exists() && !dir.delete()) {
+                    _logger.warn("Could not delete prompt directory: " + dir.getAbsolutePath());
+                    return;
+                }
+                synchronized (PromptFileManager.this) {
+                    _channelDirs.remove(dir.getAbsoluteFile());
+                    _removedDirs++;
+                }
+                if (_logger.isDebugEnabled()) {
+                    _logger.debug("Removed prompt directory " + dir + ", " + PromptFileManager.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts tracking a prompt file generated in a channel prompt directory, which is kept until released.
+     * @param promptFile the prompt file.
+     * @see #track(File, Request)
+     */
+    public void track(File promptFile) {
+        track(promptFile, null);
+    }
+
+    /**
+     * Starts tracking a prompt file generated in a channel prompt directory for a SPEAK request, deleting the
+     * oldest prompt files of ended requests if the disk quota is exceeded.  Files in other directories (e.g.
+     * static prompts) are ignored.
+     * @param promptFile the prompt file.
+     * @param request the request the prompt file is played for, or {@code null} if the file is kept until
+     * released.  The file may be deleted to enforce the quota once the request {@link #end(Request) ended}.
+     */
+    public synchronized void track(File promptFile, Request request) {
+        if (!isChannelFile(promptFile) || _files.containsKey(promptFile)) {
+            return;
+        }
+        long length = promptFile.length();
+        _files.put(promptFile, new Long(length));
+        if (request != null) {
+            _requests.put(promptFile, request);
+        }
+        _bytes += length;
+        _created++;
+        enforceQuota();
+    }
+
+    /**
+     * Keeps a prompt file handed out by the prompt cache pinned until a SPEAK request ends.  The file is released
+     * at once if the request already ended, e.g. because it was stopped while the prompt was being looked up.
+     * @param cachedFile the prompt file, as returned by {@link PromptCache#acquirePrompt(String)}.
+     * @param request the request the prompt file is played for.
+     */
+    public void trackCached(File cachedFile, Request request) {
+        synchronized (this) {
+            if (!request._ended) {
+                request._cachedFiles.add(cachedFile);
+                return;
+            }
+        }
+        _promptCache.releasePrompt(cachedFile);
+    }
+
+    /**
+     * Marks a SPEAK request as stopped or completed, so that its prompt files not released yet (e.g. synthesized
+     * after the request was stopped) may be deleted to enforce the disk quota, and releases the cached prompt
+     * files it played.
+     * @param request the request.
+     */
+    public void end(Request request) {
+        List<File> cachedFiles;
+        synchronized (this) {
+            if (request._ended) {
+                return;
+            }
+            request._ended = true;
+            enforceQuota();
+            cachedFiles = request._cachedFiles;
+            request._cachedFiles = null;
+        }
+        for (File cachedFile : cachedFiles) {
+            _promptCache.releasePrompt(cachedFile);
+        }
+    }
+
+    private void enforceQuota() {
+        if (_maxBytes <= 0) {
+            return;
+        }
+        Iterator<File> it = _files.keySet().iterator();
+        while (_bytes > _maxBytes && it.hasNext()) {
+            File file = it.next();
+            Request request = _requests.get(file);
+            if (request == null || !request._ended) {
+                // queued for playback
+                continue;
+            }
+            _logger.debug("Prompt file quota exceeded, deleting: " + file);
+            _bytes -= _files.get(file).longValue();
+            it.remove();
+            _requests.remove(file);
+            deleteFile(file);
+            _quotaDeletions++;
+        }
+    }
+
+    /**
+     * Deletes a prompt file that has been played, if it is tracked.
+     * @param promptFile the prompt file.
+     */
+    public void release(File promptFile) {
+        delete(promptFile, true);
+    }
+
+    private synchronized void delete(File promptFile, boolean log) {
+        Long length = _files.remove(promptFile);
+        if (length == null) {
+            return;
+        }
+        _requests.remove(promptFile);
+        _bytes -= length.longValue();
+        deleteFile(promptFile);
+        if (log && _logger.isDebugEnabled()) {
+            _logger.debug("Deleted played prompt file " + promptFile + ", " + this);
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (file.delete()) {
+            _deleted++;
+        } else if (file.exists()) {
+            _logger.debug("Could not delete prompt file: " + file);
+        }
+    }
+
+    private boolean isChannelFile(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        return dir != null && _channelDirs.contains(dir);
+    }
+
+    /**
+     * @return the number of prompt files tracked, i.e. generated but not deleted yet.
+     */
+    public synchronized int getFileCount() {
+        return _files.size();
+    }
+
+    /**
+     * @return the size in bytes of the prompt files tracked.
+     */
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    /**
+     * @return the number of prompt files deleted, whether played or over quota.
+     */
+    public synchronized long getDeletedFiles() {
+        return _deleted;
+    }
+
+    /**
+     * @return the number of prompt files deleted because the disk quota was exceeded.
+     */
+    public synchronized long getQuotaDeletions() {
+        return _quotaDeletions;
+    }
+
+    /**
+     * Stops the background deletion of channel directories, pending deletions are still carried out.
+     */
+    public void shutdown() {
+        _cleaner.shutdown();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("PromptFileManager[");
+        sb.append("files=").append(_files.size()).append('/').append(_bytes).append("B");
+        sb.append(", created=").append(_created);
+        sb.append(", deleted=").append(_deleted);
+        sb.append(", quotaDeletions=").append(_quotaDeletions);
+        sb.append(", removedDirs=").append(_removedDirs);
+        return sb.append(']').toString();
+    }
+
+    /**
+     * The prompt files of a SPEAK request, protected from the disk quota (and cached ones from eviction) until the
+     * request is stopped or completed.
+     */
+    public static class Request {
+
+        // guarded by the prompt file manager
+        private boolean _ended = false;
+        private List<File> _cachedFiles = new ArrayList<File>();
+
+    }
+
+}
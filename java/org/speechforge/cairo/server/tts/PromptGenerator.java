@@ -0,0 +1,52 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A text-to-speech engine instance that generates speech prompts, pooled by {@link PromptGeneratorFactory}.
+ */
+public interface PromptGenerator {
+
+    /**
+     * Generates a prompt file containing the specified speech text.
+     * @param text textual content of prompt file.
+     * @param dir directory in which to save the generated prompt file.
+     * @return the generated prompt file.
+     * @throws IllegalArgumentException if the directory specified is not a directory.
+     */
+    public File generatePrompt(String text, File dir) throws IllegalArgumentException;
+
+    /**
+     * Synthesizes the specified speech text, writing the audio (AU format) to the supplied stream as it is
+     * produced by the engine.
+     * @param text textual content of the prompt.
+     * @param out stream receiving the synthesized audio, not closed by this method.
+     * @throws IOException if the audio could not be synthesized or written.
+     */
+    public void generatePrompt(String text, OutputStream out) throws IOException;
+
+}
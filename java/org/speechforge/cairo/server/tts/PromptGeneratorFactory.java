@@ -26,6 +26,9 @@ import org.speechforge.cairo.util.pool.AbstractPoolableObjectFactory;
 import org.speechforge.cairo.util.pool.ObjectPoolUtil;
 import org.speechforge.cairo.util.pool.PoolableObject;
 
+import java.io.IOException;
+import java.util.LinkedList;
+
 import org.apache.commons.pool.ObjectPool;
 import org.apache.commons.pool.PoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
@@ -40,16 +43,67 @@ public class PromptGeneratorFactory extends AbstractPoolableObjectFactory {
 
     private static Logger _logger = Logger.getLogger(PromptGeneratorFactory.class);
 
+    /**
+     * Time in milliseconds between health checks of the Mary or Festival servers, run by the pool on idle prompt
+     * generators.
+     */
+    public static final long HEALTH_CHECK_INTERVAL = MaryEndpointPool.DEFAULT_RETRY_INTERVAL;
+
     private String _voiceName;
+    private String _language;
     private String _speechSynthesizer;
+    private MaryEndpointPool _maryEndpoints;
+    private String _festivalCommand = FestivalPromptGenerator.DEFAULT_COMMAND;
+
+    // server ports not taken by a Festival prompt generator
+    private LinkedList<Integer> _festivalPorts = new LinkedList<Integer>();
 
     /**
      * TODOC
      * @param voiceName
      */
     public PromptGeneratorFactory(String voiceName, String speechSynthesizer) {
+        this(voiceName, speechSynthesizer, null);
+    }
+
+    /**
+     * TODOC
+     * @param voiceName
+     * @param speechSynthesizer
+     * @param maryEndpoints Mary servers shared by the prompt generators, ignored for Festival.
+     */
+    public PromptGeneratorFactory(String voiceName, String speechSynthesizer, MaryEndpointPool maryEndpoints) {
+        this(voiceName, null, speechSynthesizer, maryEndpoints);
+    }
+
+    /**
+     * TODOC
+     * @param voiceName
+     * @param language the language of the voice, passed to Mary as the locale of the text.
+     * @param speechSynthesizer
+     * @param maryEndpoints Mary servers shared by the prompt generators, ignored for Festival.
+     */
+    public PromptGeneratorFactory(String voiceName, String language, String speechSynthesizer,
+            MaryEndpointPool maryEndpoints) {
         _voiceName = voiceName;
+        _language = language;
 	_speechSynthesizer = speechSynthesizer;
+        _maryEndpoints = maryEndpoints;
+    }
+
+    /**
+     * Creates a factory of Festival prompt generators, each running a Festival server on a port of its own.
+     * @param voiceName the Festival voice used for synthesis.
+     * @param festivalCommand command (with any options) starting Festival.
+     * @param festivalBasePort port of the first Festival server.
+     * @param instances maximum number of prompt generators.
+     */
+    public PromptGeneratorFactory(String voiceName, String festivalCommand, int festivalBasePort, int instances) {
+        this(voiceName, "Festival", null);
+        _festivalCommand = festivalCommand;
+        for (int i = 0; i < instances; i++) {
+            _festivalPorts.add(festivalBasePort + i);
+        }
     }
 
     /* (non-Javadoc)
@@ -59,9 +113,38 @@ public class PromptGeneratorFactory extends AbstractPoolableObjectFactory {
     public PoolableObject makeObject() throws Exception {
 	_logger.info(">>>>>>>>>>>>>>>>>>>_speechSynthesizer:"+ _speechSynthesizer + "<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
 	if(_speechSynthesizer.equals("Festival"))
-	    return new FestivalPromptGenerator(_voiceName);
+	    return makeFestivalPromptGenerator();
 	else
-	    return new MaryPromptGenerator(_voiceName);
+	    return new MaryPromptGenerator(_voiceName, _language,
+	            (_maryEndpoints == null) ? MaryEndpointPool.createDefault() : _maryEndpoints);
+    }
+
+    private FestivalPromptGenerator makeFestivalPromptGenerator() {
+        int port;
+        synchronized (_festivalPorts) {
+            port = _festivalPorts.isEmpty() ? FestivalPromptGenerator.DEFAULT_PORT : _festivalPorts.removeFirst();
+        }
+        FestivalPromptGenerator promptGenerator = new FestivalPromptGenerator(_voiceName, _festivalCommand, port);
+        try {
+            // loads the voice while the pool is being initialized rather than on the first prompt
+            promptGenerator.start();
+        } catch (IOException e) {
+            _logger.warn("Cannot start Festival server on port " + port + ", retrying on first prompt: " + e);
+        }
+        return promptGenerator;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.commons.pool.PoolableObjectFactory#destroyObject(java.lang.Object)
+     */
+    @Override
+    public void destroyObject(Object object) throws Exception {
+        super.destroyObject(object);
+        if (object instanceof FestivalPromptGenerator) {
+            synchronized (_festivalPorts) {
+                _festivalPorts.add(((FestivalPromptGenerator) object).getPort());
+            }
+        }
     }
 
     /**
@@ -71,15 +154,78 @@ public class PromptGeneratorFactory extends AbstractPoolableObjectFactory {
      */
     public static ObjectPool createObjectPool(String voiceName, int instances, String speechSynthesizer)
       throws InstantiationException {
+        return createObjectPool(voiceName, instances, speechSynthesizer, null);
+    }
+
+    /**
+     * TODOC
+     * @param voiceName
+     * @param instances
+     * @param speechSynthesizer
+     * @param maryServers Mary servers as "host" or "host:port", or {@code null} (or empty) to use the server
+     * specified by system properties.
+     * @return
+     */
+    public static ObjectPool createObjectPool(String voiceName, int instances, String speechSynthesizer,
+            String[] maryServers) throws InstantiationException {
 
         if (_logger.isDebugEnabled()) {
             _logger.debug("creating new prompt generator pool... instances: " + instances);
         }
 
-        PoolableObjectFactory factory = new PromptGeneratorFactory(voiceName, speechSynthesizer);
+        if ("Festival".equals(speechSynthesizer)) {
+            return createFestivalObjectPool(voiceName, instances, FestivalPromptGenerator.DEFAULT_COMMAND,
+                    FestivalPromptGenerator.DEFAULT_PORT);
+        }
+
+        MaryEndpointPool maryEndpoints = (maryServers == null || maryServers.length == 0) ? MaryEndpointPool.createDefault()
+                : new MaryEndpointPool(maryServers, MaryEndpointPool.DEFAULT_RETRY_INTERVAL);
+        return createMaryObjectPool(voiceName, null, instances, maryEndpoints);
+    }
+
+    /**
+     * Creates a pool of Mary prompt generators for a voice, e.g. one of several voices sharing the same Mary servers.
+     * @param voiceName the Mary voice used for synthesis.
+     * @param language the language of the voice, passed to Mary as the locale of the text, or {@code null} for
+     * {@link MaryPromptGenerator#DEFAULT_LOCALE}.
+     * @param instances
+     * @param maryEndpoints Mary servers shared by the prompt generators.
+     * @return
+     */
+    public static ObjectPool createMaryObjectPool(String voiceName, String language, int instances,
+            MaryEndpointPool maryEndpoints) throws InstantiationException {
+
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("creating new Mary prompt generator pool... voice: " + voiceName + ", language: " + language
+                    + ", instances: " + instances);
+        }
+        return createObjectPool(new PromptGeneratorFactory(voiceName, language, "Mary", maryEndpoints), instances);
+    }
+
+    /**
+     * Creates a pool of Festival prompt generators, each running a long-lived Festival server.
+     * @param voiceName the Festival voice used for synthesis.
+     * @param instances
+     * @param festivalCommand command (with any options) starting Festival.
+     * @param festivalBasePort port of the first Festival server, the others use the following ports.
+     * @return
+     */
+    public static ObjectPool createFestivalObjectPool(String voiceName, int instances, String festivalCommand,
+            int festivalBasePort) throws InstantiationException {
+
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("creating new Festival prompt generator pool... instances: " + instances);
+        }
+        return createObjectPool(new PromptGeneratorFactory(voiceName, festivalCommand, festivalBasePort, instances), instances);
+    }
 
+    private static ObjectPool createObjectPool(PoolableObjectFactory factory, int instances) throws InstantiationException {
         // TODO: adapt config to prompt generator constraints
         GenericObjectPool.Config config = ObjectPoolUtil.getGenericObjectPoolConfig(instances);
+        // idle generators check their servers, reconnecting Mary servers that were down and replacing
+        // Festival servers that died
+        config.testWhileIdle = true;
+        config.timeBetweenEvictionRunsMillis = HEALTH_CHECK_INTERVAL;
         ObjectPool objectPool = new GenericObjectPool(factory, config);
         initPool(objectPool);
         return objectPool;
@@ -0,0 +1,277 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.log4j.Logger;
+
+/**
+ * Routes synthesis to one of several pools of {@link PromptGenerator}s, one per voice and synthesizer (e.g.
+ * several Mary voices and a Festival voice served by the same transmitter).
+ * <p>
+ * A route is selected by the Voice-Name and Speech-Language of a SPEAK request; among the routes matching, the
+ * one with the fewest generators in use or waited for relative to its size is chosen.  Borrowing a generator
+ * waits (in request order) for a bounded time when all generators of the route are busy, instead of failing
+ * at once.
+ * </p>
+ */
+public class PromptGeneratorRouter {
+
+    private static Logger _logger = Logger.getLogger(PromptGeneratorRouter.class);
+
+    /**
+     * Default time in milliseconds to wait for a prompt generator.
+     */
+    public static final long DEFAULT_MAX_WAIT = 2000;
+
+    private List<Route> _routes = new ArrayList<Route>();
+    private long _maxWait;
+
+    /**
+     * TODOC
+     * @param maxWait time in milliseconds to wait for a prompt generator when all generators of a route are busy.
+     */
+    public PromptGeneratorRouter(long maxWait) {
+        _maxWait = maxWait;
+    }
+
+    /**
+     * Adds a pool of prompt generators, the first one added serves requests that match no route.
+     * @param voiceName the voice of the prompt generators.
+     * @param speechSynthesizer the synthesizer of the prompt generators ("Mary" or "Festival").
+     * @param language the language of the voice (e.g. "en-US"), or {@code null} if not known.
+     * @param pool the pool of prompt generators.
+     * @param instances maximum number of prompt generators in the pool.
+     * @return the route to the pool.
+     */
+    public synchronized Route addRoute(String voiceName, String speechSynthesizer, String language, ObjectPool pool,
+            int instances) {
+        Route route = new Route(voiceName, speechSynthesizer, language, pool, instances);
+        _routes.add(route);
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Added prompt generator route " + route);
+        }
+        return route;
+    }
+
+    /**
+     * @return the routes, the default route first.
+     */
+    public synchronized List<Route> getRoutes() {
+        return new ArrayList<Route>(_routes);
+    }
+
+    /**
+     * @return the total number of prompt generators of all routes.
+     */
+    public synchronized int getCapacity() {
+        int capacity = 0;
+        for (Route route : _routes) {
+            capacity += route._instances;
+        }
+        return capacity;
+    }
+
+    /**
+     * Selects the route for a SPEAK request: the routes of the voice if one is named and served, otherwise the
+     * routes of the language if one is specified and served, otherwise the default route.  The least loaded of
+     * the routes matching is returned.
+     * @param voiceName the voice requested, or {@code null}.
+     * @param language the language requested, or {@code null}.
+     * @return the route selected.
+     * @throws IllegalStateException if no route has been added.
+     */
+    public synchronized Route select(String voiceName, String language) throws IllegalStateException {
+        if (_routes.isEmpty()) {
+            throw new IllegalStateException("No prompt generator pool");
+        }
+        Route selected = null;
+        if (voiceName != null) {
+            for (Route route : _routes) {
+                if (voiceName.equalsIgnoreCase(route._voiceName)) {
+                    selected = lessLoaded(selected, route);
+                }
+            }
+        }
+        if (selected == null && language != null) {
+            for (Route route : _routes) {
+                if (route.matchesLanguage(language)) {
+                    selected = lessLoaded(selected, route);
+                }
+            }
+        }
+        if (selected == null) {
+            if (voiceName != null || language != null) {
+                _logger.debug("No voice for name " + voiceName + " and language " + language + ", using default voice");
+            }
+            selected = _routes.get(0);
+        }
+        return selected;
+    }
+
+    private static Route lessLoaded(Route current, Route candidate) {
+        if (current == null) {
+            return candidate;
+        }
+        // compares load / instances without dividing
+        return ((long) candidate.getLoad() * current._instances < (long) current.getLoad() * candidate._instances)
+                ? candidate : current;
+    }
+
+    /**
+     * Borrows a prompt generator of a route, waiting for a bounded time if all are busy.
+     * @param route the route, or {@code null} for the default route.
+     * @return the prompt generator, to be returned by {@link #release(Route, PromptGenerator)}.
+     * @throws NoSuchElementException if no prompt generator became available in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public PromptGenerator borrow(Route route) throws NoSuchElementException, InterruptedException {
+        if (route == null) {
+            route = select(null, null);
+        }
+        route._waiting.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = route._permits.tryAcquire(_maxWait, TimeUnit.MILLISECONDS);
+        } finally {
+            route._waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            throw new NoSuchElementException("No prompt generator available for " + route + " within " + _maxWait + "ms");
+        }
+        try {
+            return (PromptGenerator) route._pool.borrowObject();
+        } catch (Exception e) {
+            route._permits.release();
+            NoSuchElementException nse = new NoSuchElementException("Could not borrow prompt generator for " + route);
+            nse.initCause(e);
+            throw nse;
+        }
+    }
+
+    /**
+     * Returns a prompt generator borrowed from a route.
+     * @param route the route passed to {@link #borrow(Route)}, or {@code null} for the default route.
+     * @param promptGenerator the prompt generator.
+     */
+    public void release(Route route, PromptGenerator promptGenerator) {
+        if (route == null) {
+            route = select(null, null);
+        }
+        try {
+            route._pool.returnObject(promptGenerator);
+        } catch (Exception e) {
+            _logger.debug(e, e);
+        } finally {
+            route._permits.release();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "PromptGeneratorRouter" + _routes;
+    }
+
+    /**
+     * A pool of prompt generators for a voice.
+     */
+    public static class Route {
+
+        private String _voiceName;
+        private String _speechSynthesizer;
+        private String _language;
+        private ObjectPool _pool;
+        private int _instances;
+        private Semaphore _permits;
+        private AtomicInteger _waiting = new AtomicInteger();
+
+        Route(String voiceName, String speechSynthesizer, String language, ObjectPool pool, int instances) {
+            _voiceName = voiceName;
+            _speechSynthesizer = (speechSynthesizer == null) ? "Mary" : speechSynthesizer;
+            _language = language;
+            _pool = pool;
+            _instances = Math.max(1, instances);
+            _permits = new Semaphore(_instances, true);
+        }
+
+        /**
+         * @return the voice of the prompt generators.
+         */
+        public String getVoiceName() {
+            return _voiceName;
+        }
+
+        /**
+         * @return the synthesizer of the prompt generators ("Mary" or "Festival").
+         */
+        public String getSpeechSynthesizer() {
+            return _speechSynthesizer;
+        }
+
+        /**
+         * @return the language of the voice, or {@code null} if not known.
+         */
+        public String getLanguage() {
+            return _language;
+        }
+
+        /**
+         * @return the number of prompt generators in use or waited for.
+         */
+        public int getLoad() {
+            return _instances - _permits.availablePermits() + _waiting.get();
+        }
+
+        /**
+         * Matches a language tag against the language of the voice, e.g. "en" matches "en-US" and vice versa.
+         */
+        boolean matchesLanguage(String language) {
+            if (_language == null) {
+                return false;
+            }
+            String l1 = _language.toLowerCase();
+            String l2 = language.trim().toLowerCase();
+            return l1.equals(l2) || l1.startsWith(l2 + '-') || l2.startsWith(l1 + '-');
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return _speechSynthesizer + ':' + _voiceName + ((_language == null) ? "" : "(" + _language + ")")
+                    + "[load=" + getLoad() + '/' + _instances + ']';
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import org.speechforge.cairo.util.http.HttpResourceCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Renders, encodes and caches sets of prompts in parallel, so that the first SPEAK requests playing them after
+ * a deploy do not all miss the caches and wait for the synthesizers at once.  Text prompts are synthesized into
+ * the prompt cache, audio prompts fetched from http and https URIs are downloaded into the HTTP cache, and all
+ * of them are encoded into the encoded prompt store when prompts are streamed.
+ */
+public class PromptPrewarmer {
+
+    private static Logger _logger = Logger.getLogger(PromptPrewarmer.class);
+
+    private PromptSynthesizer _synthesizer;
+    private HttpResourceCache _httpCache;
+    private ExecutorService _executor;
+
+    /**
+     * TODOC
+     * @param synthesizer synthesizer of the text prompts.
+     * @param httpCache cache of prompts fetched from http and https URIs, or {@code null} if they are not cached.
+     * @param executor executor rendering the prompts, should not run more threads than there are prompt
+     * generators as pre-warming waits for generators like SPEAK requests.
+     */
+    public PromptPrewarmer(PromptSynthesizer synthesizer, HttpResourceCache httpCache, ExecutorService executor) {
+        _synthesizer = synthesizer;
+        _httpCache = httpCache;
+        _executor = executor;
+    }
+
+    /**
+     * Starts pre-warming a set of prompts in the background.  Prompts that cannot be rendered are logged and
+     * counted as failed, they do not stop the others.
+     * @param prompts the prompts to pre-warm.
+     * @return the progress of pre-warming.
+     */
+    public Progress prewarm(List<PrewarmPrompt> prompts) {
+        final Progress progress = new Progress(prompts.size());
+        _logger.info("Pre-warming " + prompts.size() + " prompts...");
+        for (final PrewarmPrompt prompt : prompts) {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        render(prompt);
+                        progress.completed(prompt, null);
+                    } catch (Exception e) {
+                        progress.completed(prompt, e);
+                    }
+                }
+            });
+        }
+        return progress;
+    }
+
+    private void render(PrewarmPrompt prompt) throws IOException {
+        if (prompt.getUri() == null) {
+            _synthesizer.prewarm(prompt.getText(), _synthesizer.selectVoice(prompt.getVoiceName(), prompt.getLanguage()));
+            return;
+        }
+
+        URL url = new URL(prompt.getUri());
+        if (url.getProtocol().equals("file")) {
+            _synthesizer.prewarm(new File(url.getFile()));
+        } else if (_httpCache != null && (url.getProtocol().equals("http") || url.getProtocol().equals("https"))) {
+            HttpResourceCache.Resource resource = _httpCache.get(url);
+            try {
+                String contentType = resource.getContentType();
+                if (contentType != null && (contentType.startsWith("audio/x-wav") || contentType.startsWith("audio/basic"))) {
+                    // cached files are never modified, they are played like static prompts
+                    _synthesizer.prewarm(resource.getFile());
+                }
+            } finally {
+                _httpCache.release(resource);
+            }
+        } else {
+            throw new IOException("Cannot pre-warm prompts of " + url.getProtocol() + " URIs");
+        }
+    }
+
+    /**
+     * Progress of pre-warming a set of prompts.
+     */
+    public static class Progress {
+
+        private int _total;
+        private int _completed;
+        private int _failed;
+        private int _reported;
+        private CountDownLatch _done;
+
+        Progress(int total) {
+            _total = total;
+            _done = new CountDownLatch(total);
+        }
+
+        void completed(PrewarmPrompt prompt, Exception e) {
+            boolean report;
+            synchronized (this) {
+                _completed++;
+                if (e != null) {
+                    _failed++;
+                }
+                // reports every tenth of the set and the end
+                report = _completed == _total || (_completed * 10 / _total) > _reported;
+                if (report) {
+                    _reported = _completed * 10 / _total;
+                }
+            }
+            if (e != null) {
+                _logger.warn("Cannot pre-warm prompt " + prompt + ": " + e);
+                _logger.debug(e, e);
+            } else if (_logger.isDebugEnabled()) {
+                _logger.debug("Pre-warmed prompt " + prompt);
+            }
+            if (report) {
+                _logger.info(this);
+            }
+            _done.countDown();
+        }
+
+        /**
+         * @return the number of prompts to pre-warm.
+         */
+        public int getTotal() {
+            return _total;
+        }
+
+        /**
+         * @return the number of prompts done, including those that failed.
+         */
+        public synchronized int getCompleted() {
+            return _completed;
+        }
+
+        /**
+         * @return the number of prompts that could not be pre-warmed.
+         */
+        public synchronized int getFailed() {
+            return _failed;
+        }
+
+        /**
+         * @return whether all prompts are done.
+         */
+        public boolean isDone() {
+            return _done.getCount() == 0;
+        }
+
+        /**
+         * Waits until all prompts are done.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public void await() throws InterruptedException {
+            _done.await();
+        }
+
+        /**
+         * Waits until all prompts are done or the timeout elapses.
+         * @param timeout the maximum time to wait in milliseconds.
+         * @return whether all prompts are done.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return _done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public synchronized String toString() {
+            return "Pre-warmed " + _completed + "/" + _total + " prompts (" + _failed + " failed)";
+        }
+    }
+
+}
@@ -0,0 +1,542 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.speechforge.cairo.util.audio.AuEncodingOutputStream;
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Synthesizes prompts for the speech synthesis channels of a transmitter, using the prompt generator pools of
+ * a {@link PromptGeneratorRouter} and an optional {@link PromptCache}.
+ * <p>
+ * Prompts are either synthesized into a prompt file that is played once complete, or streamed into a
+ * {@link PromptBuffer} that can be played while the synthesizer is still producing audio.  Streamed prompts
+ * that were played before are kept pre-encoded in an optional {@link EncodedPromptStore}.  Asynchronous
+ * synthesis runs on the executor in submission order, so the chunks of a long text are started in
+ * speaking order.
+ * </p>
+ * <p>
+ * Prompts requested with another rate or volume than the synthesizer's are derived from the synthesized audio
+ * by time-stretching and scaling it, rather than synthesized again.  The derived variants are cached like the
+ * synthesized prompts.
+ * </p>
+ * <p>
+ * The leading and trailing silence of synthesized prompts is trimmed by the encoded prompt store for streamed
+ * prompts, and by an optional {@link SilenceTrimmer} for prompt files converted to the codec of their channel.
+ * </p>
+ */
+public class PromptSynthesizer {
+
+    private static Logger _logger = Logger.getLogger(PromptSynthesizer.class);
+
+    private PromptGeneratorRouter _router;
+    private PromptCache _promptCache;
+    private EncodedPromptStore _encodedPromptStore;
+    private ExecutorService _executor;
+    private PromptFileManager _promptFiles;
+    private SilenceTrimmer _silenceTrimmer;
+
+    /**
+     * TODOC
+     * @param router pools of {@link PromptGenerator} instances by voice.
+     * @param promptCache cache of synthesized prompts, or {@code null} to always synthesize.
+     * @param encodedPromptStore store of prompts encoded for streaming, or {@code null} to encode on every play.
+     * @param executor executor running streamed synthesis.
+     * @param promptFiles manager deleting synthesized prompt files once played and releasing the cached ones, or
+     * {@code null} to leave them on disk.
+     */
+    public PromptSynthesizer(PromptGeneratorRouter router, PromptCache promptCache,
+            EncodedPromptStore encodedPromptStore, ExecutorService executor, PromptFileManager promptFiles) {
+        _router = router;
+        _promptCache = promptCache;
+        _encodedPromptStore = encodedPromptStore;
+        _executor = executor;
+        _promptFiles = promptFiles;
+    }
+
+    /**
+     * Sets the trimmer applied to synthesized prompt files when they are converted to the codec of their channel.
+     * Streamed prompts are trimmed by the silence trimmer of the encoded prompt store.
+     * @param silenceTrimmer the trimmer, or {@code null} (the default) to keep the silence of prompt files.
+     * @see EncodedPromptStore#setSilenceTrimmer(SilenceTrimmer)
+     */
+    public void setSilenceTrimmer(SilenceTrimmer silenceTrimmer) {
+        _silenceTrimmer = silenceTrimmer;
+    }
+
+    /**
+     * Selects the voice of a SPEAK request, to be used for all its prompts.
+     * @param voiceName the Voice-Name requested, or {@code null}.
+     * @param language the Speech-Language requested, or {@code null}.
+     * @return the least loaded route serving the voice or language, or the default route.
+     * @see PromptGeneratorRouter#select(String, String)
+     */
+    public PromptGeneratorRouter.Route selectVoice(String voiceName, String language) {
+        return _router.select(voiceName, language);
+    }
+
+    /**
+     * Synthesizes a prompt file, or hands out the cached prompt file if the prompt was synthesized before.  The
+     * prompt file returned is released once played; a cached prompt file stays pinned in the cache until the
+     * request {@link PromptFileManager#end(PromptFileManager.Request) ends}.
+     * @param text the text to synthesize.
+     * @param voice the voice to synthesize with, or {@code null} for the default voice.
+     * @param promptDir directory in which to save the generated prompt file.
+     * @param audioFormats description of the audio formats negotiated for the channel, part of the cache key.
+     * @param codec codec the prompt file is converted to (at 8 kHz) once synthesized, so that it is not resampled
+     * every time it is played, or {@code null} to keep the format of the synthesizer.  Converted prompt files
+     * have their silence trimmed if a silence trimmer is set.
+     * @param prosody rate and volume of the prompt, or {@code null} for those of the synthesizer.
+     * @param request the SPEAK request the prompt file is played for, or {@code null} to get a copy of a cached
+     * prompt file rather than the cached file itself.
+     * @return the prompt file.
+     * @throws IllegalArgumentException if the prompt directory is not a directory.
+     * @throws IOException if the prompt could not be synthesized.
+     */
+    public File synthesize(String text, PromptGeneratorRouter.Route voice, File promptDir, String audioFormats,
+            G711Codec codec, Prosody prosody, PromptFileManager.Request request)
+            throws IllegalArgumentException, IOException {
+
+        if (voice == null) {
+            voice = selectVoice(null, null);
+        }
+        if (prosody != null && !prosody.isDefault()) {
+            return synthesizeVariant(text, voice, promptDir, audioFormats, codec, prosody, request);
+        }
+        String key = null;
+        if (_promptCache != null) {
+            key = lookupKey(text, voice, audioFormats, codec);
+            File promptFile = getCachedPrompt(key, promptDir, request);
+            if (promptFile != null) {
+                return promptFile;
+            }
+            if (codec != null && audioFormats != null) {
+                // a pre-warmed prompt is converted once for the channel rather than synthesized again
+                byte[] shared = _promptCache.getAudio(createSharedKey(text, voice));
+                if (shared != null) {
+                    byte[] audio = convert(shared, codec);
+                    _promptCache.putAudio(key, audio);
+                    return createPromptFile(promptDir, audio, request);
+                }
+            }
+        }
+
+        _logger.debug("Synthesizing prompt using " + voice);
+        File promptFile = generatePrompt(text, voice, promptDir);
+        byte[] audio = null;
+        if (codec != null) {
+            audio = convert(readFile(promptFile), codec);
+            writeFile(promptFile, audio);
+        }
+
+        if (_promptCache != null) {
+            _promptCache.putAudio(key, (audio == null) ? readFile(promptFile) : audio);
+        }
+        track(promptFile, request);
+        return promptFile;
+    }
+
+    /**
+     * Derives a prompt file with another prosody from the synthesized prompt file.
+     */
+    private File synthesizeVariant(String text, PromptGeneratorRouter.Route voice, File promptDir,
+            String audioFormats, G711Codec codec, Prosody prosody, PromptFileManager.Request request)
+            throws IllegalArgumentException, IOException {
+
+        String key = null;
+        if (_promptCache != null) {
+            key = prosody.createKey(lookupKey(text, voice, audioFormats, codec));
+            File promptFile = getCachedPrompt(key, promptDir, request);
+            if (promptFile != null) {
+                return promptFile;
+            }
+        }
+
+        File promptFile = synthesize(text, voice, promptDir, audioFormats, codec, null, request);
+        byte[] variant;
+        try {
+            variant = EncodedPrompt.fromAu(readFile(promptFile), (codec == null) ? G711Codec.ULAW : codec,
+                    prosody).toAu();
+        } finally {
+            if (_promptFiles != null) {
+                _promptFiles.release(promptFile);
+            }
+        }
+        if (_promptCache != null) {
+            _promptCache.putAudio(key, variant);
+        }
+        return createPromptFile(promptDir, variant, request);
+    }
+
+    /**
+     * Starts synthesizing a prompt file in the background.
+     * @param text the text to synthesize.
+     * @param voice the voice to synthesize with, or {@code null} for the default voice.
+     * @param promptDir directory in which to save the generated prompt file.
+     * @param audioFormats description of the audio formats negotiated for the channel, part of the cache key.
+     * @param codec codec the prompt file is converted to once synthesized, or {@code null} to keep the format of
+     * the synthesizer.
+     * @param prosody rate and volume of the prompt, or {@code null} for those of the synthesizer.
+     * @param request the SPEAK request the prompt file is played for, or {@code null}.
+     * @return the pending prompt file, cancelling it interrupts synthesis.
+     * @see #synthesize(String, PromptGeneratorRouter.Route, File, String, G711Codec, Prosody, PromptFileManager.Request)
+     */
+    public Future<File> synthesizeLater(final String text, final PromptGeneratorRouter.Route voice,
+            final File promptDir, final String audioFormats, final G711Codec codec, final Prosody prosody,
+            final PromptFileManager.Request request) {
+        return _executor.submit(new Callable<File>() {
+            public File call() throws Exception {
+                return synthesize(text, voice, promptDir, audioFormats, codec, prosody, request);
+            }
+        });
+    }
+
+    /**
+     * Starts synthesizing a prompt for streaming, returning a source that can be played immediately.  Prompts
+     * found in the encoded prompt store are played as they are, prompts found in the prompt cache are encoded
+     * once and added to the store.  Otherwise the prompt is synthesized into a new {@link PromptBuffer}, the
+     * synthesizer output being encoded into the buffer as it is received.  Failures while synthesizing are
+     * reported when playback reaches the end of the buffered audio.
+     * @param text the text to synthesize.
+     * @param voice the voice to synthesize with, or {@code null} for the default voice.
+     * @param promptDir directory in which to save intermediate prompt files.
+     * @param audioFormats description of the audio formats negotiated for the channel, part of the cache key.
+     * @param codec codec of the RTP channel the prompt is played on.
+     * @param prosody rate and volume of the prompt, or {@code null} for those of the synthesizer.  The prompt
+     * cache keeps the synthesized audio, the encoded prompt store the variant actually played.
+     * @return the source of the synthesized audio.
+     * @throws IOException if a cached prompt could not be read.
+     */
+    public AudioFrameSource synthesizeStream(final String text, PromptGeneratorRouter.Route voice, final File promptDir,
+            final String audioFormats, final G711Codec codec, Prosody prosody) throws IOException {
+
+        final PromptGeneratorRouter.Route route = (voice == null) ? selectVoice(null, null) : voice;
+        final Prosody variant = (prosody == null) ? Prosody.DEFAULT : prosody;
+        String cacheKey = null;
+        String storeKey = null;
+        if (_promptCache != null) {
+            // the prompt cache keeps the audio of the synthesizer, encoded for the channel when played
+            cacheKey = lookupKey(text, route, audioFormats, null);
+            if (_encodedPromptStore != null) {
+                storeKey = EncodedPromptStore.createKey(variant.createKey(cacheKey), codec);
+                EncodedPrompt prompt = _encodedPromptStore.get(storeKey);
+                if (prompt != null) {
+                    return prompt.openSource();
+                }
+            }
+            byte[] audio = _promptCache.getAudio(cacheKey);
+            if (audio != null) {
+                EncodedPrompt prompt = EncodedPrompt.fromAu(audio, codec, variant);
+                if (storeKey != null) {
+                    prompt = _encodedPromptStore.put(storeKey, prompt);
+                }
+                return prompt.openSource();
+            }
+        }
+
+        final String key = cacheKey;
+        final String encodedKey = storeKey;
+        final PromptBuffer buffer = new PromptBuffer(codec);
+        _executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (key == null) {
+                        OutputStream os = new AuEncodingOutputStream(buffer.openEncodedStream(), codec,
+                                variant.getRate(), variant.getVolume());
+                        generatePrompt(text, route, os);
+                        os.close();
+                    } else {
+                        // keep both the synthesized audio for the prompt cache and the encoded audio for the store
+                        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+                        ByteArrayOutputStream encoded = (encodedKey == null) ? null : new ByteArrayOutputStream();
+                        OutputStream os = new AuEncodingOutputStream((encoded == null) ? buffer.openEncodedStream()
+                                : new TeeOutputStream(buffer.openEncodedStream(), encoded), codec,
+                                variant.getRate(), variant.getVolume());
+                        generatePrompt(text, route, new TeeOutputStream(os, audio));
+                        os.close();
+                        _promptCache.putAudio(key, audio.toByteArray());
+                        if (encoded != null) {
+                            _encodedPromptStore.put(encodedKey, new EncodedPrompt(codec, encoded.toByteArray(), encoded.size()));
+                        }
+                    }
+                } catch (Exception e) {
+                    _logger.debug(e, e);
+                    buffer.fail(e);
+                }
+            }
+        });
+        return buffer;
+    }
+
+    /**
+     * Opens a prompt file for streaming.  Static prompts are taken from the encoded prompt store, so that they
+     * are only mapped or transcoded the first time they are played in a codec.
+     * @param promptFile the prompt file.
+     * @param codec codec of the RTP channel the prompt is played on.
+     * @param reusable whether the file is a static prompt that may be played again.
+     * @return the source of the prompt audio.
+     * @throws IOException if the file could not be read or is not a supported audio file.
+     */
+    public AudioFrameSource openPrompt(File promptFile, G711Codec codec, boolean reusable) throws IOException {
+        if (reusable && _encodedPromptStore != null) {
+            return _encodedPromptStore.openFilePrompt(promptFile, codec);
+        }
+        return EncodedPrompt.fromFile(promptFile, codec).openSource();
+    }
+
+    /**
+     * Synthesizes a prompt into the prompt cache ahead of the SPEAK requests playing it, and encodes it in both
+     * G.711 codecs into the encoded prompt store.  The prompt is cached for all channels whatever the audio
+     * formats they negotiated, channels converting prompt files get a copy converted once in their codec.
+     * @param text the text to synthesize.
+     * @param voice the voice to synthesize with, or {@code null} for the default voice.
+     * @return whether the prompt had to be synthesized, {@code false} if it was already cached.
+     * @throws IllegalStateException if there is no prompt cache.
+     * @throws IOException if the prompt could not be synthesized or cached.
+     */
+    public boolean prewarm(String text, PromptGeneratorRouter.Route voice) throws IllegalStateException, IOException {
+        if (_promptCache == null) {
+            throw new IllegalStateException("Prompt cache disabled, cannot pre-warm " + text);
+        }
+        if (voice == null) {
+            voice = selectVoice(null, null);
+        }
+        String key = createSharedKey(text, voice);
+        boolean synthesized = false;
+        if (!_promptCache.contains(key)) {
+            _logger.debug("Pre-warming prompt using " + voice);
+            ByteArrayOutputStream audio = new ByteArrayOutputStream();
+            generatePrompt(text, voice, audio);
+            _promptCache.putAudio(key, audio.toByteArray());
+            synthesized = true;
+        }
+        if (_encodedPromptStore != null) {
+            byte[] audio = null;
+            for (G711Codec codec : G711Codec.values()) {
+                String storeKey = EncodedPromptStore.createKey(key, codec);
+                if (_encodedPromptStore.get(storeKey) == null) {
+                    if (audio == null) {
+                        audio = _promptCache.getAudio(key);
+                    }
+                    if (audio != null) {
+                        _encodedPromptStore.put(storeKey, EncodedPrompt.fromAu(audio, codec));
+                    }
+                }
+            }
+        }
+        return synthesized;
+    }
+
+    /**
+     * Maps or encodes a static prompt file in both G.711 codecs ahead of the SPEAK requests playing it.  Does
+     * nothing if there is no encoded prompt store.
+     * @param promptFile the prompt file.
+     * @throws IOException if the file could not be read or is not a supported audio file.
+     * @see EncodedPromptStore#openFilePrompt(File, G711Codec)
+     */
+    public void prewarm(File promptFile) throws IOException {
+        if (_encodedPromptStore != null) {
+            for (G711Codec codec : G711Codec.values()) {
+                _encodedPromptStore.openFilePrompt(promptFile, codec).close();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache key of a prompt played on a channel.  Where the cached audio is that of the synthesizer
+     * ({@code codec} is {@code null}), this is the key of the pre-warmed prompt shared by all channels if only
+     * that one is cached; the shared audio cannot stand in for a prompt file converted to a codec.
+     */
+    private String lookupKey(String text, PromptGeneratorRouter.Route voice, String audioFormats, G711Codec codec) {
+        String key = PromptCache.createKey(text, voice.getVoiceName(), voice.getSpeechSynthesizer(), audioFormats);
+        if (codec == null && audioFormats != null && !_promptCache.contains(key)) {
+            String shared = createSharedKey(text, voice);
+            if (_promptCache.contains(shared)) {
+                return shared;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns the cache key of a pre-warmed prompt, shared by all channels.
+     */
+    private static String createSharedKey(String text, PromptGeneratorRouter.Route voice) {
+        return PromptCache.createKey(text, voice.getVoiceName(), voice.getSpeechSynthesizer(), null);
+    }
+
+    /**
+     * Converts synthesized audio to a codec at 8 kHz, trimming its silence if a silence trimmer is set.
+     */
+    private byte[] convert(byte[] audio, G711Codec codec) throws IOException {
+        EncodedPrompt prompt = EncodedPrompt.fromAu(audio, codec);
+        return ((_silenceTrimmer == null) ? prompt : _silenceTrimmer.trim(prompt)).toAu();
+    }
+
+    /**
+     * Writes audio to a new prompt file, tracked until played.
+     */
+    private File createPromptFile(File promptDir, byte[] audio, PromptFileManager.Request request) throws IOException {
+        File promptFile = File.createTempFile("prompt", ".au", promptDir);
+        writeFile(promptFile, audio);
+        track(promptFile, request);
+        return promptFile;
+    }
+
+    /**
+     * Looks up a cached prompt file, pinned for the request or copied if nobody ends the request.
+     */
+    private File getCachedPrompt(String key, File promptDir, PromptFileManager.Request request) throws IOException {
+        if (request == null || _promptFiles == null) {
+            File promptFile = _promptCache.copyPrompt(key, promptDir);
+            if (promptFile != null) {
+                track(promptFile, request);
+            }
+            return promptFile;
+        }
+        File promptFile = _promptCache.acquirePrompt(key);
+        if (promptFile != null) {
+            _promptFiles.trackCached(promptFile, request);
+        }
+        return promptFile;
+    }
+
+    private void track(File promptFile, PromptFileManager.Request request) {
+        if (_promptFiles != null) {
+            _promptFiles.track(promptFile, request);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int off = 0;
+            int len;
+            while (off < content.length && (len = is.read(content, off, content.length - off)) > 0) {
+                off += len;
+            }
+            if (off < content.length) {
+                throw new IOException("Prompt file truncated while reading: " + file);
+            }
+        } finally {
+            is.close();
+        }
+        return content;
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+
+    private PromptGenerator borrowPromptGenerator(PromptGeneratorRouter.Route voice) {
+        try {
+            return _router.borrow(voice);
+        } catch (InterruptedException e) {
+            // e.g. synthesis cancelled while waiting for a prompt generator
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File generatePrompt(String text, PromptGeneratorRouter.Route voice, File promptDir) throws IllegalArgumentException {
+        PromptGenerator promptGenerator = borrowPromptGenerator(voice);
+        try {
+            return promptGenerator.generatePrompt(text, promptDir);
+        } finally {
+            _router.release(voice, promptGenerator);
+        }
+    }
+
+    private void generatePrompt(String text, PromptGeneratorRouter.Route voice, OutputStream out) throws IOException {
+        // returning the generator even if the stream is aborted (e.g. playback stopped)
+        PromptGenerator promptGenerator = borrowPromptGenerator(voice);
+        try {
+            promptGenerator.generatePrompt(text, out);
+        } finally {
+            _router.release(voice, promptGenerator);
+        }
+    }
+
+    /**
+     * Writes synthesized audio to both the prompt buffer and a copy kept for the prompt cache.
+     */
+    private static class TeeOutputStream extends OutputStream {
+
+        private OutputStream _out;
+        private OutputStream _copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            _out = out;
+            _copy = copy;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException {
+            _out.write(b);
+            _copy.write(b);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            _out.write(b, off, len);
+            _copy.write(b, off, len);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                _out.close();
+            } finally {
+                _copy.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+/**
+ * Speaking rate and volume of a prompt relative to the audio produced by the synthesizer, as requested by the
+ * Prosody-Rate and Prosody-Volume headers.  Prompts with a prosody other than the default are derived from the
+ * synthesized audio by time-stretching and scaling it, so that changing the prosody does not require another
+ * synthesis.
+ */
+public class Prosody {
+
+    /**
+     * The prosody of the synthesizer output.
+     */
+    public static final Prosody DEFAULT = new Prosody(1.0, 1.0);
+
+    /**
+     * Limits of the rate, beyond which time-stretching becomes unintelligible.
+     */
+    public static final double MIN_RATE = 0.5;
+    public static final double MAX_RATE = 2.0;
+
+    /**
+     * Limit of the volume, as a gain.
+     */
+    public static final double MAX_VOLUME = 4.0;
+
+    private static final String[] RATE_LABELS = {"x-slow", "slow", "medium", "fast", "x-fast", "default"};
+    private static final double[] RATES = {0.5, 0.75, 1.0, 1.25, 1.5, 1.0};
+
+    private static final String[] VOLUME_LABELS = {"silent", "x-soft", "soft", "medium", "loud", "x-loud", "default"};
+    private static final double[] VOLUMES = {0.0, 0.25, 0.5, 1.0, 1.5, 2.0, 1.0};
+
+    private double _rate;
+    private double _volume;
+
+    private Prosody(double rate, double volume) {
+        _rate = rate;
+        _volume = volume;
+    }
+
+    /**
+     * Creates the prosody of a SPEAK request.
+     * @param rate the Prosody-Rate value, or {@code null} for the default rate.  Either a label ("x-slow" to
+     * "x-fast", "default"), a rate multiplier (e.g. "1.5") or a relative change in percent (e.g. "-20%").
+     * @param volume the Prosody-Volume value, or {@code null} for the default volume.  Either a label ("silent"
+     * to "x-loud", "default"), a number from 0 to 100 (100 being the synthesizer volume), a relative change of
+     * that number (e.g. "+20"), a relative change in percent (e.g. "+50%") or in decibels (e.g. "-6dB").
+     * @return the prosody, with the rate limited to {@link #MIN_RATE} and {@link #MAX_RATE} and the volume to
+     * {@link #MAX_VOLUME}.
+     * @throws IllegalArgumentException if a value cannot be parsed.
+     */
+    public static Prosody valueOf(String rate, String volume) throws IllegalArgumentException {
+        double r = (rate == null) ? 1.0 : parseRate(rate.trim().toLowerCase());
+        double v = (volume == null) ? 1.0 : parseVolume(volume.trim().toLowerCase());
+        r = Math.max(MIN_RATE, Math.min(MAX_RATE, r));
+        v = Math.max(0.0, Math.min(MAX_VOLUME, v));
+        return (r == 1.0 && v == 1.0) ? DEFAULT : new Prosody(r, v);
+    }
+
+    private static double parseRate(String rate) throws IllegalArgumentException {
+        for (int i = 0; i < RATE_LABELS.length; i++) {
+            if (RATE_LABELS[i].equals(rate)) {
+                return RATES[i];
+            }
+        }
+        if (rate.endsWith("%")) {
+            return 1.0 + parseNumber(rate.substring(0, rate.length() - 1), rate) / 100;
+        }
+        return parseNumber(rate, rate);
+    }
+
+    private static double parseVolume(String volume) throws IllegalArgumentException {
+        for (int i = 0; i < VOLUME_LABELS.length; i++) {
+            if (VOLUME_LABELS[i].equals(volume)) {
+                return VOLUMES[i];
+            }
+        }
+        if (volume.endsWith("%")) {
+            return 1.0 + parseNumber(volume.substring(0, volume.length() - 1), volume) / 100;
+        } else if (volume.endsWith("db")) {
+            return Math.pow(10, parseNumber(volume.substring(0, volume.length() - 2), volume) / 20);
+        } else if (volume.startsWith("+") || volume.startsWith("-")) {
+            return 1.0 + parseNumber(volume, volume) / 100;
+        }
+        return parseNumber(volume, volume) / 100;
+    }
+
+    private static double parseNumber(String number, String value) throws IllegalArgumentException {
+        try {
+            double d = Double.parseDouble(number.startsWith("+") ? number.substring(1) : number);
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw new NumberFormatException();
+            }
+            return d;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid prosody value: " + value);
+        }
+    }
+
+    /**
+     * @return the speaking rate relative to the synthesizer output, e.g. 1.25 for 25% faster.
+     */
+    public double getRate() {
+        return _rate;
+    }
+
+    /**
+     * @return the gain applied to the synthesizer output.
+     */
+    public double getVolume() {
+        return _volume;
+    }
+
+    /**
+     * @return whether this is the prosody of the synthesizer output.
+     */
+    public boolean isDefault() {
+        return _rate == 1.0 && _volume == 1.0;
+    }
+
+    /**
+     * Derives the key of a prompt played with this prosody from the key of the synthesized prompt.
+     * @param promptKey the key of the synthesized prompt, e.g. a {@link PromptCache} key.
+     * @return the key of the prompt variant, the prompt key itself for the default prosody.
+     */
+    public String createKey(String promptKey) {
+        // in thousandths, so that keys can be used in file names
+        return isDefault() ? promptKey : promptKey + "-r" + Math.round(_rate * 1000) + "v" + Math.round(_volume * 1000);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "Prosody[rate=" + _rate + ", volume=" + _volume + "]";
+    }
+
+}
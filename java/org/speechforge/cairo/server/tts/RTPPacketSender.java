@@ -0,0 +1,236 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Sends G.711 audio frames as RTP packets (RFC 3550) over a datagram channel.  Used instead of the JMF based
+ * {@link org.speechforge.cairo.rtp.RTPPlayer} for prompts that are streamed rather than played from a file.
+ * Pauses between talkspurts can be signalled with comfort noise packets (RFC 3389).
+ */
+public class RTPPacketSender {
+
+    private static Logger _logger = Logger.getLogger(RTPPacketSender.class);
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_PAYLOAD_LENGTH = 1460;
+    private static final int RTP_VERSION = 2;
+
+    /**
+     * Static RTP payload type of comfort noise (RFC 3389).
+     */
+    public static final int CN_PAYLOAD_TYPE = 13;
+
+    private G711Codec _codec;
+    private DatagramChannel _channel;
+    private InetSocketAddress _remoteAddress;
+    private ByteBuffer _header = ByteBuffer.allocate(HEADER_LENGTH);
+    private ByteBuffer[] _packet = new ByteBuffer[] {_header, null};
+    private ByteBuffer _comfortNoise = ByteBuffer.allocate(1);
+
+    private int _ssrc;
+    private int _sequenceNumber;
+    private int _timestamp;
+    private long _lastSendTime = 0;
+    private int _lastTimestamp;
+    private int _lastSequenceNumber;
+    private long _playoutEndTime = 0;
+
+    /**
+     * TODOC
+     * @param localAddress local address to send from.
+     * @param localPort local port to send from.
+     * @param remoteAddress address of the RTP receiver.
+     * @param remotePort port of the RTP receiver.
+     * @param codec codec of the audio sent.
+     * @throws IOException if the local port could not be bound.
+     */
+    public RTPPacketSender(InetAddress localAddress, int localPort, InetAddress remoteAddress, int remotePort,
+            G711Codec codec) throws IOException {
+        _codec = codec;
+        _remoteAddress = new InetSocketAddress(remoteAddress, remotePort);
+        _channel = DatagramChannel.open();
+        try {
+            _channel.socket().bind(new InetSocketAddress(localAddress, localPort));
+            // connected so that header and payload can be sent with a gathering write
+            _channel.connect(_remoteAddress);
+        } catch (IOException e) {
+            _channel.close();
+            throw e;
+        }
+
+        // random initial values as recommended by RFC 3550
+        Random random = new Random();
+        _ssrc = random.nextInt();
+        _sequenceNumber = random.nextInt() & 0xFFFF;
+        _timestamp = random.nextInt();
+
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Sending " + codec + " RTP from " + localAddress + ':' + localPort + " to " + _remoteAddress);
+        }
+    }
+
+    /**
+     * @return the codec of the audio sent.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * Sends a frame of audio and advances the RTP timestamp by its duration.  A frame starting a talkspurt is
+     * timestamped according to the time elapsed since the previous packet, so that silences in between (e.g.
+     * between prompts or while the synthesizer catches up) keep their duration at the receiver.
+     * @param payload the encoded audio.
+     * @param offset offset of the frame within the payload buffer.
+     * @param length length of the frame, G.711 carries one sample per byte.
+     * @param marker whether to set the marker bit, i.e. the frame starts a talkspurt.
+     * @throws IOException if the packet could not be sent.
+     */
+    public void send(byte[] payload, int offset, int length, boolean marker) throws IOException {
+        send(ByteBuffer.wrap(payload, offset, length), marker);
+    }
+
+    /**
+     * Sends a frame of audio without copying it, e.g. a slice of a memory mapped prompt file.
+     * @param payload the encoded audio between the position and limit of the buffer, which are left unchanged.
+     * @param marker whether to set the marker bit, i.e. the frame starts a talkspurt.
+     * @throws IOException if the packet could not be sent.
+     * @see #send(byte[], int, int, boolean)
+     */
+    public synchronized void send(ByteBuffer payload, boolean marker) throws IOException {
+        int length = payload.remaining();
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+
+        long now = System.nanoTime();
+        if (marker) {
+            advanceTimestamp(now);
+        }
+        write(_codec.getPayloadType(), payload, marker, now);
+        _playoutEndTime = now + length * 1000000000L / G711Codec.SAMPLE_RATE;
+        _timestamp += length;
+    }
+
+    /**
+     * Sends a comfort noise packet starting a pause, during which the receiver generates noise at the given
+     * level until the next talkspurt.  The packet only carries the noise level, without spectral information,
+     * and is timestamped like the first frame of a talkspurt.  Only to be sent if the receiver negotiated the
+     * comfort noise payload type.
+     * @param level the noise level in -dBov, 127 for silence.
+     * @throws IOException if the packet could not be sent.
+     * @see #CN_PAYLOAD_TYPE
+     */
+    public synchronized void sendComfortNoise(int level) throws IOException {
+        if (level < 0 || level > 127) {
+            throw new IllegalArgumentException("Invalid comfort noise level: -" + level + "dBov");
+        }
+        long now = System.nanoTime();
+        advanceTimestamp(now);
+        _comfortNoise.clear();
+        _comfortNoise.put((byte) level);
+        _comfortNoise.flip();
+        write(CN_PAYLOAD_TYPE, _comfortNoise, false, now);
+    }
+
+    /**
+     * Timestamps the next packet according to the time elapsed since the previous packet, unless that is
+     * earlier than the end of the audio already sent.
+     */
+    private void advanceTimestamp(long now) {
+        if (_lastSendTime != 0) {
+            int elapsed = (int) ((now - _lastSendTime) * G711Codec.SAMPLE_RATE / 1000000000L);
+            if (_lastTimestamp + elapsed - _timestamp > 0) {
+                _timestamp = _lastTimestamp + elapsed;
+            }
+        }
+    }
+
+    private void write(int payloadType, ByteBuffer payload, boolean marker, long now) throws IOException {
+        _header.clear();
+        _header.put((byte) (RTP_VERSION << 6));
+        _header.put((byte) ((marker ? 0x80 : 0) | payloadType));
+        _header.putShort((short) _sequenceNumber);
+        _header.putInt(_timestamp);
+        _header.putInt(_ssrc);
+        _header.flip();
+        _packet[1] = payload.duplicate();
+        try {
+            _channel.write(_packet);
+        } catch (PortUnreachableException e) {
+            // reported for an earlier packet while the receiver is not listening yet, RTP is sent regardless
+            _logger.debug("RTP receiver unreachable: " + _remoteAddress);
+        } finally {
+            _packet[1] = null;
+        }
+        _lastSendTime = now;
+        _lastTimestamp = _timestamp;
+        _lastSequenceNumber = _sequenceNumber;
+        _sequenceNumber = (_sequenceNumber + 1) & 0xFFFF;
+    }
+
+    /**
+     * @return the sequence number of the last packet sent.
+     */
+    public synchronized int getLastSequenceNumber() {
+        return _lastSequenceNumber;
+    }
+
+    /**
+     * @return the RTP timestamp of the last packet sent.
+     */
+    public synchronized int getLastTimestamp() {
+        return _lastTimestamp;
+    }
+
+    /**
+     * @return the time (in {@link System#nanoTime()} terms) at which the audio of the last packet sent ends, i.e.
+     * its send time plus the duration of its samples, or 0 if no packet was sent yet.
+     */
+    public synchronized long getPlayoutEndTime() {
+        return _playoutEndTime;
+    }
+
+    /**
+     * Closes the datagram channel.
+     */
+    public void close() {
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            _logger.debug(e, e);
+        }
+    }
+
+}
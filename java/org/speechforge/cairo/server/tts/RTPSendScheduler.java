@@ -0,0 +1,271 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Paces the RTP packets of all streaming speech synthesis channels of a transmitter.
+ * <p>
+ * Instead of a send thread per channel, a small number of timer wheels (one thread each, by default one per
+ * processor) call each scheduled {@link PacedTask} every 20ms against {@link System#nanoTime()} deadlines.
+ * How late each call is relative to its deadline is recorded as the send jitter of the task.  Tasks must not
+ * block; blocking work such as notifying prompt play listeners is handed to {@link #execute(Runnable)}.
+ * </p>
+ */
+public class RTPSendScheduler {
+
+    private static Logger _logger = Logger.getLogger(RTPSendScheduler.class);
+
+    /**
+     * Interval at which paced tasks are called, i.e. the packetization time of the RTP streams.
+     */
+    public static final long FRAME_NANOS = 20000000L;
+
+    private static final long TICK_NANOS = 1000000L;
+    private static final int WHEEL_SIZE = 32;  // power of 2 covering more than one frame interval
+
+    private Wheel[] _wheels;
+    private ExecutorService _callbackExecutor;
+
+    /**
+     * Creates a scheduler with one timer wheel per available processor.
+     */
+    public RTPSendScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * TODOC
+     * @param threads number of timer wheels, each run by its own thread.
+     */
+    public RTPSendScheduler(int threads) {
+        _wheels = new Wheel[Math.max(1, threads)];
+        for (int i = 0; i < _wheels.length; i++) {
+            _wheels[i] = new Wheel(i);
+            _wheels[i].start();
+        }
+        _callbackExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private AtomicInteger _count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RTPSendScheduler-callback-" + _count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts calling a task every 20ms, the first call happening on the next tick of the least loaded wheel.
+     * @param task the task to call.
+     * @param statistics receives the send jitter of the task.
+     */
+    public void schedule(PacedTask task, Statistics statistics) {
+        Wheel wheel = _wheels[0];
+        for (int i = 1; i < _wheels.length; i++) {
+            if (_wheels[i]._load.get() < wheel._load.get()) {
+                wheel = _wheels[i];
+            }
+        }
+        wheel._load.incrementAndGet();
+        wheel._incoming.add(new Entry(task, statistics, System.nanoTime()));
+    }
+
+    /**
+     * Runs work that must not happen on a timer wheel thread, e.g. notifying prompt play listeners.
+     * @param command the work to run.
+     */
+    public void execute(Runnable command) {
+        _callbackExecutor.execute(command);
+    }
+
+    /**
+     * Stops all timer wheels, scheduled tasks are no longer called.
+     */
+    public void shutdown() {
+        for (Wheel wheel : _wheels) {
+            wheel._run = false;
+            LockSupport.unpark(wheel);
+        }
+        _callbackExecutor.shutdown();
+    }
+
+    /**
+     * Task sending one RTP packet each time it is called.
+     */
+    public static interface PacedTask {
+
+        /**
+         * Sends the next frame.  Must not block.
+         * @return {@code true} to be called again after 20ms, {@code false} to be unscheduled.
+         */
+        public boolean sendFrame();
+
+    }
+
+    /**
+     * Send jitter of a paced task, i.e. how late it was called relative to its deadlines.
+     */
+    public static class Statistics {
+
+        private long _frames = 0;
+        private long _totalLateness = 0;
+        private long _maxLateness = 0;
+
+        synchronized void record(long lateness) {
+            _frames++;
+            _totalLateness += lateness;
+            if (lateness > _maxLateness) {
+                _maxLateness = lateness;
+            }
+        }
+
+        /**
+         * @return the number of times the task was called.
+         */
+        public synchronized long getFrames() {
+            return _frames;
+        }
+
+        /**
+         * @return the mean lateness of the calls in microseconds.
+         */
+        public synchronized long getMeanJitterMicros() {
+            return (_frames == 0) ? 0 : _totalLateness / _frames / 1000;
+        }
+
+        /**
+         * @return the maximum lateness of a call in microseconds.
+         */
+        public synchronized long getMaxJitterMicros() {
+            return _maxLateness / 1000;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public synchronized String toString() {
+            return "frames=" + _frames + ", meanJitter=" + getMeanJitterMicros() + "us, maxJitter=" + getMaxJitterMicros() + "us";
+        }
+    }
+
+    private static class Entry {
+
+        private PacedTask _task;
+        private Statistics _statistics;
+        private long _deadline;
+
+        Entry(PacedTask task, Statistics statistics, long deadline) {
+            _task = task;
+            _statistics = statistics;
+            _deadline = deadline;
+        }
+    }
+
+    /**
+     * Hashed timer wheel with 1ms ticks.  Each tick the entries of the current slot whose deadline has been reached
+     * are called and moved to the slot of their next deadline.
+     */
+    private class Wheel extends Thread {
+
+        private volatile boolean _run = true;
+        private AtomicInteger _load = new AtomicInteger();
+        private Queue<Entry> _incoming = new ConcurrentLinkedQueue<Entry>();
+        private List<List<Entry>> _slots = new ArrayList<List<Entry>>(WHEEL_SIZE);
+        private long _start;
+
+        Wheel(int index) {
+            super("RTPSendScheduler-" + index);
+            setDaemon(true);
+            setPriority(Thread.MAX_PRIORITY);
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                _slots.add(new ArrayList<Entry>());
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Thread#run()
+         */
+        @Override
+        public void run() {
+            _start = System.nanoTime();
+            long tick = 0;
+            while (_run) {
+                long wait = _start + tick * TICK_NANOS - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+
+                Entry entry;
+                while ((entry = _incoming.poll()) != null) {
+                    // first call on the current tick
+                    entry._deadline = _start + tick * TICK_NANOS;
+                    _slots.get((int) (tick & (WHEEL_SIZE - 1))).add(entry);
+                }
+
+                List<Entry> slot = _slots.get((int) (tick & (WHEEL_SIZE - 1)));
+                for (int i = 0; i < slot.size(); ) {
+                    entry = slot.get(i);
+                    long now = System.nanoTime();
+                    if (entry._deadline - now > 0) {
+                        i++;
+                        continue;
+                    }
+                    slot.remove(i);
+                    entry._statistics.record(now - entry._deadline);
+
+                    boolean reschedule = false;
+                    try {
+                        reschedule = entry._task.sendFrame();
+                    } catch (RuntimeException e) {
+                        _logger.warn("Paced task failed, unscheduling it", e);
+                    }
+                    if (reschedule) {
+                        entry._deadline += FRAME_NANOS;
+                        _slots.get((int) (getTick(entry._deadline) & (WHEEL_SIZE - 1))).add(entry);
+                    } else {
+                        _load.decrementAndGet();
+                    }
+                }
+                tick++;
+            }
+        }
+
+        private long getTick(long deadline) {
+            return (deadline - _start + TICK_NANOS - 1) / TICK_NANOS;
+        }
+    }
+
+}
@@ -23,17 +23,33 @@
 package org.speechforge.cairo.server.tts;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.rtp.InvalidSessionAddressException;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
 
 import org.apache.log4j.Logger;
 import org.speechforge.cairo.rtp.AudioFormats;
 import org.speechforge.cairo.rtp.RTPPlayer;
 import org.speechforge.cairo.util.CairoUtil;
+import org.speechforge.cairo.util.audio.G711Codec;
 
 /**
  * Handle requests for speech synthesis (TTS) to be streamed through an outbound RTP channel.
@@ -44,22 +60,44 @@ public class RTPSpeechSynthChannel {
 
     private static Logger _logger = Logger.getLogger(RTPSpeechSynthChannel.class);
 
-    // TODO: move to config file
-    private static final File FEEDER_PROMPT_FILE = new File("../prompts/feeder.wav");
+    // duration in milliseconds of the silence played to prime JMF on the first prompt of a channel
+    private static final long FEEDER_PROMPT_DURATION = 200;
+
+    // generated once and shared by all channels
+    private static File _feederPromptFile;
 
     static final short IDLE = 0;
     static final short SPEAKING = 1;
     static final short PAUSED = 2;
 
+    // streamed prompts are sent in 20ms packets
+    private static final int FRAME_SIZE = EncodedPrompt.FRAME_SIZE;
+
     volatile short _state = IDLE;
 
+    // stopped prompts stay in the queue until their turn comes and are skipped then
     BlockingQueue<PromptPlay> _promptQueue = new LinkedBlockingQueue<PromptPlay>();
+    // prompts queued or playing, by id of their SPEAK request
+    private Map<Long, PromptPlay> _activePrompts = new LinkedHashMap<Long, PromptPlay>();
+    // prompt taken from the queue by the send thread or stream task
+    private PromptPlay _playing;
     private SendThread _sendThread;
     RTPPlayer _promptPlayer;
+    RTPPacketSender _packetSender;
+    private RTPSendScheduler _sendScheduler;
+    private StreamTask _streamTask;
+    private RTPSendScheduler.Statistics _sendStatistics = new RTPSendScheduler.Statistics();
+    private boolean _scheduled = false;
+    private volatile boolean _shutdown = false;
+    private volatile long _completionTail = 0;
+    private PromptFileManager _promptFiles;
     private int _localPort;
     private InetAddress _remoteAddress;
     private int _remotePort;
     private AudioFormats _af;
+    private G711Codec _codec;
+    private volatile int _comfortNoiseLevel = -1;
+    private volatile ComfortNoiseSource _noiseSource;
 
 	private InetAddress _localAddress;
     
@@ -70,16 +108,129 @@ public class RTPSpeechSynthChannel {
      * @param remotePort 
      */
     public RTPSpeechSynthChannel(int localPort, InetAddress localAddress, InetAddress remoteAddress, int remotePort, AudioFormats af) {
+        this(localPort, localAddress, remoteAddress, remotePort, af, null, null);
+    }
+
+    /**
+     * TODOC
+     * @param localPort 
+     * @param localAddress 
+     * @param remoteAddress 
+     * @param remotePort 
+     * @param af 
+     * @param codec codec used to stream prompts without going through JMF, or {@code null} to play all prompts
+     * from prompt files using JMF.
+     * @param sendScheduler scheduler pacing the packets of streamed prompts, required if a codec is specified.
+     */
+    public RTPSpeechSynthChannel(int localPort, InetAddress localAddress, InetAddress remoteAddress, int remotePort,
+            AudioFormats af, G711Codec codec, RTPSendScheduler sendScheduler) {
+        if (codec != null && sendScheduler == null) {
+            throw new IllegalArgumentException("Streamed prompts require a send scheduler");
+        }
         _localPort = localPort;
         _remoteAddress = remoteAddress;
         _remotePort = remotePort;
         _af = af;
+        _codec = codec;
+        _sendScheduler = sendScheduler;
         _localAddress = localAddress;
     }
 
+    /**
+     * Selects the codec for streaming prompts from the media formats negotiated for a channel.
+     * @param formats the RTP payload types negotiated, in order of preference.
+     * @return the first G.711 codec negotiated, or {@code null} if neither PCMU nor PCMA was negotiated.
+     */
+    public static G711Codec selectCodec(Vector formats) {
+        if (formats != null) {
+            for (Object format : formats) {
+                try {
+                    G711Codec codec = G711Codec.fromPayloadType(Integer.parseInt(String.valueOf(format).trim()));
+                    if (codec != null) {
+                        return codec;
+                    }
+                } catch (NumberFormatException e) {
+                    _logger.debug("Ignoring media format: " + format);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether prompts are streamed from {@link AudioFrameSource}s rather than played from files using JMF.
+     */
+    public boolean isStreaming() {
+        return _codec != null;
+    }
+
+    /**
+     * @return the codec of streamed prompts, or {@code null} if prompts are played using JMF.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * @return the audio formats negotiated for this channel.
+     */
+    public AudioFormats getAudioFormats() {
+        return _af;
+    }
+
+    /**
+     * Sets the time to wait after the audio of a prompt has played out before notifying its listener, e.g. to
+     * allow for the jitter buffer of the receiver.
+     * @param completionTail the time in milliseconds, 0 (the default) to notify as soon as the last RTP packet of
+     * the prompt has played out.
+     */
+    public void setCompletionTail(long completionTail) {
+        _completionTail = completionTail;
+    }
+
+    /**
+     * Sets the manager deleting prompt files once they have been played by JMF.
+     * @param promptFiles the manager, or {@code null} (the default) to leave played prompt files on disk.
+     */
+    public void setPromptFileManager(PromptFileManager promptFiles) {
+        _promptFiles = promptFiles;
+    }
+
+    /**
+     * Sets the comfort noise filling the pauses of a streaming channel, i.e. between prompts and while the
+     * synthesizer catches up with playback.  Has no effect on channels playing prompts using JMF.
+     * @param level the noise level in -dBov ({@link ComfortNoiseSource#SILENCE_LEVEL} for silence), or -1 (the
+     * default) to send nothing during pauses.
+     * @param silenceSuppression whether each pause is signalled by a single comfort noise packet (RFC 3389) from
+     * which the receiver generates the noise, only if the receiver negotiated the comfort noise payload type.
+     * Otherwise comfort noise frames are streamed throughout pauses once the first prompt has been played.
+     * @see RTPPacketSender#CN_PAYLOAD_TYPE
+     */
+    public synchronized void setComfortNoise(int level, boolean silenceSuppression) {
+        if (level > ComfortNoiseSource.SILENCE_LEVEL) {
+            throw new IllegalArgumentException("Invalid comfort noise level: -" + level + "dBov");
+        }
+        _comfortNoiseLevel = Math.max(level, -1);
+        _noiseSource = (isStreaming() && level >= 0 && !silenceSuppression) ? new ComfortNoiseSource(_codec, level)
+                : null;
+    }
+
+    /**
+     * @return the send jitter of streamed prompts played on this channel.
+     */
+    public RTPSendScheduler.Statistics getSendStatistics() {
+        return _sendStatistics;
+    }
+
     private boolean init() throws InvalidSessionAddressException, IOException {
     	_logger.debug("calling init");
-        if (_promptPlayer == null) {
+        if (isStreaming()) {
+            if (_packetSender == null) {
+                _packetSender = new RTPPacketSender(_localAddress, _localPort, _remoteAddress, _remotePort, _codec);
+                _streamTask = new StreamTask();
+                return true;
+            }
+        } else if (_promptPlayer == null) {
             _promptPlayer = new RTPPlayer(_localAddress, _localPort, _remoteAddress, _remotePort, _af);
             (_sendThread = new SendThread()).start();
         	_logger.debug("created a player and started it");
@@ -90,38 +241,329 @@ public class RTPSpeechSynthChannel {
     }
     
     public synchronized void shutdown() throws InterruptedException {
-        _sendThread.shutdown();
-        _promptPlayer.shutdown();
+        _shutdown = true;
+        if (_sendThread != null) {
+            _sendThread.shutdown();
+        }
+        if (_promptPlayer != null) {
+            _promptPlayer.shutdown();
+        }
+        if (_packetSender != null) {
+            drainQueue();
+            if (_state == PAUSED) {
+                // lets the stream task release the paused prompt
+                resumeStream();
+            }
+            _packetSender.close();
+        }
+    }
+
+    public int queuePrompt(File promptFile, PromptPlayListener listener)
+      throws InvalidSessionAddressException, IOException {
+
+        if (isStreaming()) {
+            // encoded outside the channel lock which is taken by the send scheduler every frame
+            return queuePrompt(EncodedPrompt.fromFile(promptFile, _codec).openSource(), listener);
+        }
+        return queuePrompt(new PromptPlay(promptFile, listener));
+    }
+
+    /**
+     * Queues a streamed prompt, only supported if the channel {@link #isStreaming()}.
+     * @param source the source of the encoded prompt audio.
+     * @param listener listener notified when playback of the prompt completes or fails.
+     * @return the state of the channel before the prompt was queued.
+     * @throws InvalidSessionAddressException 
+     * @throws IOException if the RTP session could not be created.
+     */
+    public synchronized int queuePrompt(AudioFrameSource source, PromptPlayListener listener)
+      throws InvalidSessionAddressException, IOException {
+
+        return queuePrompt(source, listener, null, true);
+    }
+
+    /**
+     * Queues a streamed prompt that can be stopped selectively, only supported if the channel {@link #isStreaming()}.
+     * @param source the source of the encoded prompt audio.
+     * @param listener listener notified when playback of the prompt completes or fails.
+     * @param requestID id of the SPEAK request of the prompt, used to stop it.
+     * @param killOnBargeIn whether the prompt is stopped by {@link #bargeIn()}.
+     * @return the state of the channel before the prompt was queued.
+     * @throws InvalidSessionAddressException 
+     * @throws IOException if the RTP session could not be created.
+     */
+    public synchronized int queuePrompt(AudioFrameSource source, PromptPlayListener listener, Long requestID,
+            boolean killOnBargeIn) throws InvalidSessionAddressException, IOException {
+
+        if (!isStreaming()) {
+            throw new IllegalStateException("Streamed prompts require a G.711 channel");
+        }
+        return queuePrompt(new PromptPlay(source, listener), requestID, killOnBargeIn);
     }
 
-    public synchronized int queuePrompt(File promptFile, PromptPlayListener listener)
+    /**
+     * Queues a prompt made up of prompt files that may still be being prepared or synthesized, e.g. the chunks of
+     * a long text.  The files are played in order as they become available; the listener is notified once after
+     * the last one.  Only supported if the channel is not {@link #isStreaming()}.
+     * @param pendingFiles the prompt files in playing order, cancelled if the prompt is stopped.
+     * @param listener listener notified when playback of the prompt completes or fails.
+     * @return the state of the channel before the prompt was queued.
+     * @throws InvalidSessionAddressException 
+     * @throws IOException if the RTP session could not be created.
+     */
+    public synchronized int queuePrompt(Future<List<Future<File>>> pendingFiles, PromptPlayListener listener)
       throws InvalidSessionAddressException, IOException {
 
+        return queuePrompt(pendingFiles, null, listener, null, true);
+    }
+
+    /**
+     * Queues a prompt made up of pending prompt files that can be stopped selectively.  Only supported if the
+     * channel is not {@link #isStreaming()}.
+     * @param pendingFiles the prompt files in playing order, cancelled if the prompt is stopped.
+     * @param files the prompt files of the SPEAK request, ended once the prompt was played or stopped, or
+     * {@code null}.
+     * @param listener listener notified when playback of the prompt completes or fails.
+     * @param requestID id of the SPEAK request of the prompt, used to stop it.
+     * @param killOnBargeIn whether the prompt is stopped by {@link #bargeIn()}.
+     * @return the state of the channel before the prompt was queued.
+     * @throws InvalidSessionAddressException 
+     * @throws IOException if the RTP session could not be created.
+     * @see #queuePrompt(Future, PromptPlayListener)
+     */
+    public synchronized int queuePrompt(Future<List<Future<File>>> pendingFiles, PromptFileManager.Request files,
+            PromptPlayListener listener, Long requestID, boolean killOnBargeIn)
+            throws InvalidSessionAddressException, IOException {
+
+        if (isStreaming()) {
+            throw new IllegalStateException("Streaming channels only play frame sources");
+        }
+        PromptPlay promptPlay = new PromptPlay(pendingFiles, listener);
+        promptPlay._files = files;
+        return queuePrompt(promptPlay, requestID, killOnBargeIn);
+    }
+
+    private synchronized int queuePrompt(PromptPlay promptPlay, Long requestID, boolean killOnBargeIn)
+      throws InvalidSessionAddressException, IOException {
+
+        promptPlay._requestID = requestID;
+        promptPlay._killOnBargeIn = killOnBargeIn;
+        promptPlay._promptFiles = _promptFiles;
+        int state = queuePrompt(promptPlay);
+        if (requestID != null) {
+            _activePrompts.put(requestID, promptPlay);
+        }
+        return state;
+    }
+
+    private synchronized int queuePrompt(PromptPlay promptPlay) throws InvalidSessionAddressException, IOException {
         int state = _state;
         try {
-            if (init()) {
-                if (FEEDER_PROMPT_FILE.exists()) {
+            // the feeder prompt only serves to prime JMF
+            if (init() && !isStreaming()) {
+                try {
+                    File feederPromptFile = getFeederPromptFile();
                     if (_logger.isDebugEnabled()) {
-                        _logger.debug("Queueing feeder prompt: " + FEEDER_PROMPT_FILE.getAbsolutePath());
+                        _logger.debug("Queueing feeder prompt: " + feederPromptFile);
                     }
-                    _promptQueue.put(new PromptPlay(FEEDER_PROMPT_FILE, null));
-                } else if (_logger.isDebugEnabled()) {
-                    _logger.debug("Feeder prompt not found: " + FEEDER_PROMPT_FILE.getAbsolutePath());
+                    _promptQueue.put(new PromptPlay(feederPromptFile, null));
+                } catch (IOException e) {
+                    _logger.warn("Could not generate feeder prompt: " + e);
                 }
             }
         	_logger.debug("queued a prompt");
 
-            _promptQueue.put(new PromptPlay(promptFile, listener));
-            _state = SPEAKING;
+            _promptQueue.put(promptPlay);
+            if (_state != PAUSED) {
+                _state = SPEAKING;
+                scheduleStream();
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
         return state;
     }
     
-    public synchronized void stopPlayback() {
-        _sendThread.interrupt();
-        //TODO: wait for send thread to complete?  (prevent double interrupt while draining queue)
+    /**
+     * @return a prompt file of silence, generated on first use.
+     * @throws IOException if the file could not be written.
+     */
+    private static synchronized File getFeederPromptFile() throws IOException {
+        if (_feederPromptFile == null || !_feederPromptFile.exists()) {
+            byte[] au = ComfortNoiseSource.createPrompt(G711Codec.ULAW, ComfortNoiseSource.SILENCE_LEVEL,
+                    FEEDER_PROMPT_DURATION).toAu();
+            File file = File.createTempFile("feeder", ".au");
+            file.deleteOnExit();
+            OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(au);
+            } finally {
+                os.close();
+            }
+            _feederPromptFile = file;
+        }
+        return _feederPromptFile;
+    }
+
+    /**
+     * Stops the prompt playing and all prompts queued.
+     * @return the request ids of the prompts stopped, in playing order.
+     */
+    public synchronized List<Long> stopPlayback() {
+        List<Long> stopped = new ArrayList<Long>(_activePrompts.keySet());
+        _activePrompts.clear();
+        drainQueue();
+        if (_playing != null) {
+            cancel(_playing);
+        }
+        endIdlePause();
+        return stopped;
+    }
+
+    /**
+     * Stops the prompts of the given SPEAK requests, whether playing or queued; other prompts keep their place in
+     * the queue.  The prompt playing stops within one frame.
+     * @param requestIDs ids of the SPEAK requests to stop.
+     * @return the request ids of the prompts stopped, i.e. those that were still queued or playing.
+     */
+    public synchronized List<Long> stopPlayback(Collection<Long> requestIDs) {
+        List<Long> stopped = new ArrayList<Long>(requestIDs.size());
+        for (Long requestID : requestIDs) {
+            PromptPlay promptPlay = _activePrompts.remove(requestID);
+            if (promptPlay != null) {
+                cancel(promptPlay);
+                stopped.add(requestID);
+            }
+        }
+        endIdlePause();
+        return stopped;
+    }
+
+    /**
+     * Stops the prompts queued with kill-on-barge-in, other prompts keep playing.
+     * @return the request ids of the prompts stopped.
+     */
+    public synchronized List<Long> bargeIn() {
+        List<Long> requestIDs = new ArrayList<Long>();
+        for (PromptPlay promptPlay : _activePrompts.values()) {
+            if (promptPlay._killOnBargeIn) {
+                requestIDs.add(promptPlay._requestID);
+            }
+        }
+        return stopPlayback(requestIDs);
+    }
+
+    /**
+     * Cancels a prompt.  A queued prompt is released at once and skipped when its turn comes, the prompt playing is
+     * released by the thread playing it.
+     */
+    private void cancel(PromptPlay promptPlay) {
+        promptPlay._cancelled = true;
+        if (promptPlay != _playing) {
+            promptPlay.cancel();
+        } else if (!isStreaming()) {
+            // only the prompt playing is interrupted, see SendThread
+            _sendThread.interrupt();
+        } else if (_state == PAUSED) {
+            // stopping the paused prompt ends the pause, the stream task drops the prompt on its next frame
+            resumeStream();
+        }
+    }
+
+    /**
+     * Ends a pause that no longer holds a prompt, so that the stream task goes idle or takes the next prompt queued
+     * instead of leaving the channel paused with nothing to resume.
+     */
+    private void endIdlePause() {
+        if (_state == PAUSED && _playing == null) {
+            resumeStream();
+        }
+    }
+
+    /**
+     * Takes a prompt that was played or failed off the active prompts.
+     */
+    private synchronized void finished(PromptPlay promptPlay) {
+        if (_playing == promptPlay) {
+            _playing = null;
+        }
+        if (promptPlay._requestID != null && _activePrompts.get(promptPlay._requestID) == promptPlay) {
+            _activePrompts.remove(promptPlay._requestID);
+        }
+    }
+
+    /**
+     * Pauses playback at the current frame, keeping the current prompt and the prompts queued.  Only supported if
+     * the channel {@link #isStreaming()}; pausing a channel that is idle or already paused has no effect.
+     * @return whether pausing is supported.
+     */
+    public synchronized boolean pausePlayback() {
+        if (!isStreaming()) {
+            return false;
+        }
+        if (_state == SPEAKING && _playing != null) {
+            // the stream task stops sending on its next frame
+            _state = PAUSED;
+        }
+        return true;
+    }
+
+    /**
+     * Resumes playback of a paused channel from the frame at which it was paused.  Only supported if the channel
+     * {@link #isStreaming()}; resuming a channel that is not paused has no effect.
+     * @return whether resuming is supported.
+     */
+    public synchronized boolean resumePlayback() {
+        if (!isStreaming()) {
+            return false;
+        }
+        if (_state == PAUSED) {
+            resumeStream();
+        }
+        return true;
+    }
+
+    private void resumeStream() {
+        _state = SPEAKING;
+        scheduleStream();
+    }
+
+    private void scheduleStream() {
+        if (_streamTask != null && !_scheduled) {
+            _scheduled = true;
+            _sendScheduler.schedule(_streamTask, _sendStatistics);
+        }
+    }
+
+    private void drainQueue() {
+        PromptPlay promptPlay;
+        while ((promptPlay = _promptQueue.poll()) != null) {
+            promptPlay._cancelled = true;
+            promptPlay.cancel();
+        }
+    }
+
+    /**
+     * @return the next prompt in the queue that was not stopped, or {@code null} if there is none.
+     */
+    private PromptPlay pollPrompt() {
+        PromptPlay promptPlay;
+        do {
+            promptPlay = _promptQueue.poll();
+        } while (promptPlay != null && promptPlay._cancelled);
+        return promptPlay;
+    }
+
+    /**
+     * Waits until the given time plus the completion tail.
+     * @param playoutEnd the time (in {@link System#nanoTime()} terms) at which the audio of a prompt ends.
+     * @throws InterruptedException
+     */
+    private void awaitPlayout(long playoutEnd) throws InterruptedException {
+        long delay = playoutEnd + TimeUnit.MILLISECONDS.toNanos(_completionTail) - System.nanoTime();
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
     }
 
     private class SendThread extends Thread {
@@ -148,55 +590,74 @@ public class RTPSpeechSynthChannel {
             }*/
             while (_run) {
                 PromptPlay promptPlay = null;
-                boolean drainQueue = false;
                 Exception cause = null;
 
                 try {
 
-                    // first clear interrupted status of current thread
-                    Thread.interrupted();
-
                     // get next prompt to play
                     _logger.debug("taking next prompt from prompt queue...");
                     promptPlay = _promptQueue.take();
+                    synchronized (RTPSpeechSynthChannel.this) {
+                        if (promptPlay._cancelled) {
+                            // stopped while queued, already released
+                            continue;
+                        }
+                        // from now on a STOP of this prompt interrupts the send thread
+                        _playing = promptPlay;
+                    }
                     _logger.debug("playing next prompt...");
-                    _promptPlayer.playPrompt(promptPlay._promptFile);
+                    long playoutEnd = 0;
+                    if (promptPlay._pendingFiles != null) {
+                        for (Future<File> pendingFile : promptPlay._pendingFiles.get()) {
+                            // blocks while the next chunk is still being synthesized
+                            playoutEnd = playPrompt(pendingFile.get());
+                            if (Thread.currentThread().isInterrupted()) {
+                                break;
+                            }
+                        }
+                    } else {
+                        playoutEnd = playPrompt(promptPlay._promptFile);
+                    }
 
-                    // drain all prompts in queue if current prompt playback is interrupted (e.g. by STOP request)
-                    drainQueue = Thread.interrupted();
+                    if (promptPlay._listener != null && !Thread.currentThread().isInterrupted()) {
+                        // JMF may return before the last packets of the prompt are sent
+                        awaitPlayout(playoutEnd);
+                    }
 
                 } catch (InterruptedException e) {
                     _logger.debug(e, e);
-                    // TODO: cancel current prompt playback
-                    drainQueue = true;
+
+                } catch (ExecutionException e) {
+                    _logger.debug(e, e);
+                    cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
 
                 } catch (Exception e) {
                     _logger.debug(e, e);
                     cause = e;
                 }
 
-                if (drainQueue) {
-                    _logger.debug("draining prompt queue...");
-                    while (!_promptQueue.isEmpty()) {
-                        try {
-                            _promptQueue.take();
-                            //TODO: may need to remove only specific prompts
-                            // (e.g. save and put back in queue if not in cancel list)
-                        } catch (InterruptedException e1) {
-                            // should not happen since this is the only thread consuming from queue
-                            _logger.warn(e1, e1);
-                        }
+                boolean stopped = false;
+                if (promptPlay != null) {
+                    synchronized (RTPSpeechSynthChannel.this) {
+                        finished(promptPlay);
+                        // clears an interrupt aimed at this prompt, so that it cannot affect the next one
+                        Thread.interrupted();
+                        stopped = promptPlay._cancelled;
                     }
+                }
+
+                if (promptPlay != null && (stopped || cause != null)) {
+                    promptPlay.cancel();
+                } else if (promptPlay != null) {
+                    promptPlay.end();
+                }
+
+                if (stopped) {
+                    _logger.debug("prompt playback stopped.");
                 } else if (promptPlay != null) {
                     if (promptPlay._listener != null) {
                         _logger.debug("notifying prompt play listener...");
                         if (cause == null) {
-                            try {
-                                // give rtp stream a chance to catch up...
-                                Thread.sleep(250);
-                            } catch (InterruptedException e) {
-                                _logger.debug("InterruptedException encountered!", e);
-                            }
                             promptPlay._listener.playCompleted();
                         } else {
                             promptPlay._listener.playFailed(cause);
@@ -211,20 +672,239 @@ public class RTPSpeechSynthChannel {
             }
         }
         
+        /**
+         * Plays a prompt file using JMF.
+         * @param promptFile the prompt file.
+         * @return the time at which the audio of the prompt ends, i.e. the time playback started plus the duration
+         * of the samples in the file, or the current time if the duration is not known.
+         * @throws Exception
+         */
+        private long playPrompt(File promptFile) throws Exception {
+            long start = System.nanoTime();
+            long duration = getDuration(promptFile);
+            try {
+                _promptPlayer.playPrompt(promptFile);
+            } finally {
+                if (_promptFiles != null) {
+                    _promptFiles.release(promptFile);
+                }
+            }
+            return Math.max(start + duration, System.nanoTime());
+        }
+
         public void shutdown() {
             _run = false;
         }
     }
 
+    /**
+     * @return the duration in nanoseconds of the audio in a prompt file, or 0 if it cannot be determined.
+     */
+    private static long getDuration(File promptFile) {
+        try {
+            AudioFileFormat format = AudioSystem.getAudioFileFormat(promptFile);
+            float frameRate = format.getFormat().getFrameRate();
+            if (format.getFrameLength() > 0 && frameRate > 0) {
+                return (long) (format.getFrameLength() * 1000000000.0 / frameRate);
+            }
+        } catch (Exception e) {
+            _logger.debug("Duration of prompt unknown: " + promptFile + ": " + e);
+        }
+        return 0;
+    }
+
+    /**
+     * Sends the frames of the queued streamed prompts, called every 20ms by the send scheduler while the
+     * channel is speaking, or while comfort noise frames are streamed between prompts.
+     */
+    private class StreamTask implements RTPSendScheduler.PacedTask {
+
+        private byte[] _frame = new byte[FRAME_SIZE];
+        private ByteBuffer _frameBuffer = ByteBuffer.wrap(_frame);
+        private boolean _marker = true;
+
+        /* (non-Javadoc)
+         * @see org.speechforge.cairo.server.tts.RTPSendScheduler.PacedTask#sendFrame()
+         */
+        public boolean sendFrame() {
+            while (true) {
+                PromptPlay current;
+                boolean noise = false;
+                synchronized (RTPSpeechSynthChannel.this) {
+                    if (_playing != null && (_playing._cancelled || _shutdown)) {
+                        // stopped within one frame
+                        _playing._source.close();
+                        finished(_playing);
+                    } else if (_state == PAUSED) {
+                        // keeps the current prompt at the next frame to send, rescheduled on resume
+                        _scheduled = false;
+                        _marker = true;
+                        return false;
+                    }
+                    if (_playing == null) {
+                        _playing = _shutdown ? null : pollPrompt();
+                        if (_playing == null) {
+                            if (_state != IDLE && _logger.isDebugEnabled()) {
+                                _logger.debug("Stream idle, send statistics: " + _sendStatistics);
+                            }
+                            _state = IDLE;
+                            // keeps streaming comfort noise until the next prompt is queued
+                            noise = _noiseSource != null && !_shutdown;
+                            _scheduled = noise;
+                        }
+                    }
+                    current = _playing;
+                }
+
+                if (current == null) {
+                    fillPause(noise);
+                    return noise;
+                }
+
+                try {
+                    // frames of stored and mapped prompts are slices sent without copying
+                    ByteBuffer frame = FrameSources.readFrame(current._source, _frameBuffer);
+                    if (frame == null) {
+                        finished(current);
+                        notifyCompleted(current, null);
+                        continue;
+                    }
+                    int len = frame.remaining();
+                    if (len == 0) {
+                        // synthesizer has not caught up yet, resume with a new talkspurt unless noise is streamed
+                        fillPause(_noiseSource != null);
+                        return true;
+                    }
+                    if (len < FRAME_SIZE) {
+                        if (frame != _frameBuffer) {
+                            frame.get(_frame, 0, len);
+                        }
+                        Arrays.fill(_frame, len, FRAME_SIZE, _codec.getSilence());
+                        frame = ByteBuffer.wrap(_frame);
+                    }
+                    _packetSender.send(frame, _marker);
+                    _marker = false;
+                    return true;
+                } catch (IOException e) {
+                    _logger.debug(e, e);
+                    current._source.close();
+                    finished(current);
+                    notifyCompleted(current, e);
+                }
+            }
+        }
+
+        /**
+         * Fills a pause in the audio with a frame of comfort noise, or starts it with a comfort noise packet if
+         * comfort noise is signalled.
+         * @param noise whether to send a frame of comfort noise.
+         */
+        private void fillPause(boolean noise) {
+            try {
+                if (noise) {
+                    _packetSender.send(FrameSources.readFrame(_noiseSource, _frameBuffer), _marker);
+                    _marker = false;
+                    return;
+                }
+                if (_comfortNoiseLevel >= 0 && !_marker && !_shutdown) {
+                    // only once per pause, the receiver generates the noise until the next talkspurt
+                    _packetSender.sendComfortNoise(_comfortNoiseLevel);
+                }
+            } catch (IOException e) {
+                _logger.debug(e, e);
+            }
+            _marker = true;
+        }
+
+        private void notifyCompleted(final PromptPlay promptPlay, final Exception cause) {
+            if (promptPlay._listener == null || _shutdown) {
+                return;
+            }
+            // the last packet sent is the last one of the prompt, the next prompt is started after notifying
+            final long playoutEnd = _packetSender.getPlayoutEndTime();
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Prompt ended with RTP packet seq=" + _packetSender.getLastSequenceNumber()
+                        + " ts=" + (_packetSender.getLastTimestamp() & 0xFFFFFFFFL));
+            }
+            _sendScheduler.execute(new Runnable() {
+                public void run() {
+                    if (cause == null) {
+                        try {
+                            awaitPlayout(playoutEnd);
+                        } catch (InterruptedException e) {
+                            _logger.debug("InterruptedException encountered!", e);
+                        }
+                        promptPlay._listener.playCompleted();
+                    } else {
+                        promptPlay._listener.playFailed(cause);
+                    }
+                }
+            });
+        }
+    }
+
     private static class PromptPlay {
 
         private File _promptFile;
+        private Future<List<Future<File>>> _pendingFiles;
+        private AudioFrameSource _source;
         private PromptPlayListener _listener;
+        private Long _requestID;
+        private boolean _killOnBargeIn = true;
+        private volatile boolean _cancelled = false;
+        private PromptFileManager _promptFiles;
+        private PromptFileManager.Request _files;
 
         PromptPlay(File promptFile, PromptPlayListener listener) {
             _promptFile = promptFile;
             _listener = listener;
         }
+
+        PromptPlay(Future<List<Future<File>>> pendingFiles, PromptPlayListener listener) {
+            _pendingFiles = pendingFiles;
+            _listener = listener;
+        }
+
+        PromptPlay(AudioFrameSource source, PromptPlayListener listener) {
+            _source = source;
+            _listener = listener;
+        }
+
+        /**
+         * Releases whatever is still producing the audio of a prompt that will not (or no longer) be played.
+         */
+        void cancel() {
+            if (_pendingFiles != null && !_pendingFiles.cancel(true)) {
+                try {
+                    for (Future<File> pendingFile : _pendingFiles.get()) {
+                        if (!pendingFile.cancel(true) && _promptFiles != null && !pendingFile.isCancelled()) {
+                            // already synthesized or fetched, will not be played
+                            try {
+                                _promptFiles.release(pendingFile.get());
+                            } catch (ExecutionException e) {
+                                // failed, no prompt file
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    // preparation failed, nothing to cancel
+                    _logger.debug(e, e);
+                }
+            }
+            if (_source != null) {
+                _source.close();
+            }
+            end();
+        }
+
+        /**
+         * Lets the prompt files of a prompt that was played or stopped be deleted to enforce the disk quota.
+         */
+        void end() {
+            if (_files != null && _promptFiles != null) {
+                _promptFiles.end(_files);
+            }
+        }
     }
 
     /**
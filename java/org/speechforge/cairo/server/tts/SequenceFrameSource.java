@@ -0,0 +1,82 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Plays a sequence of frame sources as a single prompt, e.g. the separately synthesized chunks of a long text.
+ */
+public class SequenceFrameSource implements SlicedFrameSource {
+
+    private List<? extends AudioFrameSource> _sources;
+    private int _index = 0;
+
+    /**
+     * TODOC
+     * @param sources the sources in playing order.
+     */
+    public SequenceFrameSource(List<? extends AudioFrameSource> sources) {
+        _sources = sources;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#readFrame(byte[])
+     */
+    public synchronized int readFrame(byte[] frame) throws IOException {
+        while (_index < _sources.size()) {
+            int len = _sources.get(_index).readFrame(frame);
+            if (len >= 0) {
+                return len;
+            }
+            _index++;
+        }
+        return -1;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.SlicedFrameSource#readFrame(java.nio.ByteBuffer)
+     */
+    public synchronized ByteBuffer readFrame(ByteBuffer frame) throws IOException {
+        while (_index < _sources.size()) {
+            ByteBuffer read = FrameSources.readFrame(_sources.get(_index), frame);
+            if (read != null) {
+                return read;
+            }
+            _index++;
+        }
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.speechforge.cairo.server.tts.AudioFrameSource#close()
+     */
+    public synchronized void close() {
+        for (AudioFrameSource source : _sources) {
+            source.close();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import org.speechforge.cairo.util.audio.G711Codec;
+
+/**
+ * Trims the leading and trailing silence of encoded prompts, e.g. the pauses synthesizers put before and after
+ * an utterance, so that playback starts with speech and the next prompt follows without a gap.  Short guards of
+ * audio are kept around the speech so that soft onsets and decays are not clipped.
+ */
+public class SilenceTrimmer {
+
+    /**
+     * Default level in dBov below which audio is taken for silence.
+     */
+    public static final int DEFAULT_THRESHOLD = -45;
+
+    /**
+     * Default time in milliseconds kept before the first speech.
+     */
+    public static final int DEFAULT_LEAD = 40;
+
+    /**
+     * Default time in milliseconds kept after the last speech.
+     */
+    public static final int DEFAULT_TAIL = 100;
+
+    // energy is measured over 10ms windows
+    private static final int WINDOW_SIZE = G711Codec.SAMPLE_RATE / 100;
+
+    private double _threshold;
+    private int _lead;
+    private int _tail;
+
+    /**
+     * Creates a trimmer with the default threshold and guards.
+     */
+    public SilenceTrimmer() {
+        this(DEFAULT_THRESHOLD, DEFAULT_LEAD, DEFAULT_TAIL);
+    }
+
+    /**
+     * TODOC
+     * @param threshold level in dBov (at most 0) below which audio is taken for silence.
+     * @param lead time in milliseconds kept before the first speech.
+     * @param tail time in milliseconds kept after the last speech.
+     */
+    public SilenceTrimmer(int threshold, int lead, int tail) {
+        if (threshold > 0 || lead < 0 || tail < 0) {
+            throw new IllegalArgumentException("Invalid silence trimmer: threshold=" + threshold + "dBov, lead="
+                    + lead + "ms, tail=" + tail + "ms");
+        }
+        // mean square of a window at the threshold, full scale being a sample of 32768
+        double amplitude = 32768 * Math.pow(10, threshold / 20.0);
+        _threshold = amplitude * amplitude;
+        _lead = lead * G711Codec.SAMPLE_RATE / 1000;
+        _tail = tail * G711Codec.SAMPLE_RATE / 1000;
+    }
+
+    /**
+     * Trims the silence before the first and after the last window of speech of a prompt.  A prompt that is
+     * silent throughout, e.g. a break, is kept as it is.
+     * @param prompt the encoded prompt.
+     * @return the trimmed prompt, or the prompt itself if there is nothing to trim.
+     */
+    public EncodedPrompt trim(EncodedPrompt prompt) {
+        byte[] audio = prompt.getFrames();
+        G711Codec codec = prompt.getCodec();
+        int first = -1;
+        int last = -1;
+        for (int window = 0; window < audio.length; window += WINDOW_SIZE) {
+            if (isSpeech(audio, window, Math.min(WINDOW_SIZE, audio.length - window), codec)) {
+                if (first < 0) {
+                    first = window;
+                }
+                last = window;
+            }
+        }
+        if (first < 0) {
+            return prompt;
+        }
+        int start = Math.max(0, first - _lead);
+        int end = Math.min(audio.length, last + WINDOW_SIZE + _tail);
+        if (start == 0 && end == audio.length) {
+            return prompt;
+        }
+        return new EncodedPrompt(codec, audio, start, end - start);
+    }
+
+    private boolean isSpeech(byte[] audio, int offset, int length, G711Codec codec) {
+        double energy = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int sample = codec.decode(audio[i]);
+            energy += sample * sample;
+        }
+        return energy / length > _threshold;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "SilenceTrimmer[threshold=" + Math.round(10 * Math.log10(_threshold / (32768.0 * 32768.0)))
+                + "dBov, lead=" + (_lead * 1000 / G711Codec.SAMPLE_RATE) + "ms, tail="
+                + (_tail * 1000 / G711Codec.SAMPLE_RATE) + "ms]";
+    }
+
+}
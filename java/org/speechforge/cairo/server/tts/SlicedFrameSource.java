@@ -0,0 +1,47 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link AudioFrameSource} that can hand out its frames as slices of a buffer holding the whole prompt, so that
+ * they can be sent without being copied.  Sources composed of other sources implement this interface to pass on
+ * the slices of their parts.
+ *
+ * @see FrameSources#readFrame(AudioFrameSource, ByteBuffer)
+ */
+public interface SlicedFrameSource extends AudioFrameSource {
+
+    /**
+     * Returns the next frame, advancing like {@link #readFrame(byte[])}.  Never blocks.
+     * @param frame array backed buffer with a capacity of the frame size, used for frames that cannot be sliced.
+     * @return the frame between position and limit (shorter than the frame size only for the last frame), either
+     * a slice of the underlying buffer or {@code frame}; an empty buffer if no audio is available yet; or
+     * {@code null} if the end of the audio has been reached.
+     * @throws IOException if producing the audio failed.
+     */
+    public ByteBuffer readFrame(ByteBuffer frame) throws IOException;
+
+}
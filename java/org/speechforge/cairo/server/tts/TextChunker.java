@@ -0,0 +1,109 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.server.tts;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits speech text into chunks at sentence boundaries, and long sentences further at clause boundaries, so that
+ * the chunks of a long prompt can be synthesized concurrently and played as soon as the first one is ready.
+ */
+public class TextChunker {
+
+    /**
+     * Sentences longer than this (in characters) are split at clause boundaries.
+     */
+    public static final int MAX_CHUNK_LENGTH = 250;
+
+    /**
+     * Sentences shorter than this are merged with the following sentence.
+     */
+    public static final int MIN_CHUNK_LENGTH = 40;
+
+    private static final String CLAUSE_DELIMITERS = ",;:";
+
+    private TextChunker() {
+        // static utility class
+    }
+
+    /**
+     * TODOC
+     * @param text the speech text.
+     * @return the chunks of the text in speaking order, at least one.
+     */
+    public static List<String> split(String text) {
+        List<String> chunks = new ArrayList<String>();
+        if (text == null || text.trim().length() == 0) {
+            chunks.add((text == null) ? "" : text);
+            return chunks;
+        }
+
+        BreakIterator it = BreakIterator.getSentenceInstance(Locale.US);
+        it.setText(text);
+        StringBuilder pending = new StringBuilder();
+        int start = it.first();
+        for (int end = it.next(); end != BreakIterator.DONE; start = end, end = it.next()) {
+            String sentence = text.substring(start, end).trim();
+            if (sentence.length() == 0) {
+                continue;
+            }
+            if (pending.length() > 0) {
+                pending.append(' ');
+            }
+            pending.append(sentence);
+            if (pending.length() >= MIN_CHUNK_LENGTH) {
+                splitClauses(pending.toString(), chunks);
+                pending.setLength(0);
+            }
+        }
+        if (pending.length() > 0) {
+            splitClauses(pending.toString(), chunks);
+        }
+        return chunks;
+    }
+
+    private static void splitClauses(String sentence, List<String> chunks) {
+        while (sentence.length() > MAX_CHUNK_LENGTH) {
+            int cut = -1;
+            for (int i = MAX_CHUNK_LENGTH - 1; i >= MIN_CHUNK_LENGTH && cut < 0; i--) {
+                if (CLAUSE_DELIMITERS.indexOf(sentence.charAt(i)) >= 0 && Character.isWhitespace(sentence.charAt(i + 1))) {
+                    cut = i + 1;
+                }
+            }
+            if (cut < 0) {
+                // no clause boundary, split at the last word boundary instead
+                cut = sentence.lastIndexOf(' ', MAX_CHUNK_LENGTH);
+            }
+            if (cut < MIN_CHUNK_LENGTH) {
+                break;
+            }
+            chunks.add(sentence.substring(0, cut).trim());
+            sentence = sentence.substring(cut).trim();
+        }
+        chunks.add(sentence);
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Accepts audio in AU format (Sun/NeXT audio file format) of any sample rate and writes it G.711 encoded at 8 kHz
+ * to the underlying stream, converting incrementally as the audio is written.
+ */
+public class AuEncodingOutputStream extends FilterOutputStream {
+
+    private static final int AU_MAGIC = 0x2e736e64;
+    private static final int HEADER_LENGTH = 24;
+
+    private static final int ENCODING_ULAW = 1;
+    private static final int ENCODING_LINEAR_8 = 2;
+    private static final int ENCODING_LINEAR_16 = 3;
+    private static final int ENCODING_ALAW = 27;
+
+    private G711Codec _codec;
+    private double _rate = 1.0;
+    private double _gain = 1.0;
+    private byte[] _header = new byte[HEADER_LENGTH];
+    private int _position = 0;
+    private int _dataOffset = HEADER_LENGTH;
+    private int _encoding;
+    private G711Codec _sourceCodec;
+    private AudioEncoder _encoder;
+
+    private short[] _samples = new short[4096];
+    private int _sampleCount = 0;
+    private boolean _pendingHighByte = false;
+    private int _highByte;
+    private byte[] _encoded;
+
+    /**
+     * TODOC
+     * @param out stream receiving the encoded audio.
+     * @param codec codec of the encoded audio.
+     */
+    public AuEncodingOutputStream(OutputStream out, G711Codec codec) {
+        super(out);
+        _codec = codec;
+    }
+
+    /**
+     * Creates a stream changing the rate and volume of the audio as it is encoded.
+     * @param out stream receiving the encoded audio.
+     * @param codec codec of the encoded audio.
+     * @param rate speaking rate relative to the written audio (1.0 to keep it).
+     * @param gain factor applied to the amplitude of the audio (1.0 to keep it).
+     * @see AudioEncoder#AudioEncoder(float, int, G711Codec, double, double)
+     */
+    public AuEncodingOutputStream(OutputStream out, G711Codec codec, double rate, double gain) {
+        this(out, codec);
+        _rate = rate;
+        _gain = gain;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end && _position < _dataOffset) {
+            if (_position < HEADER_LENGTH) {
+                _header[_position] = b[off];
+            }
+            _position++;
+            off++;
+            if (_position == HEADER_LENGTH) {
+                parseHeader();
+            }
+        }
+
+        for (; off < end; off++) {
+            switch (_encoding) {
+            case ENCODING_LINEAR_16:
+                if (!_pendingHighByte) {
+                    _highByte = b[off];
+                    _pendingHighByte = true;
+                    continue;
+                }
+                addSample((short) ((_highByte << 8) | (b[off] & 0xFF)));
+                _pendingHighByte = false;
+                break;
+            case ENCODING_LINEAR_8:
+                addSample((short) (b[off] << 8));
+                break;
+            default:
+                addSample(_sourceCodec.decode(b[off]));
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        if (_sampleCount > 0) {
+            int len = _encoder.encode(_samples, 0, _sampleCount, _encoded);
+            _sampleCount = 0;
+            out.write(_encoded, 0, len);
+        }
+        out.flush();
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (_position < _dataOffset) {
+                throw new IOException("Incomplete AU header");
+            }
+            flush();
+            int len = _encoder.finish(_encoded);
+            if (len > 0) {
+                out.write(_encoded, 0, len);
+            }
+        } finally {
+            // the underlying stream (e.g. a prompt file) is released even if the AU stream was incomplete
+            out.close();
+        }
+    }
+
+    private void addSample(short sample) throws IOException {
+        _samples[_sampleCount++] = sample;
+        if (_sampleCount == _samples.length) {
+            flush();
+        }
+    }
+
+    private void parseHeader() throws IOException {
+        if (readInt(0) != AU_MAGIC) {
+            throw new IOException("Audio is not in AU format");
+        }
+        _dataOffset = Math.max(readInt(4), HEADER_LENGTH);
+        _encoding = readInt(12);
+        int sampleRate = readInt(16);
+        int channels = readInt(20);
+
+        switch (_encoding) {
+        case ENCODING_ULAW:
+            _sourceCodec = G711Codec.ULAW;
+            break;
+        case ENCODING_ALAW:
+            _sourceCodec = G711Codec.ALAW;
+            break;
+        case ENCODING_LINEAR_8:
+        case ENCODING_LINEAR_16:
+            break;
+        default:
+            throw new IOException("Unsupported AU encoding: " + _encoding);
+        }
+
+        try {
+            _encoder = new AudioEncoder(sampleRate, channels, _codec, _rate, _gain);
+        } catch (IllegalArgumentException e) {
+            IOException ioe = new IOException("Unsupported AU format");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        // keep whole sample frames in the sample buffer
+        _samples = new short[_samples.length - _samples.length % channels];
+        _encoded = new byte[_encoder.getMaxEncodedLength(_samples.length)];
+    }
+
+    private int readInt(int offset) {
+        return ((_header[offset] & 0xFF) << 24) | ((_header[offset + 1] & 0xFF) << 16)
+            | ((_header[offset + 2] & 0xFF) << 8) | (_header[offset + 3] & 0xFF);
+    }
+
+}
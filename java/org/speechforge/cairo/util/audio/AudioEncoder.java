@@ -0,0 +1,204 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+/**
+ * Incrementally converts 16 bit linear PCM audio of any sample rate and channel count into 8 kHz mono G.711,
+ * so that audio can be encoded block by block while it is being produced.
+ * <p>
+ * Integer sample rates are converted by a band limited {@link PolyphaseResampler}, other rates by linear
+ * interpolation which is cheap but not band limited.  The resampled audio can be time-stretched by a
+ * {@link WsolaTimeStretcher} and scaled by a gain before it is encoded, e.g. to change the rate and volume of
+ * a synthesized prompt without synthesizing it again.  Buffers are allocated for the first blocks encoded and
+ * reused for the following ones.
+ * </p>
+ */
+public class AudioEncoder {
+
+    private G711Codec _codec;
+    private int _channels;
+    private double _step;
+
+    private PolyphaseResampler _resampler;
+
+    // position of the next output sample in input samples, relative to _previous (linear interpolation)
+    private double _position = 1.0;
+    private int _previous = 0;
+
+    private WsolaTimeStretcher _stretcher;
+    private double _gain = 1.0;
+    private short[] _resampled = new short[0];
+    private short[] _stretched = new short[0];
+
+    /**
+     * TODOC
+     * @param sampleRate sample rate of the linear PCM input.
+     * @param channels number of interleaved channels of the input, mixed down to mono.
+     * @param codec codec of the encoded output.
+     */
+    public AudioEncoder(float sampleRate, int channels, G711Codec codec) {
+        this(sampleRate, channels, codec, true);
+    }
+
+    /**
+     * Creates an encoder changing the rate and volume of the audio.
+     * @param sampleRate sample rate of the linear PCM input.
+     * @param channels number of interleaved channels of the input, mixed down to mono.
+     * @param codec codec of the encoded output.
+     * @param rate speaking rate relative to the input (1.0 to keep it).
+     * @param gain factor applied to the amplitude of the samples (1.0 to keep it), clipping at full scale.
+     */
+    public AudioEncoder(float sampleRate, int channels, G711Codec codec, double rate, double gain) {
+        this(sampleRate, channels, codec);
+        if (rate != 1.0) {
+            _stretcher = new WsolaTimeStretcher(rate, G711Codec.SAMPLE_RATE);
+        }
+        _gain = gain;
+    }
+
+    /**
+     * Creates an encoder optionally restricted to linear interpolation, e.g. to compare both resampling methods.
+     */
+    AudioEncoder(float sampleRate, int channels, G711Codec codec, boolean bandLimited) {
+        if (sampleRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("Unsupported input format: " + sampleRate + "Hz, " + channels + " channels");
+        }
+        _codec = codec;
+        _channels = channels;
+        _step = sampleRate / G711Codec.SAMPLE_RATE;
+        int rate = (int) sampleRate;
+        if (bandLimited && rate == sampleRate && rate != G711Codec.SAMPLE_RATE
+                && PolyphaseResampler.isSupported(rate, G711Codec.SAMPLE_RATE)) {
+            _resampler = new PolyphaseResampler(rate, G711Codec.SAMPLE_RATE);
+        }
+    }
+
+    /**
+     * @return the codec of the encoded output.
+     */
+    public G711Codec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * @param length number of input samples (counting each channel), 0 for the output of {@link #finish(byte[])}.
+     * @return the maximum number of bytes produced by encoding the specified number of samples.
+     */
+    public int getMaxEncodedLength(int length) {
+        int resampled = getMaxResampledLength(length / _channels);
+        return (_stretcher == null) ? resampled : _stretcher.getMaxOutputLength(resampled);
+    }
+
+    private int getMaxResampledLength(int frames) {
+        int delay = (_resampler == null) ? 0 : _resampler.getDelay();
+        return (int) Math.ceil((frames + delay) / _step) + 1;
+    }
+
+    /**
+     * Encodes a block of interleaved input samples.
+     * @param samples buffer holding the input samples.
+     * @param offset offset of the first input sample.
+     * @param length number of input samples, must be a multiple of the channel count.
+     * @param encoded buffer receiving the encoded output, see {@link #getMaxEncodedLength(int)}.
+     * @return the number of encoded bytes written.
+     */
+    public int encode(short[] samples, int offset, int length, byte[] encoded) {
+        int max = getMaxResampledLength(length / _channels);
+        if (_resampled.length < max) {
+            _resampled = new short[max];
+        }
+        return encodeResampled(resample(samples, offset, length), false, encoded);
+    }
+
+    /**
+     * Encodes the audio still held by the resampler and the time-stretcher at the end of the input.
+     * @param encoded buffer receiving the encoded output, see {@link #getMaxEncodedLength(int)}.
+     * @return the number of encoded bytes written.
+     */
+    public int finish(byte[] encoded) {
+        int count = 0;
+        if (_resampler != null) {
+            int max = getMaxResampledLength(0);
+            if (_resampled.length < max) {
+                _resampled = new short[max];
+            }
+            count = _resampler.flush(_resampled, 0);
+        }
+        return encodeResampled(count, true, encoded);
+    }
+
+    /**
+     * Mixes down and resamples a block of input samples into the buffer of resampled samples.
+     */
+    private int resample(short[] samples, int offset, int length) {
+        int count = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i += _channels) {
+            int sample = samples[i];
+            for (int c = 1; c < _channels; c++) {
+                sample += samples[i + c];
+            }
+            sample /= _channels;
+
+            if (_resampler != null) {
+                count += _resampler.process(sample, _resampled, count);
+                continue;
+            }
+            while (_position <= 1.0) {
+                _resampled[count++] = (short) (_previous + (sample - _previous) * _position);
+                _position += _step;
+            }
+            _position -= 1.0;
+            _previous = sample;
+        }
+        return count;
+    }
+
+    /**
+     * Time-stretches, scales and encodes the resampled samples.
+     */
+    private int encodeResampled(int count, boolean last, byte[] encoded) {
+        short[] samples = _resampled;
+        if (_stretcher != null) {
+            // includes what the stretcher holds back for the flush
+            int max = _stretcher.getMaxOutputLength(count);
+            if (_stretched.length < max) {
+                _stretched = new short[max];
+            }
+            samples = _stretched;
+            count = _stretcher.process(_resampled, 0, count, _stretched, 0);
+            if (last) {
+                count += _stretcher.flush(_stretched, count);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int value = samples[i];
+            if (_gain != 1.0) {
+                value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) Math.round(value * _gain)));
+            }
+            encoded[i] = _codec.encode(value);
+        }
+        return count;
+    }
+
+}
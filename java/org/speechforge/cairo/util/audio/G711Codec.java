@@ -0,0 +1,165 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+/**
+ * ITU-T G.711 companding of 16 bit linear PCM samples, the codecs used on the RTP leg (PCMU and PCMA).
+ */
+public enum G711Codec {
+
+    /**
+     * G.711 mu-law, RTP payload type 0 (PCMU).
+     */
+    ULAW(0, (byte) 0xFF),
+
+    /**
+     * G.711 A-law, RTP payload type 8 (PCMA).
+     */
+    ALAW(8, (byte) 0xD5);
+
+    /**
+     * Sample rate of G.711 audio.
+     */
+    public static final int SAMPLE_RATE = 8000;
+
+    private static final int ULAW_BIAS = 0x84;
+    private static final int ULAW_CLIP = 32635;
+
+    private int _payloadType;
+    private byte _silence;
+
+    private G711Codec(int payloadType, byte silence) {
+        _payloadType = payloadType;
+        _silence = silence;
+    }
+
+    /**
+     * @return the static RTP payload type of the codec.
+     */
+    public int getPayloadType() {
+        return _payloadType;
+    }
+
+    /**
+     * @return the encoded value of a zero sample.
+     */
+    public byte getSilence() {
+        return _silence;
+    }
+
+    /**
+     * @param sample a 16 bit linear sample.
+     * @return the companded sample.
+     */
+    public byte encode(int sample) {
+        return (this == ULAW) ? linearToUlaw(sample) : linearToAlaw(sample);
+    }
+
+    /**
+     * @param encoded a companded sample.
+     * @return the 16 bit linear sample.
+     */
+    public short decode(byte encoded) {
+        return (this == ULAW) ? ulawToLinear(encoded) : alawToLinear(encoded);
+    }
+
+    /**
+     * @param payloadType an RTP payload type.
+     * @return the codec for the payload type or {@code null} if the payload type is not G.711.
+     */
+    public static G711Codec fromPayloadType(int payloadType) {
+        for (G711Codec codec : values()) {
+            if (codec._payloadType == payloadType) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static byte linearToUlaw(int sample) {
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) {
+            sample = -sample;
+        }
+        if (sample > ULAW_CLIP) {
+            sample = ULAW_CLIP;
+        }
+        sample += ULAW_BIAS;
+
+        int exponent = 7;
+        for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (sample >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    private static short ulawToLinear(byte encoded) {
+        int u = ~encoded & 0xFF;
+        int t = ((u & 0x0F) << 3) + ULAW_BIAS;
+        t <<= (u & 0x70) >> 4;
+        return (short) (((u & 0x80) != 0) ? (ULAW_BIAS - t) : (t - ULAW_BIAS));
+    }
+
+    private static byte linearToAlaw(int sample) {
+        int mask;
+        int value = sample >> 3;
+        if (value >= 0) {
+            mask = 0xD5;
+        } else {
+            mask = 0x55;
+            value = -value - 1;
+        }
+
+        int segment = 0;
+        for (int end = 0x1F; segment < 8 && value > end; end = (end << 1) | 1) {
+            segment++;
+        }
+        if (segment >= 8) {
+            return (byte) (0x7F ^ mask);
+        }
+
+        int alaw = segment << 4;
+        alaw |= (segment < 2) ? (value >> 1) & 0x0F : (value >> segment) & 0x0F;
+        return (byte) (alaw ^ mask);
+    }
+
+    private static short alawToLinear(byte encoded) {
+        int a = (encoded ^ 0x55) & 0xFF;
+        int t = (a & 0x0F) << 4;
+        int segment = (a & 0x70) >> 4;
+        switch (segment) {
+        case 0:
+            t += 8;
+            break;
+        case 1:
+            t += 0x108;
+            break;
+        default:
+            t += 0x108;
+            t <<= segment - 1;
+        }
+        return (short) (((a & 0x80) != 0) ? t : -t);
+    }
+
+}
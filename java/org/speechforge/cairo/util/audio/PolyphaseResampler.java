@@ -0,0 +1,204 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+/**
+ * Band limited sample rate converter for 16 bit linear PCM mono audio, converting between integer sample rates
+ * with a rational ratio (e.g. the 16 kHz or 22.05 kHz output of a synthesizer to the 8 kHz of G.711).
+ * <p>
+ * The input is conceptually upsampled by L, low pass filtered and downsampled by M.  The low pass filter, a
+ * Kaiser windowed sinc spanning {@value #FILTER_LENGTH} output samples, is split into L phases so that each
+ * output sample costs a single dot product with the input history.  The filter bank and history are allocated
+ * once, converting audio allocates nothing.
+ * </p>
+ */
+public class PolyphaseResampler {
+
+    /**
+     * Length of the filter in samples at the lower of the two rates, which sets the width of the transition band
+     * (about 500Hz for an output of 8 kHz).
+     */
+    public static final int FILTER_LENGTH = 64;
+
+    /**
+     * Largest upsampling factor L supported, which bounds the size of the filter bank.
+     */
+    public static final int MAX_PHASES = 1024;
+
+    // Kaiser window parameter, about 80dB stop band attenuation
+    private static final double KAISER_BETA = 8.0;
+
+    // cutoff as a fraction of the lower Nyquist frequency, in the middle of the transition band
+    private static final double PASS_BAND = 0.95;
+
+    private int _upsampling;
+    private int _downsampling;
+    private int _taps;
+    private float[][] _phases;
+
+    // input history, each sample being stored twice so that the last _taps samples are contiguous
+    private float[] _history;
+    private int _newest = 0;
+    private int _phase = 0;
+
+    /**
+     * TODOC
+     * @param inputRate sample rate of the input.
+     * @param outputRate sample rate of the output.
+     * @throws IllegalArgumentException if the rates are not positive or their ratio needs more than
+     * {@link #MAX_PHASES} phases.
+     */
+    public PolyphaseResampler(int inputRate, int outputRate) throws IllegalArgumentException {
+        if (!isSupported(inputRate, outputRate)) {
+            throw new IllegalArgumentException("Unsupported sample rate conversion: " + inputRate + "Hz to " + outputRate + "Hz");
+        }
+        int gcd = gcd(inputRate, outputRate);
+        _upsampling = outputRate / gcd;
+        _downsampling = inputRate / gcd;
+
+        // prototype filter at the upsampled rate, cut off below the lower of the two Nyquist frequencies
+        _taps = (int) Math.ceil((double) FILTER_LENGTH * Math.max(_upsampling, _downsampling) / _upsampling);
+        _history = new float[2 * _taps];
+        int length = _upsampling * _taps;
+        double cutoff = PASS_BAND * 0.5 / Math.max(_upsampling, _downsampling);
+        double center = (length - 1) / 2.0;
+        double norm = bessel(KAISER_BETA);
+        _phases = new float[_upsampling][_taps];
+        for (int n = 0; n < length; n++) {
+            double t = n - center;
+            double sinc = (t == 0) ? 1.0 : Math.sin(2 * Math.PI * cutoff * t) / (2 * Math.PI * cutoff * t);
+            double r = t / center;
+            double window = bessel(KAISER_BETA * Math.sqrt(Math.max(0.0, 1 - r * r))) / norm;
+            // gain L compensates for the zeros inserted by upsampling
+            _phases[n % _upsampling][n / _upsampling] = (float) (_upsampling * 2 * cutoff * sinc * window);
+        }
+    }
+
+    /**
+     * @param inputRate sample rate of the input.
+     * @param outputRate sample rate of the output.
+     * @return whether the conversion is supported.
+     */
+    public static boolean isSupported(int inputRate, int outputRate) {
+        return inputRate > 0 && outputRate > 0 && outputRate / gcd(inputRate, outputRate) <= MAX_PHASES;
+    }
+
+    /**
+     * @param length number of input samples.
+     * @return the maximum number of output samples produced by processing the specified number of samples.
+     */
+    public int getMaxOutputLength(int length) {
+        return (int) ((long) length * _upsampling / _downsampling) + 1;
+    }
+
+    /**
+     * @return the delay of the output in input samples, i.e. the number of samples {@link #flush(short[], int)}
+     * feeds through the filter.
+     */
+    public int getDelay() {
+        return _taps / 2;
+    }
+
+    /**
+     * Converts a block of input samples.
+     * @param samples buffer holding the input samples.
+     * @param offset offset of the first input sample.
+     * @param length number of input samples.
+     * @param out buffer receiving the output samples, see {@link #getMaxOutputLength(int)}.
+     * @param outOffset offset of the first output sample.
+     * @return the number of output samples written.
+     */
+    public int process(short[] samples, int offset, int length, short[] out, int outOffset) {
+        int count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            count += process(samples[i], out, outOffset + count);
+        }
+        return count;
+    }
+
+    /**
+     * Converts a single input sample, e.g. while mixing down interleaved channels.
+     * @param sample the input sample.
+     * @param out buffer receiving the output samples, at least {@code getMaxOutputLength(1)} long.
+     * @param outOffset offset of the first output sample.
+     * @return the number of output samples written.
+     */
+    public int process(int sample, short[] out, int outOffset) {
+        _newest = (_newest == _taps - 1) ? 0 : _newest + 1;
+        _history[_newest] = sample;
+        _history[_newest + _taps] = sample;
+
+        int count = 0;
+        int last = _newest + _taps;
+        while (_phase < _upsampling) {
+            float[] taps = _phases[_phase];
+            float sum = 0;
+            for (int k = 0; k < _taps; k++) {
+                sum += taps[k] * _history[last - k];
+            }
+            int value = Math.round(sum);
+            out[outOffset + count++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            _phase += _downsampling;
+        }
+        _phase -= _upsampling;
+        return count;
+    }
+
+    /**
+     * Feeds silence through the filter at the end of the input, so that the output is not cut short by the
+     * filter delay.
+     * @param out buffer receiving the output samples, at least {@code getMaxOutputLength(getDelay())} long.
+     * @param outOffset offset of the first output sample.
+     * @return the number of output samples written.
+     */
+    public int flush(short[] out, int outOffset) {
+        int count = 0;
+        for (int i = 0; i < getDelay(); i++) {
+            count += process(0, out, outOffset + count);
+        }
+        return count;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind, by its power series.
+     */
+    private static double bessel(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        for (int k = 1; k < 50 && term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.audio;
+
+/**
+ * Changes the speaking rate of mono 16 bit linear PCM audio without changing its pitch, using WSOLA (waveform
+ * similarity overlap-add), block by block while the audio is being produced.
+ * <p>
+ * The output is built from segments of one synthesis hop each, cross-faded over a hop with complementary
+ * sin&sup2; windows.  Segments are taken from the input every analysis hop (the synthesis hop scaled by the
+ * rate), each shifted within a tolerance to the position most similar to the natural continuation of the
+ * previous segment, which keeps the waveform periodic across the joins.
+ * </p>
+ */
+public class WsolaTimeStretcher {
+
+    // length of a synthesis hop in milliseconds, a few pitch periods
+    private static final int HOP_MILLIS = 15;
+
+    private double _rate;
+    private int _hop;
+    private int _tolerance;
+    private double _analysisHop;
+    private float[] _fadeIn;
+
+    // input not consumed yet, _input[0] being input sample number _offset
+    private short[] _input;
+    private int _length = 0;
+    private long _offset = 0;
+
+    // number of segments output so far and start of the last one
+    private long _segments = 0;
+    private long _previous = 0;
+
+    /**
+     * TODOC
+     * @param rate speaking rate relative to the input, e.g. 1.25 to speak 25% faster (and shorter).
+     * @param sampleRate sample rate of the audio.
+     */
+    public WsolaTimeStretcher(double rate, float sampleRate) {
+        if (rate <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("Unsupported time-stretch: rate " + rate + ", " + sampleRate + "Hz");
+        }
+        _rate = rate;
+        _hop = Math.max((int) (sampleRate * HOP_MILLIS / 1000), 8);
+        _tolerance = _hop / 2;
+        _analysisHop = _hop * rate;
+        _fadeIn = new float[_hop];
+        for (int i = 0; i < _hop; i++) {
+            double s = Math.sin(Math.PI * (i + 0.5) / (2 * _hop));
+            _fadeIn[i] = (float) (s * s);
+        }
+        _input = new short[4 * _hop + (int) Math.ceil(_analysisHop) + 2 * _tolerance];
+    }
+
+    /**
+     * @return the speaking rate relative to the input.
+     */
+    public double getRate() {
+        return _rate;
+    }
+
+    /**
+     * @param length number of input samples.
+     * @return the maximum number of samples produced by processing the specified number of samples, or by
+     * {@link #flush(short[], int)} for a length of 0.
+     */
+    public int getMaxOutputLength(int length) {
+        return (int) ((length + _input.length) / _analysisHop + 2) * _hop + _input.length;
+    }
+
+    /**
+     * Processes a block of input samples.
+     * @param samples buffer holding the input samples.
+     * @param offset offset of the first input sample.
+     * @param length number of input samples.
+     * @param out buffer receiving the output samples, see {@link #getMaxOutputLength(int)}.
+     * @param outOffset offset of the first output sample.
+     * @return the number of output samples written.
+     */
+    public int process(short[] samples, int offset, int length, short[] out, int outOffset) {
+        int count = 0;
+        while (length > 0) {
+            int n = Math.min(length, _input.length - _length);
+            System.arraycopy(samples, offset, _input, _length, n);
+            _length += n;
+            offset += n;
+            length -= n;
+            count += stretch(out, outOffset + count);
+        }
+        return count;
+    }
+
+    /**
+     * Writes out the natural continuation of the last segment up to the end of the input, unstretched.
+     * @param out buffer receiving the output samples, see {@link #getMaxOutputLength(int)}.
+     * @param outOffset offset of the first output sample.
+     * @return the number of output samples written.
+     */
+    public int flush(short[] out, int outOffset) {
+        int start = (_segments == 0) ? 0 : (int) (_previous + _hop - _offset);
+        int count = Math.max(_length - start, 0);
+        System.arraycopy(_input, start, out, outOffset, count);
+        _length = 0;
+        return count;
+    }
+
+    private int stretch(short[] out, int outOffset) {
+        int count = 0;
+        while (true) {
+            if (_segments == 0) {
+                // the first segment starts the output as it is
+                if (_length < _hop) {
+                    break;
+                }
+                System.arraycopy(_input, 0, out, outOffset + count, _hop);
+                _previous = 0;
+            } else {
+                long nominal = Math.round(_segments * _analysisHop);
+                long continuation = _previous + _hop;
+                long end = Math.max(continuation + _hop, nominal + _tolerance + _hop);
+                if (end > _offset + _length) {
+                    break;
+                }
+                int target = (int) (continuation - _offset);
+                int segment = findSegment((int) (Math.max(nominal - _tolerance, _offset) - _offset),
+                        (int) (nominal + _tolerance - _offset), target);
+                for (int i = 0; i < _hop; i++) {
+                    float fadeIn = _fadeIn[i];
+                    out[outOffset + count + i] = (short) Math.round(_input[target + i] * (1 - fadeIn)
+                            + _input[segment + i] * fadeIn);
+                }
+                _previous = _offset + segment;
+            }
+            count += _hop;
+            _segments++;
+            compact();
+        }
+        return count;
+    }
+
+    /**
+     * Finds the start between two positions of the input whose next hop is most similar to the hop at a target
+     * position, by normalized cross-correlation.
+     */
+    private int findSegment(int from, int to, int target) {
+        int best = from;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        double energy = 0;
+        for (int i = 0; i < _hop; i++) {
+            energy += (double) _input[from + i] * _input[from + i];
+        }
+        for (int start = from; start <= to; start++) {
+            if (start > from) {
+                double removed = _input[start - 1];
+                double added = _input[start + _hop - 1];
+                energy += added * added - removed * removed;
+            }
+            double correlation = 0;
+            for (int i = 0; i < _hop; i++) {
+                correlation += _input[start + i] * _input[target + i];
+            }
+            double score = correlation / Math.sqrt(Math.max(energy, 1.0));
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drops the input no longer needed by the following segments.
+     */
+    private void compact() {
+        long keep = Math.min(_previous + _hop, Math.round(_segments * _analysisHop) - _tolerance);
+        int drop = (int) Math.max(Math.min(keep - _offset, _length), 0);
+        if (drop > 0) {
+            System.arraycopy(_input, drop, _input, 0, _length - drop);
+            _length -= drop;
+            _offset += drop;
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Cairo - Open source framework for control of speech media resources.
+ *
+ * Copyright (C) 2005-2006 SpeechForge - http://www.speechforge.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Contact: ngodfredsen@users.sourceforge.net
+ *
+ */
+package org.speechforge.cairo.util.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Size bounded cache of resources fetched over HTTP (e.g. recorded prompts), keyed by URL and kept as files.
+ * <p>
+ * A cached resource is served without contacting the server while it is fresh according to the
+ * {@code Cache-Control: max-age} or {@code Expires} headers of its response.  Otherwise it is revalidated with
+ * a conditional GET using its {@code ETag} and {@code Last-Modified} validators, and downloaded again only if it
+ * changed.  Concurrent requests for the same URL share a single fetch.
+ * </p>
+ * <p>
+ * Every download is saved to a new file, so a file handed out stays unchanged while it is in use (e.g. memory
+ * mapped).  Every resource returned by {@link #get(URL)} must be {@link #release(Resource) released} once its file
+ * is no longer used: the file of a replaced or evicted resource is only deleted when its last user released it.
+ * </p>
+ */
+public class HttpResourceCache {
+
+    private static Logger _logger = Logger.getLogger(HttpResourceCache.class);
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private File _cacheDir;
+    private long _maxBytes;
+    private long _bytes = 0;
+
+    // access ordered so that iteration starts with the least recently used resource
+    private Map<String, Resource> _resources = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+    private Map<String, FutureTask<Resource>> _fetches = new HashMap<String, FutureTask<Resource>>();
+
+    private long _hits = 0;
+    private long _revalidations = 0;
+    private long _misses = 0;
+
+    /**
+     * TODOC
+     * @param cacheDir directory holding the cached files, created if it does not exist and emptied otherwise.
+     * @param maxBytes maximum number of bytes of cached files.
+     * @throws IllegalArgumentException if the cache directory cannot be created.
+     */
+    public HttpResourceCache(File cacheDir, long maxBytes) throws IllegalArgumentException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IllegalArgumentException("Could not make HTTP cache directory: " + cacheDir.getAbsolutePath());
+        }
+        // the index is not persisted, files of a previous run cannot be revalidated
+        for (File file : cacheDir.listFiles()) {
+            if (file.isFile() && !file.delete()) {
+                _logger.warn("Could not delete stale cache file: " + file);
+            }
+        }
+        _cacheDir = cacheDir;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a resource, fetching it or revalidating the cached copy as needed.  The file of the resource is
+     * kept until the resource is released.
+     * @param url an http or https URL.
+     * @return the resource, to be released by {@link #release(Resource)}.
+     * @throws IOException if the resource could not be fetched.
+     */
+    public Resource get(URL url) throws IOException {
+        Resource resource;
+        do {
+            resource = fetch(url);
+        } while (!acquire(resource));
+        return resource;
+    }
+
+    /**
+     * Releases a resource returned by {@link #get(URL)}, deleting its file if it was replaced or evicted
+     * meanwhile and this was its last user.
+     * @param resource the resource.
+     */
+    public synchronized void release(Resource resource) {
+        if (--resource._users == 0 && resource._evicted) {
+            delete(resource);
+        }
+    }
+
+    private Resource fetch(URL url) throws IOException {
+        String key = url.toExternalForm();
+        FutureTask<Resource> fetch;
+        boolean owner = false;
+        synchronized (this) {
+            Resource resource = _resources.get(key);
+            if (resource != null && resource._expires > System.currentTimeMillis()) {
+                _hits++;
+                return resource;
+            }
+            fetch = _fetches.get(key);
+            if (fetch == null) {
+                fetch = new FutureTask<Resource>(new Fetch(url, resource));
+                _fetches.put(key, fetch);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                fetch.run();
+            } finally {
+                synchronized (this) {
+                    _fetches.remove(key);
+                }
+            }
+        }
+
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted fetching " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            IOException ioe = new IOException("Failed fetching " + url);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    private synchronized boolean acquire(Resource resource) {
+        if (resource._evicted && resource._users == 0) {
+            // evicted by a concurrent fetch before it could be used, its file is gone
+            return false;
+        }
+        resource._users++;
+        return true;
+    }
+
+    private synchronized void put(String key, Resource resource) {
+        Resource previous = _resources.put(key, resource);
+        if (previous != null && previous != resource) {
+            _bytes -= previous._file.length();
+            evict(previous);
+        }
+        _bytes += resource._file.length();
+
+        // never evicts the resource just added, it is about to be used
+        Iterator<Resource> it = _resources.values().iterator();
+        while (_bytes > _maxBytes && it.hasNext()) {
+            Resource eldest = it.next();
+            if (eldest != resource) {
+                it.remove();
+                _bytes -= eldest._file.length();
+                evict(eldest);
+            }
+        }
+    }
+
+    private static void evict(Resource resource) {
+        resource._evicted = true;
+        if (resource._users == 0) {
+            delete(resource);
+        }
+    }
+
+    private static void delete(Resource resource) {
+        if (!resource._file.delete()) {
+            _logger.debug("Could not delete cache file: " + resource._file);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "HttpResourceCache[resources=" + _resources.size() + '/' + _bytes + "B, hits=" + _hits
+                + ", revalidations=" + _revalidations + ", misses=" + _misses + ']';
+    }
+
+    /**
+     * Fetches a resource, conditionally if a stale copy is cached.
+     */
+    private class Fetch implements Callable<Resource> {
+
+        private URL _url;
+        private Resource _stale;
+
+        Fetch(URL url, Resource stale) {
+            _url = url;
+            _stale = stale;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        public Resource call() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (_stale != null) {
+                if (_stale._etag != null) {
+                    connection.setRequestProperty("If-None-Match", _stale._etag);
+                }
+                if (_stale._lastModified > 0) {
+                    connection.setIfModifiedSince(_stale._lastModified);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && _stale != null) {
+                connection.getInputStream().close();
+                synchronized (HttpResourceCache.this) {
+                    if (!_stale._evicted) {
+                        _stale._expires = getExpiration(connection);
+                        _revalidations++;
+                        return _stale;
+                    }
+                }
+                // evicted while being revalidated
+                _stale = null;
+                return call();
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("HTTP " + status + " fetching " + _url);
+            }
+
+            File file = File.createTempFile("http", null, _cacheDir);
+            InputStream is = connection.getInputStream();
+            try {
+                OutputStream os = new FileOutputStream(file);
+                try {
+                    byte[] buf = new byte[8192];
+                    int len;
+                    while ((len = is.read(buf)) > 0) {
+                        os.write(buf, 0, len);
+                    }
+                } finally {
+                    os.close();
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            } finally {
+                is.close();
+            }
+
+            Resource resource = new Resource(_url, file, connection.getContentType(),
+                    connection.getHeaderField("ETag"), connection.getLastModified(), getExpiration(connection));
+            put(_url.toExternalForm(), resource);
+            synchronized (HttpResourceCache.this) {
+                _misses++;
+            }
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Fetched " + _url + " (" + file.length() + "B), " + HttpResourceCache.this);
+            }
+            return resource;
+        }
+
+        private long getExpiration(HttpURLConnection connection) {
+            long now = System.currentTimeMillis();
+            String cacheControl = connection.getHeaderField("Cache-Control");
+            if (cacheControl != null) {
+                for (String directive : cacheControl.toLowerCase().split(",")) {
+                    directive = directive.trim();
+                    if (directive.equals("no-cache") || directive.equals("no-store")) {
+                        return 0;
+                    }
+                    if (directive.startsWith("max-age=")) {
+                        try {
+                            return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                        } catch (NumberFormatException e) {
+                            return 0;
+                        }
+                    }
+                }
+            }
+            // without freshness information every use is revalidated
+            return connection.getExpiration();
+        }
+    }
+
+    /**
+     * A cached resource.
+     */
+    public static class Resource {
+
+        private URL _url;
+        private File _file;
+        private String _contentType;
+        private String _etag;
+        private long _lastModified;
+        private volatile long _expires;
+
+        // guarded by the cache
+        private int _users = 0;
+        private boolean _evicted = false;
+
+        Resource(URL url, File file, String contentType, String etag, long lastModified, long expires) {
+            _url = url;
+            _file = file;
+            _contentType = contentType;
+            _etag = etag;
+            _lastModified = lastModified;
+            _expires = expires;
+        }
+
+        /**
+         * @return the URL of the resource.
+         */
+        public URL getURL() {
+            return _url;
+        }
+
+        /**
+         * @return the file holding the resource, not modified or deleted until the resource is released.
+         */
+        public File getFile() {
+            return _file;
+        }
+
+        /**
+         * @return the Content-Type of the resource, or {@code null} if not known.
+         */
+        public String getContentType() {
+            return _contentType;
+        }
+    }
+
+}